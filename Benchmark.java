@@ -0,0 +1,402 @@
+//Shayan Saberi-Nikou, SXS220123
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Benchmark harness for the tree's hot paths. Each benchmark runs against a throwaway index
+ * for every combination of tree size and buffer pool size, with warmup iterations that are
+ * discarded, and the per-iteration averages are written as JSON so runs can be diffed.
+ */
+class Benchmark {
+    // Lookups, node reads and node writes timed per iteration, so large trees don't take forever
+    private static final int PROBES = 100000;
+    // Write buffer of the buffered insert benchmark: btree.memtableKeys if set, else this many pairs
+    private static final int BUFFER_KEYS = Main.MEMTABLE_KEYS > 0 ? Main.MEMTABLE_KEYS : 1 << 16;
+
+    private final int warmup = Integer.getInteger("bench.warmup", 2);
+    private final int iterations = Integer.getInteger("bench.iterations", 5);
+    private final Path dir;
+    private final List<String> results = new ArrayList<>();
+
+    // One timed pass returning nanoseconds per operation; setup before the clock starts is not counted
+    private interface Pass {
+        long run() throws Exception;
+    }
+
+    private Benchmark(Path dir) {
+        this.dir = dir;
+    }
+
+    // java Benchmark <file>
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: java Benchmark <file for the JSON results>");
+            System.exit(2);
+        }
+        try {
+            run(args[0]);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid benchmark parameters: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void run(String outputFile) throws Exception {
+        long[] sizes = parseList(System.getProperty("bench.sizes", "10000,100000"));
+        long[] caches = parseList(System.getProperty("bench.caches", "64,1024"));
+        Path dir = Files.createTempDirectory("btree-bench");
+        Benchmark bench = new Benchmark(dir);
+        try {
+            for (long size : sizes) {
+                for (long cache : caches) {
+                    bench.runAll((int) size, (int) cache);
+                }
+            }
+        } finally {
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir)) {
+                for (Path p : leftovers) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(outputFile))) {
+            out.println("{");
+            out.println("  \"java\": \"" + System.getProperty("java.version") + "\",");
+            out.println("  \"blockSize\": " + Main.DEFAULT_BLOCK_SIZE + ",");
+            out.println("  \"storage\": \"" + Main.STORAGE_KIND + "\",");
+            out.println("  \"durability\": \"" + Main.DURABILITY.name().toLowerCase() + "\",");
+            out.println("  \"warmupIterations\": " + bench.warmup + ",");
+            out.println("  \"iterations\": " + bench.iterations + ",");
+            out.println("  \"results\": [");
+            for (int i = 0; i < bench.results.size(); i++) {
+                out.println("    " + bench.results.get(i) + (i + 1 < bench.results.size() ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+        System.out.println("Wrote " + bench.results.size() + " benchmark results to " + outputFile + ".");
+    }
+
+    private void runAll(int size, int cache) throws Exception {
+        long[] sequential = new long[size];
+        for (int i = 0; i < size; i++) {
+            sequential[i] = i;
+        }
+        long[] shuffled = sequential.clone();
+        StressTest.shuffle(shuffled, new Random(size));
+        Path sortedCsv = writeCsv(sequential, "sorted.csv");
+        Path shuffledCsv = writeCsv(shuffled, "shuffled.csv");
+
+        measure("insertSequential", size, cache, () -> {
+            Main.BTree tree = freshTree("write.idx", cache);
+            long start = System.nanoTime();
+            for (long k : sequential) {
+                tree.insert(k, k);
+            }
+            return finish(tree, start, size);
+        });
+        measure("insertRandom", size, cache, () -> {
+            Main.BTree tree = freshTree("write.idx", cache);
+            long start = System.nanoTime();
+            for (long k : shuffled) {
+                tree.insert(k, k);
+            }
+            return finish(tree, start, size);
+        });
+        // The same inserts through a write buffer, counting the flushes and the final one at close
+        measure("insertRandomBuffered", size, cache, () -> {
+            Main.BTree tree = freshTree("write.idx", cache, BUFFER_KEYS);
+            long start = System.nanoTime();
+            for (long k : shuffled) {
+                tree.insert(k, k);
+            }
+            return finish(tree, start, size);
+        });
+        measure("loadDataSorted", size, cache, () -> {
+            Main.BTree tree = freshTree("write.idx", cache);
+            long start = System.nanoTime();
+            quietly(() -> tree.loadData(sortedCsv.toString()));
+            return finish(tree, start, size);
+        });
+        measure("loadDataShuffled", size, cache, () -> {
+            Main.BTree tree = freshTree("write.idx", cache);
+            long start = System.nanoTime();
+            quietly(() -> tree.loadData(shuffledCsv.toString()));
+            return finish(tree, start, size);
+        });
+
+        // The read-side benchmarks share one tree holding the even keys 0, 2, 4, ...
+        long[] evens = new long[size];
+        for (int i = 0; i < size; i++) {
+            evens[i] = 2L * i;
+        }
+        Path evensCsv = writeCsv(evens, "evens.csv");
+        Main.BTree tree = freshTree("read.idx", cache);
+        quietly(() -> tree.loadData(evensCsv.toString()));
+        try {
+            int probes = Math.min(size, PROBES);
+            measure("searchHit", size, cache, () -> {
+                Random r = new Random(1);
+                long start = System.nanoTime();
+                for (int i = 0; i < probes; i++) {
+                    if (tree.searchKey(2L * r.nextInt(size)) == null) {
+                        throw new IllegalStateException("Benchmark key missing.");
+                    }
+                }
+                return (System.nanoTime() - start) / probes;
+            });
+            measure("searchMiss", size, cache, () -> {
+                Random r = new Random(2);
+                long start = System.nanoTime();
+                for (int i = 0; i < probes; i++) {
+                    tree.searchKey(2L * r.nextInt(size) + 1);
+                }
+                return (System.nanoTime() - start) / probes;
+            });
+            // The same misses with the filter set aside, so every one descends to a leaf
+            Main.BloomFilter filter = tree.filter;
+            tree.filter = null;
+            try {
+                measure("searchMissUnfiltered", size, cache, () -> {
+                    Random r = new Random(2);
+                    long start = System.nanoTime();
+                    for (int i = 0; i < probes; i++) {
+                        tree.searchKey(2L * r.nextInt(size) + 1);
+                    }
+                    return (System.nanoTime() - start) / probes;
+                });
+            } finally {
+                tree.filter = filter;
+            }
+            measure("scan", size, cache, () -> {
+                long start = System.nanoTime();
+                long seen = 0;
+                try (Main.PairStream c = tree.scan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    while (c.next()) {
+                        seen++;
+                    }
+                }
+                if (seen != size) {
+                    throw new IllegalStateException("Scan saw " + seen + " of " + size + " keys.");
+                }
+                return (System.nanoTime() - start) / size;
+            });
+            // Extract with one worker and with the configured number, to show how it scales
+            Path extractCsv = this.dir.resolve("extract.csv");
+            int[] workers = Main.EXTRACT_THREADS > 1 ? new int[]{1, Main.EXTRACT_THREADS} : new int[]{1};
+            for (int threads : workers) {
+                measure(threads == 1 ? "extractSerial" : "extractParallel", size, cache, () -> {
+                    long start = System.nanoTime();
+                    long rows = tree.extractTo(extractCsv.toString(), threads);
+                    if (rows != size) {
+                        throw new IllegalStateException("Extract wrote " + rows + " of " + size + " keys.");
+                    }
+                    return (System.nanoTime() - start) / size;
+                });
+            }
+            // Node codec: decode and encode blocks of the loaded tree, bypassing the buffer pool
+            long blocks = tree.nextBlockId - 1;
+            measure("readNode", size, cache, () -> {
+                Random r = new Random(3);
+                long start = System.nanoTime();
+                for (int i = 0; i < probes; i++) {
+                    tree.readNodeFromFile(1 + (long) (r.nextDouble() * blocks));
+                }
+                return (System.nanoTime() - start) / probes;
+            });
+            Main.BTreeNode[] nodes = new Main.BTreeNode[(int) Math.min(blocks, 1024)];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = tree.readNodeFromFile(1 + i);
+            }
+            measure("writeNode", size, cache, () -> {
+                long start = System.nanoTime();
+                for (int i = 0; i < probes; i++) {
+                    tree.writeNodeToFile(nodes[i % nodes.length]);
+                }
+                long elapsed = System.nanoTime() - start;
+                tree.commit();
+                return elapsed / probes;
+            });
+        } finally {
+            tree.closeIndexFile();
+        }
+        runLayouts(size, cache, evensCsv);
+    }
+
+    // Fanout, lookup and scan cost of each node layout, on dense keys and on random 64-bit keys
+    private void runLayouts(int size, int cache, Path denseCsv) throws Exception {
+        Random r = new Random(size + 1);
+        long[] wide = new long[size];
+        for (int i = 0; i < size; i++) {
+            wide[i] = r.nextLong();
+        }
+        Path wideCsv = writeCsv(wide, "wide.csv");
+        long[] wideSorted = wide.clone();
+        Arrays.sort(wideSorted);
+        for (Main.NodeLayout nodeLayout : Main.NodeLayout.values()) {
+            for (boolean dense : new boolean[]{true, false}) {
+                String layout = nodeLayout.name().toLowerCase() + (dense ? "" : "-wide");
+                Path file = this.dir.resolve("layout.idx");
+                Files.deleteIfExists(file);
+                Main.BTree tree = new Main.BTree(file.toString(), cache);
+                tree.createIndexFile(Main.DEFAULT_BLOCK_SIZE, nodeLayout);
+                quietly(() -> tree.loadData((dense ? denseCsv : wideCsv).toString()));
+                try {
+                    long blocks = tree.nextBlockId - 1 - tree.freeCount;
+                    recordShape("treeHeight", size, cache, layout, "levels", tree.height());
+                    recordShape("fileBlocks", size, cache, layout, "blocks", blocks);
+                    recordShape("keysPerNode", size, cache, layout, "keys/node", (double) size / blocks);
+                    int probes = Math.min(size, PROBES);
+                    measure("searchHitLayout", size, cache, layout, () -> {
+                        Random pick = new Random(1);
+                        long start = System.nanoTime();
+                        for (int i = 0; i < probes; i++) {
+                            int k = pick.nextInt(size);
+                            if (tree.searchKey(dense ? 2L * k : wide[k]) == null) {
+                                throw new IllegalStateException("Benchmark key missing.");
+                            }
+                        }
+                        return (System.nanoTime() - start) / probes;
+                    });
+                    measure("scanLayout", size, cache, layout, () -> {
+                        long start = System.nanoTime();
+                        long rows = 0;
+                        try (Main.PairStream c = tree.scan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                            while (c.next()) {
+                                rows++;
+                            }
+                        }
+                        return (System.nanoTime() - start) / Math.max(rows, 1);
+                    });
+                    // Ranges of up to 1% of the keys: a counted tree reads two paths, the others scan the range
+                    int ranges = Math.min(size, PROBES / 100);
+                    measure("countLayout", size, cache, layout, () -> {
+                        Random pick = new Random(4);
+                        long start = System.nanoTime();
+                        for (int i = 0; i < ranges; i++) {
+                            int lo = pick.nextInt(size);
+                            int hi = Math.min(size - 1, lo + pick.nextInt(size / 100 + 1));
+                            long counted = dense ? tree.count(2L * lo, 2L * hi) : tree.count(wideSorted[lo], wideSorted[hi]);
+                            if (counted != hi - lo + 1) {
+                                throw new IllegalStateException("Count of a range was " + counted + ", not " + (hi - lo + 1) + ".");
+                            }
+                        }
+                        return (System.nanoTime() - start) / ranges;
+                    });
+                } finally {
+                    tree.closeIndexFile();
+                }
+            }
+        }
+    }
+
+    // Run the warmup and measured iterations of one benchmark and record the result
+    private void measure(String name, int size, int cache, Pass pass) throws Exception {
+        measure(name, size, cache, null, pass);
+    }
+
+    private void measure(String name, int size, int cache, String layout, Pass pass) throws Exception {
+        System.out.printf("%s size=%d cachePages=%d%s: ", name, size, cache, layout == null ? "" : " layout=" + layout);
+        System.out.flush();
+        for (int i = 0; i < this.warmup; i++) {
+            pass.run();
+        }
+        long[] samples = new long[this.iterations];
+        for (int i = 0; i < this.iterations; i++) {
+            samples[i] = pass.run();
+        }
+        double mean = 0;
+        for (long s : samples) {
+            mean += s;
+        }
+        mean /= samples.length;
+        double variance = 0;
+        for (long s : samples) {
+            variance += (s - mean) * (s - mean);
+        }
+        double stdev = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0;
+        System.out.printf("%.1f ns/op (+/- %.1f)%n", mean, stdev);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"benchmark\": \"").append(name).append("\", ")
+                .append("\"params\": ").append(params(size, cache, layout)).append(", ")
+                .append("\"unit\": \"ns/op\", ")
+                .append(String.format(Locale.ROOT, "\"score\": %.1f, \"stdev\": %.1f, ", mean, stdev))
+                .append("\"samples\": ").append(Arrays.toString(samples)).append("}");
+        this.results.add(json.toString());
+    }
+
+    // Record a measured property of a built tree rather than a timing
+    private void recordShape(String name, int size, int cache, String layout, String unit, double score) {
+        System.out.printf("%s size=%d cachePages=%d layout=%s: %.1f %s%n", name, size, cache, layout, score, unit);
+        this.results.add("{\"benchmark\": \"" + name + "\", \"params\": " + params(size, cache, layout) + ", "
+                + "\"unit\": \"" + unit + "\", " + String.format(Locale.ROOT, "\"score\": %.1f}", score));
+    }
+
+    private static String params(int size, int cache, String layout) {
+        return "{\"size\": " + size + ", \"cachePages\": " + cache
+                + (layout == null ? "" : ", \"layout\": \"" + layout + "\"") + "}";
+    }
+
+    // A new tree that takes inserts directly, so the write benchmarks compare like with like
+    private Main.BTree freshTree(String name, int cache) throws IOException {
+        return freshTree(name, cache, 0);
+    }
+
+    private Main.BTree freshTree(String name, int cache, int memtableKeys) throws IOException {
+        Path file = this.dir.resolve(name);
+        Files.deleteIfExists(file);
+        Main.BTree tree = new Main.BTree(file.toString(), cache);
+        tree.memtableKeys = memtableKeys;
+        tree.createIndexFile();
+        return tree;
+    }
+
+    // Close a tree built by a write benchmark, counting the final commit, and return ns per operation
+    private static long finish(Main.BTree tree, long start, int ops) throws IOException {
+        tree.closeIndexFile();
+        return (System.nanoTime() - start) / ops;
+    }
+
+    private Path writeCsv(long[] keys, String name) throws IOException {
+        Path file = this.dir.resolve(name);
+        try (BufferedWriter w = Files.newBufferedWriter(file)) {
+            for (long k : keys) {
+                w.write(k + "," + k);
+                w.newLine();
+            }
+        }
+        return file;
+    }
+
+    private interface IoAction {
+        void run() throws IOException;
+    }
+
+    // loadData reports its own progress; keep it out of the benchmark output
+    private static void quietly(IoAction action) throws IOException {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            action.run();
+        } finally {
+            System.setOut(original);
+        }
+    }
+
+    private static long[] parseList(String list) {
+        String[] parts = list.split(",");
+        long[] values = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Long.parseLong(parts[i].trim());
+            if (values[i] <= 0) {
+                throw new NumberFormatException("Benchmark parameters must be positive: " + list);
+            }
+        }
+        return values;
+    }
+}
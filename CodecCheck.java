@@ -0,0 +1,180 @@
+//Shayan Saberi-Nikou, SXS220123
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Checks the node codec against the one it replaced: random fixed-layout nodes must encode to
+ * the same bytes through encodeNode as through the original per-long toBytes and
+ * ByteArrayOutputStream path, and a version-1 file written that way must read back node for
+ * node and re-encode to the blocks it was written from.
+ */
+class CodecCheck {
+    private static final int NODES_PER_SIZE = 1000;
+
+    // java CodecCheck; the exit status is 1 if the two encoders disagree
+    public static void main(String[] args) throws IOException {
+        try {
+            run();
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void run() throws IOException {
+        Path dir = Files.createTempDirectory("btree-codec");
+        try {
+            Random random = new Random(42);
+            long encoded = 0;
+            for (int blockSize : new int[] {Main.MIN_BLOCK_SIZE, 4096, Main.MAX_BLOCK_SIZE}) {
+                Main.BTree tree = new Main.BTree(dir.resolve("v2-" + blockSize + ".idx").toString());
+                tree.memtableKeys = 0;
+                tree.createIndexFile(blockSize, Main.NodeLayout.FIXED);
+                try {
+                    for (int i = 0; i < NODES_PER_SIZE; i++) {
+                        Main.BTreeNode node = randomNode(tree, random, i + 1);
+                        compare(tree, node, legacyEncode(node, 2, blockSize));
+                        encoded++;
+                    }
+                } finally {
+                    tree.closeIndexFile();
+                }
+            }
+            System.out.println("Encoded " + encoded + " version-2 nodes identically through both paths.");
+            System.out.println("Round-tripped " + roundTripV1(dir.resolve("v1.idx"), random) + " version-1 blocks.");
+        } finally {
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir)) {
+                for (Path p : leftovers) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // A root with one key over two leaves, written with the legacy encoder, then opened, read and re-encoded
+    private static int roundTripV1(Path path, Random random) throws IOException {
+        Main.BTree layout = new Main.BTree(path.toString());
+        layout.configureLayout(Main.V1_BLOCK_SIZE, Main.V1_MIN_DEGREE, Main.NodeLayout.FIXED);
+        Main.BTreeNode left = randomLeaf(layout, random, 2, 1, 0);
+        Main.BTreeNode right = randomLeaf(layout, random, 3, 1, left.keys[left.numKeys - 1] + 2);
+        long[] keys = new long[layout.maxKeys];
+        long[] values = new long[layout.maxKeys];
+        long[] children = new long[layout.maxChildren];
+        keys[0] = left.keys[left.numKeys - 1] + 1;
+        values[0] = random.nextLong();
+        children[0] = 2;
+        children[1] = 3;
+        Main.BTreeNode root = new Main.BTreeNode(1, 0, 1, false, keys, values, children);
+        List<Main.BTreeNode> nodes = Arrays.asList(root, left, right);
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(Main.MAGIC_NUMBER);
+        header.write(toBytes(1));
+        header.write(toBytes(4));
+        file.write(Arrays.copyOf(header.toByteArray(), Main.V1_BLOCK_SIZE));
+        List<byte[]> blocks = new ArrayList<>();
+        for (Main.BTreeNode node : nodes) {
+            blocks.add(legacyEncode(node, 1, Main.V1_BLOCK_SIZE));
+            file.write(blocks.get(blocks.size() - 1));
+        }
+        Files.write(path, file.toByteArray());
+
+        Main.BTree tree = new Main.BTree(path.toString());
+        tree.openIndexFile("r");
+        try {
+            tree.loadBTree();
+            if (tree.formatVersion != 1 || tree.rootId != 1) {
+                throw new IllegalStateException("Version-1 header read back as format " + tree.formatVersion + " with root " + tree.rootId + ".");
+            }
+            for (int i = 0; i < nodes.size(); i++) {
+                Main.BTreeNode expected = nodes.get(i);
+                Main.BTreeNode node = tree.readNodeFromFile(expected.blockId);
+                if (node.parentId != expected.parentId || node.numKeys != expected.numKeys || node.leaf != expected.leaf
+                        || !Arrays.equals(node.keys, expected.keys) || !Arrays.equals(node.values, expected.values)
+                        || !Arrays.equals(node.children, expected.children)) {
+                    throw new IllegalStateException("Version-1 block " + expected.blockId + " decoded differently from what was written.");
+                }
+                compare(tree, node, blocks.get(i));
+                for (int k = 0; k < expected.numKeys; k++) {
+                    Long value = tree.searchKey(expected.keys[k]);
+                    if (value == null || value != expected.values[k]) {
+                        throw new IllegalStateException("Key " + expected.keys[k] + " of version-1 block " + expected.blockId + " not found.");
+                    }
+                }
+            }
+        } finally {
+            tree.closeIndexFile();
+        }
+        return nodes.size();
+    }
+
+    private static void compare(Main.BTree tree, Main.BTreeNode node, byte[] expected) {
+        ByteBuffer actual = tree.encodeNode(node);
+        byte[] bytes = new byte[expected.length];
+        actual.get(0, bytes);
+        if (actual.limit() != expected.length || !Arrays.equals(bytes, expected)) {
+            throw new IllegalStateException("Node " + node.blockId + " in a version-" + tree.formatVersion + " file with "
+                    + tree.blockSize + "-byte blocks encodes differently through the two paths.");
+        }
+    }
+
+    // Leaf or inner node with random keys, values and children filling a random share of its slots
+    private static Main.BTreeNode randomNode(Main.BTree tree, Random random, long blockId) {
+        if (random.nextBoolean()) {
+            return randomLeaf(tree, random, blockId, random.nextLong(), random.nextInt(1 << 20));
+        }
+        Main.BTreeNode node = randomLeaf(tree, random, blockId, random.nextLong(), random.nextInt(1 << 20));
+        long[] children = new long[tree.maxChildren];
+        for (int i = 0; i <= node.numKeys; i++) {
+            children[i] = 1 + random.nextInt(Integer.MAX_VALUE);
+        }
+        return new Main.BTreeNode(blockId, node.parentId, node.numKeys, false, node.keys, node.values, children);
+    }
+
+    private static Main.BTreeNode randomLeaf(Main.BTree tree, Random random, long blockId, long parentId, long firstKey) {
+        int numKeys = 1 + random.nextInt(tree.maxKeys);
+        long[] keys = new long[tree.maxKeys];
+        long[] values = new long[tree.maxKeys];
+        long key = firstKey;
+        for (int i = 0; i < numKeys; i++) {
+            keys[i] = key;
+            values[i] = random.nextLong();
+            key += 1 + random.nextInt(1000);
+        }
+        return new Main.BTreeNode(blockId, parentId, numKeys, true, keys, values, new long[tree.maxChildren]);
+    }
+
+    // The encoder before nodes went through CodecBuffer: one toBytes array per long, zero-padded to the block
+    private static byte[] legacyEncode(Main.BTreeNode node, int formatVersion, int blockSize) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(toBytes(node.blockId));
+        bos.write(toBytes(node.parentId));
+        bos.write(toBytes(node.numKeys));
+        if (formatVersion >= 2) {
+            bos.write(toBytes(node.leaf ? Main.NODE_FLAG_LEAF : 0));
+        }
+        for (long k : node.keys) {
+            bos.write(toBytes(k));
+        }
+        for (long v : node.values) {
+            bos.write(toBytes(v));
+        }
+        for (long c : node.children) {
+            bos.write(toBytes(c));
+        }
+        return Arrays.copyOf(bos.toByteArray(), blockSize);
+    }
+
+    // Convert a long to an 8-byte array
+    private static byte[] toBytes(long n) {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(n);
+        return buffer.array();
+    }
+}
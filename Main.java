@@ -1,485 +1,7605 @@
 //Shayan Saberi-Nikou, SXS220123
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public class Main {
 
     // Constants for the B-Tree structure and file format
-    private static final byte[] MAGIC_NUMBER = "4337PRJ3".getBytes();
-    private static final int BLOCK_SIZE = 512;
-    private static final int MIN_DEGREE = 10;
-    private static final int MAX_KEYS = 2 * MIN_DEGREE - 1;
-    private static final int MAX_CHILDREN = 2 * MIN_DEGREE;
+    // Version 1 files: 512-byte blocks, minimum degree 10, no leaf flag in nodes; opened read-only
+    static final byte[] MAGIC_NUMBER = "4337PRJ3".getBytes();
+    static final int V1_BLOCK_SIZE = 512;
+    static final int V1_MIN_DEGREE = 10;
+    // Version 2 files record their block size and minimum degree in the header
+    private static final byte[] MAGIC_NUMBER_V2 = "4337IDX2".getBytes();
+    static final int MIN_BLOCK_SIZE = 512;
+    static final int MAX_BLOCK_SIZE = 65536;
+    // Longs in a version-2 node besides its keys, values and children: blockId, parentId, numKeys, flags
+    private static final int NODE_HEADER_LONGS = 4;
+    static final long NODE_FLAG_LEAF = 1;
+    // Marks a block on the free list; its parentId slot holds the next free block
+    private static final long NODE_FLAG_FREE = 2;
+    // Header flag: nodes use the compressed layout, in which the header words are followed by each key
+    // as a varint delta from the key before it (the first from zero), each value, and each child
+    private static final long FILE_FLAG_COMPRESSED = 1;
+    // Longest varint, and the most one key, value and child of a compressed node can take
+    private static final int MAX_VARINT_BYTES = 10;
+    private static final int MAX_COMPRESSED_ENTRY = 3 * MAX_VARINT_BYTES;
+    // Bytes a compressed node keeps free for one promoted separator plus one replaced key and value
+    private static final int COMPRESSED_SLACK = 2 * MAX_COMPRESSED_ENTRY;
+    // Header flag: the tree is a B+Tree. Pairs live only in the leaves, each of which stores its keys,
+    // its values and then the block of the next leaf; inner nodes store separator keys and children.
+    private static final long FILE_FLAG_BPLUS = 2;
+    // Header flag: the tree keeps order statistics. Each inner node stores, after its keys, values and
+    // children, the number of pairs under each child and the sum of their values.
+    private static final long FILE_FLAG_COUNTED = 4;
 
-    // Convert a long to an 8-byte array
-    private static byte[] toBytes(long n) {
-        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-        buffer.putLong(n);
-        return buffer.array();
+    // Block size of newly created index files, a power of two from 512 to 65536 (-Dbtree.blockSize)
+    static final int DEFAULT_BLOCK_SIZE = Integer.getInteger("btree.blockSize", 4096);
+    // Node layout of newly created index files: "fixed", "compressed", "bplus" or "counted" (-Dbtree.nodeLayout)
+    private static final NodeLayout NODE_LAYOUT = enumProperty("btree.nodeLayout", "fixed", NodeLayout.class);
+    // Target fraction of a node's key slots that a bulk load packs into each node, from 0.5 to 1 (-Dbtree.fillFactor)
+    private static final double FILL_FACTOR = doubleProperty("btree.fillFactor", 0.9);
+    // Storage backend used when an index file is opened: "raf" or "mmap" (-Dbtree.storage)
+    static final String STORAGE_KIND = System.getProperty("btree.storage", "raf");
+    // Megabytes in each region the mmap backend maps at a time, from 1 to 2047 so a region fits one buffer (-Dbtree.mmapChunkMB)
+    private static final long MMAP_CHUNK_MB = Long.getLong("btree.mmapChunkMB", 4L);
+    private static final long MAX_MMAP_CHUNK_MB = Integer.MAX_VALUE >> 20;
+    // When a committed change must reach the disk: "sync", "group" or "os" (-Dbtree.durability)
+    static final Durability DURABILITY = enumProperty("btree.durability", "sync", Durability.class);
+    // Group commit forces the log once this many commits are pending or this much time has passed
+    private static final int GROUP_COMMIT_SIZE = Integer.getInteger("btree.groupCommitSize", 64);
+    private static final long GROUP_COMMIT_MILLIS = Long.getLong("btree.groupCommitMs", 10L);
+    // Committed log volume that triggers a background checkpoint into the index file (-Dbtree.checkpointMB)
+    private static final long CHECKPOINT_BYTES = Long.getLong("btree.checkpointMB", 8L) << 20;
+    // Worker threads used by extract; the key space is cut into several ranges per thread (-Dbtree.extractThreads)
+    static final int EXTRACT_THREADS = Integer.getInteger("btree.extractThreads", Runtime.getRuntime().availableProcessors());
+    private static final int EXTRACT_RANGES_PER_THREAD = 4;
+    // Children a scan reads ahead of itself at each level, and the threads that read them (-Dbtree.prefetchDepth,
+    // -Dbtree.prefetchThreads); a depth or a thread count of 0 turns read-ahead off
+    private static final int PREFETCH_DEPTH = Integer.getInteger("btree.prefetchDepth", 8);
+    private static final int PREFETCH_THREADS = Integer.getInteger("btree.prefetchThreads", 4);
+    // Read-aheads waiting for a thread beyond this many are dropped
+    private static final int PREFETCH_QUEUE = 1024;
+    // Parser threads and rows per sorted run when load sorts its input externally (-Dbtree.loadThreads, -Dbtree.loadRunRows)
+    private static final int LOAD_THREADS = Integer.getInteger("btree.loadThreads", Runtime.getRuntime().availableProcessors());
+    private static final int LOAD_RUN_ROWS = Integer.getInteger("btree.loadRunRows", 1 << 18);
+    // Most runs merged in one pass; more than this are first merged into longer runs
+    private static final int MERGE_FAN_IN = 64;
+    // A load into a non-empty tree rebuilds it when the new rows are at least 1/MERGE_REBUILD_SHARE of its rows
+    private static final int MERGE_REBUILD_SHARE = 8;
+    // Target false-positive rate of the Bloom filter kept beside each index; 0 turns the filter off
+    private static final double BLOOM_FPP = doubleProperty("btree.bloomFpp", 0.01);
+    // A filter is sized for this many times the keys it starts with, and rebuilt twice as large once it holds more
+    private static final int BLOOM_GROWTH = 2;
+    private static final long BLOOM_MIN_KEYS = 1024;
+    // Inserts an index holds in a sorted in-memory buffer, logged beside it, before flushing them into
+    // the tree as one sorted batch (-Dbtree.memtableKeys); 0 sends every insert straight to the tree
+    static final int MEMTABLE_KEYS = Integer.getInteger("btree.memtableKeys", 0);
+
+    // The enum constant a system property names, in any case, or null when it names none. A bad value
+    // then fails the index operations that need it with invalidProperty's message, not class init.
+    private static <E extends Enum<E>> E enumProperty(String name, String fallback, Class<E> type) {
+        String value = System.getProperty(name, fallback).toUpperCase(Locale.ROOT);
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equals(value)) {
+                return constant;
+            }
+        }
+        return null;
+    }
+
+    private static <E extends Enum<E>> IOException invalidProperty(String name, Class<E> type) {
+        StringJoiner names = new StringJoiner(", ");
+        for (E constant : type.getEnumConstants()) {
+            names.add(constant.name().toLowerCase(Locale.ROOT));
+        }
+        return new IOException("Invalid " + name + " \"" + System.getProperty(name) + "\"; expected one of " + names + ".");
+    }
+
+    // A numeric system property, or NaN when it is not a number, so a typo fails the operations that use it
+    private static double doubleProperty(String name, double fallback) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // Fail an operation that needs a numeric property which is not a number from 'min' to 'max'
+    private static void requireBetween(String name, double value, double min, double max) throws IOException {
+        if (!(value >= min && value <= max)) {
+            throw new IOException("Invalid " + name + " \"" + System.getProperty(name) + "\"; expected a number from " + min + " to " + max + ".");
+        }
+    }
+
+    // Fail an operation that needs a count property which was set below 1
+    private static void requirePositive(String name, long value) throws IOException {
+        if (value < 1) {
+            throw new IOException("Invalid " + name + " \"" + System.getProperty(name) + "\"; expected at least 1.");
+        }
     }
 
-    // Convert an 8-byte array to a long
-    private static long fromBytes(byte[] b) {
-        ByteBuffer buffer = ByteBuffer.wrap(b);
-        return buffer.getLong();
+    // Buffer pool size in nodes; -Dbtree.cacheMB takes precedence over -Dbtree.cachePages when set. A size
+    // that checkCacheSize rejects falls back to the default here, since the open it is for will fail anyway.
+    private static int cachePages(int blockSize) {
+        Long megabytes = Long.getLong("btree.cacheMB");
+        if (megabytes != null && megabytes >= 1) {
+            return (int) ((megabytes << 20) / blockSize);
+        }
+        int pages = Integer.getInteger("btree.cachePages", 1024);
+        return System.getProperty("btree.cacheMB") == null && pages >= 1 ? pages : 1024;
+    }
+
+    private static void checkCacheSize() throws IOException {
+        if (System.getProperty("btree.cacheMB") != null) {
+            Long megabytes = Long.getLong("btree.cacheMB");
+            requirePositive("btree.cacheMB", megabytes == null ? 0 : megabytes);
+        } else {
+            requirePositive("btree.cachePages", Integer.getInteger("btree.cachePages", 1024));
+        }
+    }
+
+    // Largest minimum degree t whose version-2 node (6t + 2 longs) fits in one block
+    private static int minDegreeFor(int blockSize) {
+        return (blockSize / Long.BYTES - 2) / 6;
+    }
+
+    // Largest minimum degree t whose counted node (10t + 2 longs: a count and a sum beside each child) fits in one block
+    private static int countedMinDegreeFor(int blockSize) {
+        return (blockSize / Long.BYTES - 2) / 10;
+    }
+
+    // Largest minimum degree t whose B+Tree node of 2t - 1 keys fits in one block: a leaf takes
+    // 2(2t - 1) + 1 longs after its header, an inner node one fewer
+    private static int bplusMinDegreeFor(int blockSize) {
+        return ((blockSize / Long.BYTES - NODE_HEADER_LONGS - 1) / 2 + 1) / 2;
+    }
+
+    // Largest minimum degree t for which a compressed node of 2t - 1 keys, each taking the most it
+    // can, still leaves the slack free; merging two minimal nodes can then never overflow a block
+    private static int compressedMinDegreeFor(int blockSize) {
+        int worstCaseKeys = (blockSize - COMPRESSED_SLACK - NODE_HEADER_LONGS * Long.BYTES - MAX_VARINT_BYTES) / MAX_COMPRESSED_ENTRY;
+        return (worstCaseKeys + 1) / 2;
+    }
+
+    // Most keys a compressed node may hold, bounding the arrays it decodes into; an entry of a full
+    // node takes a few bytes even when its key delta, value and child are tiny
+    private static int compressedMaxKeys(int blockSize) {
+        return (blockSize - NODE_HEADER_LONGS * Long.BYTES) / 4;
     }
 
     /**
      * Represents a single node in the B-Tree.
      * Each node stores keys, values, and pointers to child nodes.
+     * Threads read or change a node only while they have it pinned and hold its latch.
      */
     static class BTreeNode {
         long blockId;
         long parentId;
         int numKeys;
+        boolean leaf;
         long[] keys;
         long[] values;
         long[] children;
+        // Set under the write latch when the block is freed. A thread that latched this copy through
+        // a root id read earlier must start over even if the block has since become the root again.
+        boolean freed;
+        // Snapshot generation the node was created in; 0 for a node read from the file. A snapshot may
+        // read every node made in its own generation or earlier.
+        long generation;
+        // B+Tree leaves: the block of the next leaf in key order, or 0 for the last one
+        long next;
+        // Counted trees: the pairs under each child and the sum of their values; null in other layouts
+        long[] counts;
+        long[] sums;
+        final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
-        BTreeNode(long blockId) {
-            this(blockId, 0, 0, new long[MAX_KEYS], new long[MAX_KEYS], new long[MAX_CHILDREN]);
+        // An empty leaf with room for 'maxKeys' keys
+        BTreeNode(long blockId, int maxKeys) {
+            this(blockId, 0, 0, true, new long[maxKeys], new long[maxKeys], new long[maxKeys + 1]);
         }
 
-        BTreeNode(long blockId, long parentId, int numKeys, long[] keys, long[] values, long[] children) {
+        BTreeNode(long blockId, long parentId, int numKeys, boolean leaf, long[] keys, long[] values, long[] children) {
             this.blockId = blockId;
             this.parentId = parentId;
             this.numKeys = numKeys;
+            this.leaf = leaf;
             this.keys = keys;
             this.values = values;
             this.children = children;
         }
 
         boolean isLeaf() {
-            for (long c : children) {
-                if (c != 0) return false;
+            return leaf;
+        }
+
+        // Index of the first key >= 'key' at or after position 'from'
+        int lowerBound(long key, int from) {
+            int lo = from;
+            int hi = numKeys;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
             }
-            return true;
+            return lo;
+        }
+
+        // Index of the first key > 'key'
+        int upperBound(long key) {
+            int lo = 0;
+            int hi = numKeys;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
         }
     }
 
     /**
-     * A Least Recently Used (LRU) cache for B-Tree nodes.
-     * Ensures that not all nodes stay in memory at once, and nodes are saved back
-     * to the file before being evicted from the cache.
+     * Buffer pool of B-Tree nodes with dirty tracking, pinning, and 2Q replacement.
+     * A node read for the first time enters a FIFO probation queue; only a node requested
+     * again after falling out of it (remembered in a ghost list) joins the main queue,
+     * so a full scan cycles through probation without pushing out the hot upper levels.
+     * Only dirty nodes are written back, and pinned nodes are never evicted.
+     *
+     * Lookups of resident nodes go through a ConcurrentHashMap and an atomic pin count
+     * without locking. Misses, admissions and evictions lock one of several stripes,
+     * each running its own 2Q queues (with a second-chance main queue) over its share
+     * of the capacity.
      */
-    static class LRUNodeCache {
-        private int capacity;
-        private LinkedHashMap<Long, BTreeNode> cache;
-        private BTree btree;
+    static class BufferPool {
+        static class Frame {
+            final long blockId;
+            volatile BTreeNode node;
+            volatile boolean dirty;
+            volatile boolean referenced;
+            // Read ahead of a scan and not pinned since
+            volatile boolean prefetched;
+            // -1 once the frame has been evicted and can no longer be pinned
+            final AtomicInteger pins = new AtomicInteger();
 
-        LRUNodeCache(int capacity, BTree btree) {
-            this.capacity = capacity;
-            this.btree = btree;
-            // accessOrder=true makes LinkedHashMap order entries by access
-            this.cache = new LinkedHashMap<Long, BTreeNode>(16, 0.75f, true) {
-                @Override
-                protected boolean removeEldestEntry(Map.Entry<Long,BTreeNode> eldest) {
-                    if (size() > LRUNodeCache.this.capacity) {
-                        try {
-                            btree.writeNodeToFile(eldest.getValue());
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+            Frame(long blockId, BTreeNode node, boolean dirty) {
+                this.blockId = blockId;
+                this.node = node;
+                this.dirty = dirty;
+            }
+
+            boolean tryPin() {
+                while (true) {
+                    int p = this.pins.get();
+                    if (p < 0) {
+                        return false;
+                    }
+                    if (this.pins.compareAndSet(p, p + 1)) {
                         return true;
                     }
-                    return false;
                 }
-            };
+            }
+        }
+
+        // 2Q queues for the blocks that hash to one stripe; guarded by the stripe's monitor
+        static class Stripe {
+            final int capacity;
+            final int probationCapacity;
+            final int ghostCapacity;
+            final ArrayDeque<Frame> probation = new ArrayDeque<>();
+            final ArrayDeque<Frame> main = new ArrayDeque<>();
+            final LinkedHashSet<Long> ghosts = new LinkedHashSet<>();
+
+            Stripe(int capacity) {
+                this.capacity = capacity;
+                this.probationCapacity = Math.max(capacity / 4, 1);
+                this.ghostCapacity = Math.max(capacity / 2, 1);
+            }
+        }
+
+        private final BTree btree;
+        private final ConcurrentHashMap<Long, Frame> frames = new ConcurrentHashMap<>();
+        private final Stripe[] stripes;
+
+        BufferPool(int capacity, BTree btree) {
+            // A split pins three nodes while the path above it is still cached
+            capacity = Math.max(capacity, 8);
+            int count = Integer.highestOneBit(Math.max(1, Math.min(64, capacity / 16)));
+            this.stripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                this.stripes[i] = new Stripe(capacity / count);
+            }
+            this.btree = btree;
+        }
+
+        // Return the node for 'blockId', pinned in the pool until a matching unpin
+        BTreeNode pin(long blockId) throws IOException {
+            Frame f = this.frames.get(blockId);
+            if (f != null && f.tryPin()) {
+                f.referenced = true;
+                this.btree.metrics.cacheHits.increment();
+                if (f.prefetched) {
+                    f.prefetched = false;
+                    this.btree.metrics.prefetchHits.increment();
+                }
+                return f.node;
+            }
+            Stripe stripe = stripeFor(blockId);
+            synchronized (stripe) {
+                // Evictions happen under this lock, so a frame found here can always be pinned
+                f = this.frames.get(blockId);
+                if (f != null && f.tryPin()) {
+                    f.referenced = true;
+                    this.btree.metrics.cacheHits.increment();
+                    if (f.prefetched) {
+                        f.prefetched = false;
+                        this.btree.metrics.prefetchHits.increment();
+                    }
+                    return f.node;
+                }
+                // If not in the pool, read from file and admit it
+                this.btree.metrics.cacheMisses.increment();
+                f = new Frame(blockId, this.btree.readNodeFromFile(blockId), false);
+                f.pins.set(1);
+                admit(stripe, f);
+                return f.node;
+            }
+        }
+
+        boolean contains(long blockId) {
+            return this.frames.containsKey(blockId);
+        }
+
+        // Read a block into the pool unpinned, unless it is there already, and return its node. It
+        // joins probation like any first read, so read-ahead nodes a scan never reaches are the first to go.
+        BTreeNode prefetch(long blockId) throws IOException {
+            Stripe stripe = stripeFor(blockId);
+            Frame f;
+            synchronized (stripe) {
+                f = this.frames.get(blockId);
+                if (f != null) {
+                    return f.node;
+                }
+                f = new Frame(blockId, this.btree.readNodeFromFile(blockId), false);
+                f.prefetched = true;
+                admit(stripe, f);
+            }
+            this.btree.metrics.prefetches.increment();
+            return f.node;
+        }
+
+        void unpin(BTreeNode node) {
+            Frame f = this.frames.get(node.blockId);
+            // A freed block may already be cached again under a new node; only release our own frame
+            if (f != null && f.node == node && f.pins.get() > 0) {
+                f.pins.decrementAndGet();
+            }
+        }
+
+        // Forget a freed block without writing it back. Threads that still have the old node pinned
+        // keep a consistent copy; its frame leaves the queues the next time eviction reaches it.
+        void discard(long blockId) {
+            Frame f = this.frames.remove(blockId);
+            if (f != null) {
+                f.dirty = false;
+            }
         }
 
-        BTreeNode get(long blockId) throws IOException {
-            if (cache.containsKey(blockId)) {
-                return cache.get(blockId);
+        // Admit a newly allocated node as dirty and pinned
+        BTreeNode pinNew(BTreeNode node) throws IOException {
+            Frame f = new Frame(node.blockId, node, true);
+            f.pins.set(1);
+            Stripe stripe = stripeFor(node.blockId);
+            synchronized (stripe) {
+                admit(stripe, f);
             }
-            // If not in cache, read from file and insert into the cache
-            BTreeNode node = btree.readNodeFromFile(blockId);
-            cache.put(blockId, node);
             return node;
         }
 
-        void put(long blockId, BTreeNode node) {
-            cache.put(blockId, node);
+        // Record that a pinned node has changed
+        void put(long blockId, BTreeNode node) throws IOException {
+            Frame f = this.frames.get(blockId);
+            if (f == null) {
+                pinNew(node);
+                unpin(node);
+            } else {
+                f.node = node;
+                f.dirty = true;
+            }
         }
 
-        void clear() {
-            // Write all cached nodes back to the file before clearing
-            for (Entry<Long,BTreeNode> entry : cache.entrySet()) {
+        // Write every dirty node back to the file, keeping them cached
+        void flush() throws IOException {
+            for (Frame f : this.frames.values()) {
+                if (!f.dirty || !f.tryPin()) {
+                    continue;
+                }
                 try {
-                    btree.writeNodeToFile(entry.getValue());
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    BTreeNode node = f.node;
+                    node.latch.readLock().lock();
+                    try {
+                        writeBack(f);
+                    } finally {
+                        node.latch.readLock().unlock();
+                    }
+                } finally {
+                    f.pins.decrementAndGet();
+                }
+            }
+        }
+
+        void clear() {
+            // Write all dirty nodes back to the file before clearing
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (Stripe stripe : this.stripes) {
+                synchronized (stripe) {
+                    stripe.probation.clear();
+                    stripe.main.clear();
+                    stripe.ghosts.clear();
+                }
+            }
+            this.frames.clear();
+        }
+
+        private Stripe stripeFor(long blockId) {
+            long h = blockId * 0x9E3779B97F4A7C15L;
+            return this.stripes[(int) (h >>> 32) & (this.stripes.length - 1)];
+        }
+
+        private void admit(Stripe stripe, Frame f) throws IOException {
+            while (stripe.probation.size() + stripe.main.size() >= stripe.capacity && evictOne(stripe)) {
+                // keep evicting until there is room or everything left is pinned
+            }
+            if (stripe.ghosts.remove(f.blockId)) {
+                stripe.main.addLast(f);
+            } else {
+                stripe.probation.addLast(f);
+            }
+            this.frames.put(f.blockId, f);
+        }
+
+        // Evict from probation while it is over its share, otherwise from the main queue
+        private boolean evictOne(Stripe stripe) throws IOException {
+            if (stripe.probation.size() > stripe.probationCapacity || stripe.main.isEmpty()) {
+                return evictFrom(stripe, stripe.probation, true) || evictFrom(stripe, stripe.main, false);
+            }
+            return evictFrom(stripe, stripe.main, false) || evictFrom(stripe, stripe.probation, true);
+        }
+
+        // Walk the queue from its head, skipping pinned frames and giving referenced ones in
+        // the main queue a second chance, and evict the first remaining frame
+        private boolean evictFrom(Stripe stripe, ArrayDeque<Frame> queue, boolean probation) throws IOException {
+            for (int n = 2 * queue.size(); n > 0; n--) {
+                Frame f = queue.pollFirst();
+                if (this.frames.get(f.blockId) != f) {
+                    // Discarded after its block was freed; dropping it frees the slot
+                    return true;
                 }
+                if (!probation && f.referenced) {
+                    f.referenced = false;
+                    queue.addLast(f);
+                    continue;
+                }
+                if (!f.pins.compareAndSet(0, -1)) {
+                    queue.addLast(f);
+                    continue;
+                }
+                writeBack(f);
+                this.frames.remove(f.blockId, f);
+                this.btree.metrics.cacheEvictions.increment();
+                if (probation) {
+                    stripe.ghosts.add(f.blockId);
+                    if (stripe.ghosts.size() > stripe.ghostCapacity) {
+                        Iterator<Long> oldest = stripe.ghosts.iterator();
+                        oldest.next();
+                        oldest.remove();
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void writeBack(Frame f) throws IOException {
+            if (f.dirty) {
+                this.btree.metrics.dirtyWritebacks.increment();
+                this.btree.writeNodeToFile(f.node);
+                f.dirty = false;
             }
-            cache.clear();
         }
     }
 
     /**
-     * BTree class handles all operations on the B-Tree index such as
-     * creating, opening, inserting, searching, loading, extracting, and printing.
+     * Reads blocks a scan is about to reach into the buffer pool on a few shared background
+     * threads, so that several reads are outstanding while the scan works through the blocks
+     * before them. A read-ahead is only a hint: one that finds no free thread and no room in the
+     * queue is dropped, one that finds its tree closed or being swapped is skipped, and one whose
+     * block has been freed in the meantime loads a node nothing points to, which is later
+     * replaced or evicted. Read failures are ignored; the scan reads the block itself.
      */
-    static class BTree {
-        private String filePath;
-        private RandomAccessFile file;
-        long rootId = 0;
-        long nextBlockId = 1;
-        LRUNodeCache cache;
+    static final class Prefetcher {
+        // Null when read-ahead is off, by a depth or a thread count of 0
+        private static final ThreadPoolExecutor POOL = PREFETCH_DEPTH <= 0 || PREFETCH_THREADS <= 0 ? null
+                : new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(PREFETCH_QUEUE), runnable -> {
+                            Thread thread = new Thread(runnable, "btree-prefetch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }, new ThreadPoolExecutor.DiscardPolicy());
 
-        BTree(String filePath) {
-            this.filePath = filePath;
-            this.cache = new LRUNodeCache(3, this);
+        private Prefetcher() {
         }
 
-        // ====== Public interface methods (reordered for clarity) ======
+        private interface Task {
+            void run() throws IOException;
+        }
 
-        void openIndexFile(String mode) throws FileNotFoundException {
-            this.file = new RandomAccessFile(this.filePath, mode);
+        // Queue a read of one block; each is its own task so that the reads overlap
+        private static void submit(BTree btree, long blockId) {
+            execute(btree, () -> btree.cache.prefetch(blockId));
         }
 
-        void closeIndexFile() {
-            if (this.file != null) {
-                this.cache.clear();
+        private static void execute(BTree btree, Task task) {
+            POOL.execute(() -> {
+                if (!btree.readers.tryEnter()) {
+                    return;
+                }
                 try {
-                    this.file.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    if (btree.storage != null) {
+                        task.run();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // A hint only; the scan will read the block itself if it gets there
+                } finally {
+                    btree.readers.exit();
+                }
+            });
+        }
+
+        // Keep up to PREFETCH_DEPTH children after children[descending] of an inner node queued,
+        // given that children up to index 'queued' already are. The caller has the node latched, or
+        // it cannot change. Reads are queued in batches of at least half the depth, so a scan hands
+        // a task to the pool every few children rather than for each one. Returns the new 'queued'.
+        static int readAhead(BTree btree, BTreeNode node, int queued, int descending) {
+            if (POOL == null || node.isLeaf() || queued - descending > PREFETCH_DEPTH / 2) {
+                return queued;
+            }
+            int to = Math.min(descending + PREFETCH_DEPTH, node.numKeys);
+            for (int c = Math.max(queued, descending) + 1; c <= to; c++) {
+                if (!btree.cache.contains(node.children[c])) {
+                    submit(btree, node.children[c]);
                 }
-                this.file = null;
             }
+            return Math.max(queued, to);
         }
 
-        void loadBTree() throws IOException {
-            if (this.file == null) {
-                throw new IOException("File is not open.");
+        // Keep the PREFETCH_DEPTH leaves after a B+Tree leaf queued, given that 'ahead' of them already
+        // are, if the scan goes on past this leaf. Each leaf is only found through the one before it, so
+        // a single task walks the chain and the reads overlap with the scan rather than with each other.
+        // The caller has the leaf latched, or it cannot change. Returns the new 'ahead'.
+        static int readChain(BTree btree, BTreeNode leaf, int ahead, long toKey) {
+            if (POOL == null || ahead > PREFETCH_DEPTH / 2 || leaf.next == 0
+                    || leaf.numKeys > 0 && leaf.keys[leaf.numKeys - 1] > toKey) {
+                return ahead;
             }
-            this.cache.clear();
-            this.readHeader();
+            long first = leaf.next;
+            execute(btree, () -> {
+                long id = first;
+                for (int n = 0; n < PREFETCH_DEPTH && id != 0; n++) {
+                    BTreeNode node = btree.cache.prefetch(id);
+                    node.latch.readLock().lock();
+                    try {
+                        id = node.next;
+                    } finally {
+                        node.latch.readLock().unlock();
+                    }
+                }
+            });
+            return PREFETCH_DEPTH;
         }
+    }
 
-        void insert(long key, long value) throws IOException {
-            if (this.rootId == 0) {
-                // Create a new root if tree is empty
-                BTreeNode root = new BTreeNode(1);
-                root.numKeys = 1;
-                root.keys[0] = key;
-                root.values[0] = value;
-                this.rootId = root.blockId;
-                this.cache.put(root.blockId, root);
-                this.writeHeader();
-            } else {
-                BTreeNode root = this.cache.get(this.rootId);
-                // If root is full, split it first
-                if (root.numKeys == MAX_KEYS) {
-                    BTreeNode newRoot = new BTreeNode(this.nextBlockId);
-                    this.nextBlockId++;
-                    newRoot.children[0] = root.blockId;
-                    this.rootId = newRoot.blockId;
-                    this.splitChild(newRoot, 0, root);
-                    this.writeHeader();
-                    this.insertNonFull(newRoot, key, value);
-                } else {
-                    // Insert into root if not full
-                    this.insertNonFull(root, key, value);
+    /**
+     * Ordered cursor over the key-value pairs of a BTree whose keys lie in [fromKey, toKey].
+     * It walks the tree with an explicit stack of (node, next key index) frames, so it holds
+     * at most one pinned node per level and hands out one pair at a time.
+     *
+     * Nodes are read under their latches. When another thread has changed the tree since the
+     * stack was built, the cursor descends again from the root just past the last key it
+     * returned, so keys present for the whole scan are seen once and in order.
+     *
+     * In a B+Tree the stack holds only the current leaf: the cursor descends once and then
+     * follows the leaf chain, reading each leaf in turn.
+     */
+    static class Cursor implements PairStream {
+        private static final int MAX_HEIGHT = 64;
+
+        private final BTree btree;
+        private final long fromKey;
+        private final long toKey;
+        private final BTreeNode[] nodes = new BTreeNode[MAX_HEIGHT];
+        private final int[] positions = new int[MAX_HEIGHT];
+        // Last child index at each level that has been queued for read-ahead
+        private final int[] queued = new int[MAX_HEIGHT];
+        // B+Tree leaves queued for read-ahead beyond the current one
+        private int ahead;
+        private int depth = -1;
+        private long modifications;
+        private boolean started = false;
+        private boolean done = false;
+        private long key;
+        private long value;
+        // Last key returned and how many pairs with it have been returned, and how many of those a
+        // re-seek, which lands on the first pair with that key, has yet to pass over
+        private long lastKey;
+        private long sameKey = 0;
+        private long skip = 0;
+
+        Cursor(BTree btree, long fromKey, long toKey) throws IOException {
+            this.btree = btree;
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            btree.readers.enter();
+            try {
+                seek(fromKey, true);
+            } finally {
+                btree.readers.exit();
+            }
+        }
+
+        // Descend toward 'bound', leaving each node positioned at its first key >= bound (> when exclusive)
+        private void seek(long bound, boolean inclusive) throws IOException {
+            close();
+            this.modifications = this.btree.modifications.get();
+            this.ahead = 0;
+            long blockId = this.btree.rootId;
+            while (blockId != 0) {
+                BTreeNode node = push(blockId);
+                node.latch.readLock().lock();
+                try {
+                    int i = inclusive ? node.lowerBound(bound, 0) : node.upperBound(bound);
+                    this.positions[this.depth] = i;
+                    if (!this.btree.bplus) {
+                        this.queued[this.depth] = Prefetcher.readAhead(this.btree, node, this.queued[this.depth], i);
+                    }
+                    blockId = node.isLeaf() ? 0 : node.children[i];
+                } finally {
+                    node.latch.readLock().unlock();
+                }
+                if (this.btree.bplus && blockId != 0) {
+                    pop();
                 }
             }
         }
 
-        Long searchKey(long key) throws IOException {
-            if (this.rootId == 0) {
-                return null;
+        // Advance to the next pair in range; returns false once the range is exhausted
+        @Override
+        public boolean next() throws IOException {
+            if (this.done) {
+                return false;
+            }
+            this.btree.readers.enter();
+            try {
+                return this.btree.bplus ? advanceLeaves() : advance();
+            } finally {
+                this.btree.readers.exit();
             }
-            BTreeNode root = this.cache.get(this.rootId);
-            return searchNode(root, key);
         }
 
-        void printTree() throws IOException {
-            List<long[]> result = new ArrayList<>();
-            this.inorderTraverse(result);
-            for (long[] kv : result) {
-                System.out.println(kv[0] + ": " + kv[1]);
+        // advance() for a B+Tree: the next pair of the current leaf, or else the first of the next one
+        private boolean advanceLeaves() throws IOException {
+            while (this.depth >= 0) {
+                BTreeNode leaf = this.nodes[0];
+                int i = this.positions[0];
+                long next = -1;
+                leaf.latch.readLock().lock();
+                if (this.btree.modifications.get() != this.modifications) {
+                    leaf.latch.readLock().unlock();
+                    reseek();
+                    continue;
+                }
+                try {
+                    if (i < leaf.numKeys) {
+                        this.key = leaf.keys[i];
+                        this.value = leaf.values[i];
+                    } else {
+                        next = leaf.next;
+                    }
+                    this.ahead = Prefetcher.readChain(this.btree, leaf, this.ahead, this.toKey);
+                } finally {
+                    leaf.latch.readLock().unlock();
+                }
+                if (next < 0) {
+                    if (this.key > this.toKey) {
+                        break;
+                    }
+                    this.positions[0] = i + 1;
+                    if (this.accept()) {
+                        return true;
+                    }
+                    continue;
+                }
+                pop();
+                if (next != 0) {
+                    push(next);
+                    this.positions[0] = 0;
+                    this.ahead--;
+                }
             }
+            this.done = true;
+            close();
+            return false;
         }
 
-        void extractData(String filename) throws IOException {
-            File f = new File(filename);
-            if (f.exists()) {
-                Scanner s = new Scanner(System.in);
-                System.out.print("File " + filename + " exists. Overwrite? (yes/no): ");
-                String overwrite = s.nextLine().trim().toLowerCase();
-                if (!overwrite.equals("yes")) {
-                    System.out.println("Operation aborted.");
-                    return;
+        private boolean advance() throws IOException {
+            while (this.depth >= 0) {
+                BTreeNode node = this.nodes[this.depth];
+                int i = this.positions[this.depth];
+                long child;
+                node.latch.readLock().lock();
+                // Writers bump the counter before releasing what they changed, so checking it under
+                // the latch catches a change to this node or to any node the stack was built from
+                if (this.btree.modifications.get() != this.modifications) {
+                    node.latch.readLock().unlock();
+                    reseek();
+                    continue;
+                }
+                try {
+                    if (i >= node.numKeys) {
+                        child = -1;
+                    } else {
+                        this.key = node.keys[i];
+                        this.value = node.values[i];
+                        child = node.isLeaf() ? 0 : node.children[i + 1];
+                        this.queued[this.depth] = Prefetcher.readAhead(this.btree, node, this.queued[this.depth], i + 1);
+                    }
+                } finally {
+                    node.latch.readLock().unlock();
+                }
+                if (child < 0) {
+                    pop();
+                    continue;
+                }
+                if (this.key > this.toKey) {
+                    break;
+                }
+                this.positions[this.depth] = i + 1;
+                // The subtree right of this key comes before the node's next key
+                descendLeftmost(child);
+                if (this.accept()) {
+                    return true;
                 }
             }
-            List<long[]> result = new ArrayList<>();
-            this.inorderTraverse(result);
-            BufferedWriter bw = new BufferedWriter(new FileWriter(filename));
-            for (long[] kv : result) {
-                bw.write(kv[0] + "," + kv[1]);
-                bw.newLine();
+            this.done = true;
+            close();
+            return false;
+        }
+
+        // Rebuild the stack at the first pair with the last key returned (or at the start of the range);
+        // the pairs with that key returned already are passed over, so none is skipped or repeated
+        private void reseek() throws IOException {
+            if (this.started) {
+                seek(this.lastKey, true);
+                this.skip = this.sameKey;
+            } else {
+                seek(this.fromKey, true);
             }
-            bw.close();
-            System.out.println("Data extracted to " + filename + ".");
         }
 
-        void loadData(String filename) throws IOException {
-            File f = new File(filename);
-            if (!f.exists()) {
-                System.out.println("File " + filename + " does not exist.");
-                return;
+        // Whether the pair just read is returned, or passed over as one returned before a re-seek
+        private boolean accept() {
+            if (this.skip > 0 && this.key == this.lastKey) {
+                this.skip--;
+                return false;
             }
-            BufferedReader br = new BufferedReader(new FileReader(filename));
-            String line;
-            int lineNumber = 0;
-            while ((line = br.readLine()) != null) {
-                lineNumber++;
-                String[] parts = line.trim().split(",");
-                if (parts.length != 2) {
-                    System.out.println("Skipping invalid line " + lineNumber + ": " + line.trim());
-                    continue;
-                }
+            this.skip = 0;
+            this.sameKey = this.started && this.key == this.lastKey ? this.sameKey + 1 : 1;
+            this.lastKey = this.key;
+            this.started = true;
+            return true;
+        }
+
+        @Override
+        public long key() {
+            return this.key;
+        }
+
+        @Override
+        public long value() {
+            return this.value;
+        }
+
+        private void descendLeftmost(long blockId) throws IOException {
+            while (blockId != 0) {
+                BTreeNode node = push(blockId);
+                this.positions[this.depth] = 0;
+                node.latch.readLock().lock();
                 try {
-                    long k = Long.parseLong(parts[0]);
-                    long v = Long.parseLong(parts[1]);
-                    this.insert(k, v);
-                } catch (NumberFormatException e) {
-                    System.out.println("Skipping invalid line " + lineNumber + ": " + line.trim());
+                    this.queued[this.depth] = Prefetcher.readAhead(this.btree, node, -1, 0);
+                    blockId = node.isLeaf() ? 0 : node.children[0];
+                } finally {
+                    node.latch.readLock().unlock();
                 }
             }
-            br.close();
         }
 
-        // ====== Internal B-Tree operations (reordered, renamed methods) ======
+        private BTreeNode push(long blockId) throws IOException {
+            if (this.depth + 1 == MAX_HEIGHT) {
+                throw new IOException("Tree is deeper than " + MAX_HEIGHT + " levels.");
+            }
+            BTreeNode node = this.btree.cache.pin(blockId);
+            this.depth++;
+            this.nodes[this.depth] = node;
+            this.queued[this.depth] = -1;
+            return node;
+        }
 
-        // Insert into a node that is not full
-        void insertNonFull(BTreeNode node, long key, long value) throws IOException {
-            while (true) {
-                int i = node.numKeys - 1;
-                if (node.isLeaf()) {
-                    // Insert into leaf node
-                    while (i >= 0 && key < node.keys[i]) {
-                        node.keys[i+1] = node.keys[i];
-                        node.values[i+1] = node.values[i];
-                        i--;
-                    }
-                    node.keys[i+1] = key;
-                    node.values[i+1] = value;
-                    node.numKeys++;
-                    this.cache.put(node.blockId, node);
-                    return;
-                } else {
-                    // Insert into internal node
-                    while (i >= 0 && key < node.keys[i]) {
-                        i--;
+        private void pop() {
+            this.btree.cache.unpin(this.nodes[this.depth]);
+            this.nodes[this.depth] = null;
+            this.depth--;
+        }
+
+        @Override
+        public void close() {
+            while (this.depth >= 0) {
+                pop();
+            }
+        }
+    }
+
+    /**
+     * Ascending scan of a BTree with a write buffer: the tree's pairs merged with the buffered ones,
+     * tree pairs first among equal keys, as they will lie once the buffer is flushed. A flush moves
+     * pairs from one side to the other, so each step holds the buffer latch shared, and the first step
+     * after a flush reopens both sides at the last key returned, passing over the pairs with that key
+     * it has returned already.
+     */
+    static class BufferedScan implements PairStream {
+        private final BTree btree;
+        private final long fromKey;
+        private final long toKey;
+        private PairStream merged;
+        private long flushes;
+        private boolean started = false;
+        private long key;
+        private long value;
+        // Pairs returned so far with the current key, and how many of them a reopened merge has yet to pass
+        private long sameKey = 0;
+        private long skip = 0;
+
+        BufferedScan(BTree btree, long fromKey, long toKey) throws IOException {
+            this.btree = btree;
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            btree.bufferLatch.readLock().lock();
+            try {
+                this.open(fromKey);
+            } finally {
+                btree.bufferLatch.readLock().unlock();
+            }
+        }
+
+        private void open(long from) throws IOException {
+            if (this.merged != null) {
+                this.merged.close();
+                this.merged = null;
+            }
+            this.flushes = this.btree.bufferFlushes;
+            List<PairStream> sides = new ArrayList<>(2);
+            sides.add(this.btree.treeScan(from, this.toKey));
+            WriteBuffer buffer = this.btree.buffer;
+            if (buffer != null) {
+                sides.add(buffer.stream(from, this.toKey));
+            }
+            this.merged = new MergingStream(sides);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            this.btree.bufferLatch.readLock().lock();
+            try {
+                if (this.flushes != this.btree.bufferFlushes) {
+                    this.open(this.started ? this.key : this.fromKey);
+                    this.skip = this.started ? this.sameKey : 0;
+                }
+                while (this.merged.next()) {
+                    long k = this.merged.key();
+                    if (this.skip > 0 && k == this.key) {
+                        this.skip--;
+                        continue;
                     }
-                    i++;
-                    if (node.children[i] == 0) {
-                        // Create a new child if it doesn't exist
-                        System.out.println("Creating new child node for key " + key + " at position " + i);
-                        BTreeNode newChild = new BTreeNode(this.nextBlockId);
-                        newChild.parentId = node.blockId;
-                        this.nextBlockId++;
-                        this.cache.put(newChild.blockId, newChild);
-                        node.children[i] = newChild.blockId;
-                        this.cache.put(node.blockId, node);
+                    this.skip = 0;
+                    this.sameKey = this.started && k == this.key ? this.sameKey + 1 : 1;
+                    this.started = true;
+                    this.key = k;
+                    this.value = this.merged.value();
+                    return true;
+                }
+                return false;
+            } finally {
+                this.btree.bufferLatch.readLock().unlock();
+            }
+        }
 
-                        // After creating a new leaf child, the loop continues and inserts into it
-                        node = newChild;
+        @Override
+        public long key() {
+            return this.key;
+        }
+
+        @Override
+        public long value() {
+            return this.value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.merged != null) {
+                this.merged.close();
+                this.merged = null;
+            }
+        }
+    }
+
+    /**
+     * A read-only view of a BTree as it was when the snapshot was taken. While any snapshot is
+     * open, writers copy a node to a new block before changing it if a snapshot could reach it,
+     * and keep the old block until the last snapshot closes. The nodes a snapshot reaches never
+     * change, so it reads them without latches and never has to re-seek.
+     *
+     * A B+Tree changes its nodes in place instead, since a leaf is reached from the leaf before it
+     * as well as from its parent; a writer first saves the image snapshots may need in a new block.
+     * A snapshot there reads the image saved for it if there is one, and otherwise a copy of the
+     * live node taken under its latch.
+     *
+     * A compaction or other file swap waits until every snapshot is closed, so a thread must not
+     * hold one while it waits for such a swap or writes to the same tree during one.
+     */
+    static class Snapshot implements Closeable {
+        private final BTree btree;
+        final long generation;
+        private final long rootId;
+        private boolean closed = false;
+
+        Snapshot(BTree btree, long generation, long rootId) {
+            this.btree = btree;
+            this.generation = generation;
+            this.rootId = rootId;
+        }
+
+        // The value of the first pair with 'key' when the snapshot was taken, or null
+        Long search(long key) throws IOException {
+            if (this.btree.bplus) {
+                BTreeNode node = this.rootId == 0 ? null : image(this.rootId);
+                while (node != null) {
+                    int i = node.lowerBound(key, 0);
+                    if (!node.isLeaf()) {
+                        node = image(node.children[i]);
+                    } else if (i < node.numKeys) {
+                        return node.keys[i] == key ? node.values[i] : null;
                     } else {
-                        // If the chosen child is full, split it first
-                        BTreeNode child = this.cache.get(node.children[i]);
-                        if (child.numKeys == MAX_KEYS) {
-                            splitChild(node, i, child);
-                            if (key > node.keys[i]) {
-                                i++;
-                            }
+                        // Equal keys may go on in the next leaf
+                        node = node.next == 0 ? null : image(node.next);
+                    }
+                }
+                return null;
+            }
+            long blockId = this.rootId;
+            while (blockId != 0) {
+                BTreeNode node = this.btree.cache.pin(blockId);
+                try {
+                    int i = node.lowerBound(key, 0);
+                    if (i < node.numKeys && node.keys[i] == key) {
+                        return node.values[i];
+                    }
+                    blockId = node.isLeaf() ? 0 : node.children[i];
+                } finally {
+                    this.btree.cache.unpin(node);
+                }
+            }
+            return null;
+        }
+
+        // The pairs with fromKey <= key <= toKey when the snapshot was taken, in ascending key order
+        PairStream scan(long fromKey, long toKey) throws IOException {
+            return this.btree.bplus ? new SnapshotLeafCursor(fromKey, toKey) : new SnapshotCursor(fromKey, toKey);
+        }
+
+        // A private copy of a B+Tree node as this snapshot sees it: the image saved when the node first
+        // changed after the snapshot was taken, or else the live node as it is now
+        private BTreeNode image(long blockId) throws IOException {
+            BTree btree = this.btree;
+            long saved = btree.versionFor(blockId, this.generation);
+            if (saved == 0) {
+                BTreeNode node = btree.cache.pin(blockId);
+                node.latch.readLock().lock();
+                try {
+                    // A writer saves the image before changing the node, so look again under the latch
+                    saved = btree.versionFor(blockId, this.generation);
+                    if (saved == 0) {
+                        return btree.copyOf(node);
+                    }
+                } finally {
+                    node.latch.readLock().unlock();
+                    btree.cache.unpin(node);
+                }
+            }
+            BTreeNode node = btree.cache.pin(saved);
+            try {
+                return btree.copyOf(node);
+            } finally {
+                btree.cache.unpin(node);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                this.btree.releaseSnapshot(this);
+            }
+        }
+
+        /**
+         * Walks the snapshot with a stack of pinned (node, next key index) frames, like Cursor
+         * but without latches or modification checks.
+         */
+        private final class SnapshotCursor implements PairStream {
+            private final long toKey;
+            private final BTreeNode[] nodes = new BTreeNode[Cursor.MAX_HEIGHT];
+            private final int[] positions = new int[Cursor.MAX_HEIGHT];
+            private final int[] queued = new int[Cursor.MAX_HEIGHT];
+            private int depth = -1;
+            private long key;
+            private long value;
+
+            SnapshotCursor(long fromKey, long toKey) throws IOException {
+                this.toKey = toKey;
+                long blockId = Snapshot.this.rootId;
+                while (blockId != 0) {
+                    BTreeNode node = push(blockId);
+                    int i = node.lowerBound(fromKey, 0);
+                    this.positions[this.depth] = i;
+                    this.queued[this.depth] = Prefetcher.readAhead(Snapshot.this.btree, node, -1, i);
+                    blockId = node.isLeaf() ? 0 : node.children[i];
+                }
+            }
+
+            @Override
+            public boolean next() throws IOException {
+                while (this.depth >= 0) {
+                    BTreeNode node = this.nodes[this.depth];
+                    int i = this.positions[this.depth];
+                    if (i >= node.numKeys) {
+                        pop();
+                        continue;
+                    }
+                    if (node.keys[i] > this.toKey) {
+                        break;
+                    }
+                    this.key = node.keys[i];
+                    this.value = node.values[i];
+                    this.positions[this.depth] = i + 1;
+                    // The subtree right of this key comes before the node's next key
+                    this.queued[this.depth] = Prefetcher.readAhead(Snapshot.this.btree, node, this.queued[this.depth], i + 1);
+                    long blockId = node.isLeaf() ? 0 : node.children[i + 1];
+                    while (blockId != 0) {
+                        BTreeNode child = push(blockId);
+                        this.positions[this.depth] = 0;
+                        this.queued[this.depth] = Prefetcher.readAhead(Snapshot.this.btree, child, -1, 0);
+                        blockId = child.isLeaf() ? 0 : child.children[0];
+                    }
+                    return true;
+                }
+                close();
+                return false;
+            }
+
+            @Override
+            public long key() {
+                return this.key;
+            }
+
+            @Override
+            public long value() {
+                return this.value;
+            }
+
+            private BTreeNode push(long blockId) throws IOException {
+                if (this.depth + 1 == Cursor.MAX_HEIGHT) {
+                    throw new IOException("Tree is deeper than " + Cursor.MAX_HEIGHT + " levels.");
+                }
+                BTreeNode node = Snapshot.this.btree.cache.pin(blockId);
+                this.depth++;
+                this.nodes[this.depth] = node;
+                return node;
+            }
+
+            private void pop() {
+                Snapshot.this.btree.cache.unpin(this.nodes[this.depth]);
+                this.nodes[this.depth] = null;
+                this.depth--;
+            }
+
+            @Override
+            public void close() {
+                while (this.depth >= 0) {
+                    pop();
+                }
+            }
+        }
+
+        /**
+         * Walks the leaves of a B+Tree snapshot from the one holding the first key in range,
+         * following the chain through the images this snapshot sees.
+         */
+        private final class SnapshotLeafCursor implements PairStream {
+            private final long toKey;
+            private BTreeNode leaf;
+            private int position;
+            private int ahead = 0;
+            private long key;
+            private long value;
+
+            SnapshotLeafCursor(long fromKey, long toKey) throws IOException {
+                this.toKey = toKey;
+                BTreeNode node = Snapshot.this.rootId == 0 ? null : image(Snapshot.this.rootId);
+                while (node != null && !node.isLeaf()) {
+                    node = image(node.children[node.lowerBound(fromKey, 0)]);
+                }
+                this.leaf = node;
+                this.position = node == null ? 0 : node.lowerBound(fromKey, 0);
+            }
+
+            @Override
+            public boolean next() throws IOException {
+                while (this.leaf != null) {
+                    BTreeNode node = this.leaf;
+                    this.ahead = Prefetcher.readChain(Snapshot.this.btree, node, this.ahead, this.toKey);
+                    if (this.position < node.numKeys) {
+                        if (node.keys[this.position] > this.toKey) {
+                            break;
+                        }
+                        this.key = node.keys[this.position];
+                        this.value = node.values[this.position];
+                        this.position++;
+                        return true;
+                    }
+                    this.leaf = node.next == 0 ? null : image(node.next);
+                    this.position = 0;
+                    this.ahead--;
+                }
+                this.leaf = null;
+                return false;
+            }
+
+            @Override
+            public long key() {
+                return this.key;
+            }
+
+            @Override
+            public long value() {
+                return this.value;
+            }
+
+            @Override
+            public void close() {
+                this.leaf = null;
+            }
+        }
+    }
+
+    /**
+     * Byte-addressed storage underneath an index file. The BTree decides the block layout;
+     * a backend only moves bytes between the file and ByteBuffers.
+     */
+    interface NodeStorage extends Closeable {
+        // Fill 'target' from its position to its limit with the bytes at 'offset' (fewer at end of file)
+        void read(long offset, ByteBuffer target) throws IOException;
+
+        void write(long offset, ByteBuffer data) throws IOException;
+
+        // Force every write so far to the device
+        void sync() throws IOException;
+
+        static NodeStorage open(String path, String mode, String kind) throws IOException {
+            switch (kind) {
+                case "raf":
+                    return new RandomAccessStorage(path, mode);
+                case "mmap":
+                    if (MMAP_CHUNK_MB < 1 || MMAP_CHUNK_MB > MAX_MMAP_CHUNK_MB) {
+                        throw new IOException("Mmap chunk size must be from 1 to " + MAX_MMAP_CHUNK_MB + " MB.");
+                    }
+                    return new MappedStorage(path, mode, MMAP_CHUNK_MB << 20);
+                default:
+                    throw new IOException("Unknown storage backend: " + kind);
+            }
+        }
+    }
+
+    /**
+     * Storage backend that issues one positional read or write system call per access
+     * through the RandomAccessFile's channel.
+     */
+    static class RandomAccessStorage implements NodeStorage {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+
+        RandomAccessStorage(String path, String mode) throws FileNotFoundException {
+            this.file = new RandomAccessFile(path, mode);
+            this.channel = this.file.getChannel();
+        }
+
+        @Override
+        public void read(long offset, ByteBuffer target) throws IOException {
+            long position = offset;
+            while (target.hasRemaining()) {
+                int n = this.channel.read(target, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+        }
+
+        @Override
+        public void write(long offset, ByteBuffer data) throws IOException {
+            long position = offset;
+            while (data.hasRemaining()) {
+                position += this.channel.write(data, position);
+            }
+        }
+
+        @Override
+        public void sync() throws IOException {
+            this.channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.file.close();
+        }
+    }
+
+    /**
+     * Storage backend that maps the file into memory in fixed-size chunks, so node reads and
+     * writes are plain memory copies. A new chunk is mapped (extending the file) the first time
+     * a write lands past the mapped range; on close the file is trimmed to the bytes written.
+     */
+    static class MappedStorage implements NodeStorage {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final FileChannel.MapMode mapMode;
+        private final long chunkSize;
+        // Copy-on-write so a background checkpoint can grow the mapping while the tree reads from it
+        private final List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+        private volatile long length;
+
+        MappedStorage(String path, String mode, long chunkSize) throws IOException {
+            this.file = new RandomAccessFile(path, mode);
+            this.channel = this.file.getChannel();
+            this.mapMode = mode.equals("r") ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            this.chunkSize = chunkSize;
+            this.length = this.channel.size();
+            if (this.mapMode == FileChannel.MapMode.READ_ONLY) {
+                // A read-only mapping cannot extend the file, so stop at its current end
+                for (long start = 0; start < this.length; start += chunkSize) {
+                    this.chunks.add(this.channel.map(this.mapMode, start, Math.min(chunkSize, this.length - start)));
+                }
+            } else {
+                ensureMapped(this.length);
+            }
+        }
+
+        // Map further chunks until the mapping covers 'end' bytes
+        private synchronized void ensureMapped(long end) throws IOException {
+            while ((long) this.chunks.size() * this.chunkSize < end) {
+                long start = (long) this.chunks.size() * this.chunkSize;
+                this.chunks.add(this.channel.map(this.mapMode, start, this.chunkSize));
+            }
+        }
+
+        @Override
+        public void read(long offset, ByteBuffer target) throws IOException {
+            int available = (int) Math.max(0, Math.min(target.remaining(), this.length - offset));
+            int index = (int) (offset / this.chunkSize);
+            int position = (int) (offset % this.chunkSize);
+            if (available == 0 || position + available > this.chunkSize) {
+                return;
+            }
+            target.put(target.position(), this.chunks.get(index), position, available);
+            target.position(target.position() + available);
+        }
+
+        @Override
+        public void write(long offset, ByteBuffer data) throws IOException {
+            int size = data.remaining();
+            int position = (int) (offset % this.chunkSize);
+            if (position + size > this.chunkSize) {
+                throw new IOException("Write at " + offset + " crosses a mapped chunk boundary.");
+            }
+            ensureMapped(offset + size);
+            this.chunks.get((int) (offset / this.chunkSize)).put(position, data, data.position(), size);
+            data.position(data.limit());
+            synchronized (this) {
+                this.length = Math.max(this.length, offset + size);
+            }
+        }
+
+        @Override
+        public void sync() throws IOException {
+            for (MappedByteBuffer chunk : this.chunks) {
+                chunk.force();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.mapMode == FileChannel.MapMode.READ_WRITE) {
+                sync();
+                this.chunks.clear();
+                this.channel.truncate(this.length);
+            }
+            this.file.close();
+        }
+    }
+
+    // How nodes are laid out in the blocks of a version-2 file
+    enum NodeLayout {
+        FIXED,      // every key, value and child slot as an 8-byte long
+        COMPRESSED, // varint key deltas, values and children; as many keys as the bytes allow
+        BPLUS,      // fixed slots, pairs only in leaves chained left to right, separators above
+        COUNTED     // fixed slots plus a pair count and value sum for each child, for order statistics
+    }
+
+    // How far a committed operation is pushed toward the disk before the commit returns
+    enum Durability {
+        SYNC,   // force the write-ahead log on every commit
+        GROUP,  // force the log once per batch of commits or time window
+        OS      // no log; blocks are left to the operating system's page cache
+    }
+
+    /**
+     * Append-only redo log of block images kept next to the index file (<index>.wal).
+     * Logged blocks reach the index file only at a checkpoint, after the records carrying them
+     * are on disk, so after a crash replaying the committed records restores a consistent tree.
+     * Until then, readers are served the latest logged image of a block.
+     */
+    static class WriteAheadLog implements Closeable {
+        private static final byte PAGE_RECORD = 1;
+        private static final byte COMMIT_RECORD = 2;
+        // type + offset + length + checksum around each payload
+        private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final NodeStorage storage;
+        private final Durability durability;
+        private final Metrics metrics;
+        private final boolean readOnly;
+        private final ByteBuffer staging = ByteBuffer.allocate(1 << 20);
+        private final CRC32 crc = new CRC32();
+        // Latest image of each block, split by whether its operation has committed yet. Concurrent maps,
+        // so that lookups on buffer pool misses never wait for the monitor that logging and checkpoints hold.
+        private final Map<Long, byte[]> committed = new ConcurrentHashMap<>();
+        private final Map<Long, byte[]> uncommitted = new ConcurrentHashMap<>();
+        // Taken for a whole checkpoint, before the monitor, so an older copy cannot land after a newer one
+        private final Object checkpointLock = new Object();
+        private boolean checkpointQueued = false;
+        private long logBytes = 0;
+        private int unsyncedCommits = 0;
+        private long lastSyncNanos = System.nanoTime();
+        private long commitSeq = 0;
+        private ScheduledExecutorService background;
+
+        WriteAheadLog(Path path, NodeStorage storage, Durability durability, boolean readOnly, Metrics metrics) throws IOException {
+            this.path = path;
+            this.storage = storage;
+            this.durability = durability;
+            this.metrics = metrics;
+            this.readOnly = readOnly;
+            this.channel = readOnly
+                    ? FileChannel.open(path, java.nio.file.StandardOpenOption.READ)
+                    : FileChannel.open(path, java.nio.file.StandardOpenOption.READ,
+                            java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.CREATE);
+            if (!readOnly) {
+                // One daemon thread handles the group-commit deadline and checkpoints
+                this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "wal-" + path.getFileName());
+                    t.setDaemon(true);
+                    return t;
+                });
+                this.background.scheduleWithFixedDelay(this::backgroundTick,
+                        GROUP_COMMIT_MILLIS, GROUP_COMMIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // Replay every fully committed batch in the log; a torn or uncommitted tail is discarded
+        synchronized long recover() throws IOException {
+            long replayed = 0;
+            Map<Long, byte[]> batch = new LinkedHashMap<>();
+            this.channel.position(0);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel)));
+            while (true) {
+                byte type;
+                long offset;
+                byte[] payload;
+                int checksum;
+                try {
+                    type = in.readByte();
+                    offset = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > (1 << 20)) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (checksum != checksum(type, offset, payload)) {
+                    break;
+                }
+                if (type == PAGE_RECORD) {
+                    batch.put(offset, payload);
+                } else if (type == COMMIT_RECORD) {
+                    for (Map.Entry<Long, byte[]> e : batch.entrySet()) {
+                        if (this.readOnly) {
+                            this.committed.put(e.getKey(), e.getValue());
+                        } else {
+                            this.storage.write(e.getKey(), ByteBuffer.wrap(e.getValue()));
+                        }
+                    }
+                    batch.clear();
+                    replayed++;
+                } else {
+                    break;
+                }
+            }
+            if (!this.readOnly) {
+                long syncStart = System.nanoTime();
+                this.storage.sync();
+                this.metrics.recordSync(syncStart);
+                this.channel.truncate(0);
+                this.channel.position(0);
+            }
+            return replayed;
+        }
+
+        // Append a block image that belongs to the operation in progress
+        synchronized void logPage(long offset, ByteBuffer data) throws IOException {
+            byte[] image = new byte[data.remaining()];
+            data.get(image);
+            append(PAGE_RECORD, offset, image);
+            this.uncommitted.put(offset, image);
+        }
+
+        // Copy the latest logged image of the block at 'offset' into 'target'; false if the index file is current.
+        // An image leaves the maps only once a checkpoint has written it to the index file.
+        boolean lookup(long offset, ByteBuffer target) {
+            byte[] image = this.uncommitted.get(offset);
+            if (image == null) {
+                image = this.committed.get(offset);
+            }
+            if (image == null) {
+                return false;
+            }
+            target.put(image, 0, Math.min(image.length, target.remaining()));
+            return true;
+        }
+
+        // Seal the operation in progress and push it toward the disk according to the durability level
+        synchronized void commit() throws IOException {
+            if (this.uncommitted.isEmpty()) {
+                return;
+            }
+            append(COMMIT_RECORD, ++this.commitSeq, new byte[0]);
+            this.committed.putAll(this.uncommitted);
+            this.uncommitted.clear();
+            this.unsyncedCommits++;
+            if (this.durability == Durability.SYNC || this.unsyncedCommits >= GROUP_COMMIT_SIZE) {
+                force();
+            }
+            if (this.logBytes >= CHECKPOINT_BYTES && !this.checkpointQueued) {
+                this.checkpointQueued = true;
+                this.background.execute(this::checkpointQuietly);
+            }
+        }
+
+        // Copy committed blocks into the index file, make it durable, and start a fresh log. The blocks
+        // committed so far are written and synced outside the monitor, so commits carry on meanwhile;
+        // only those committed during that copy are written with the monitor held, before the log is cut.
+        void checkpoint() throws IOException {
+            synchronized (this.checkpointLock) {
+                Map<Long, byte[]> copied;
+                synchronized (this) {
+                    this.checkpointQueued = false;
+                    force();
+                    if (this.committed.isEmpty() && this.logBytes == 0) {
+                        return;
+                    }
+                    copied = new HashMap<>(this.committed);
+                }
+                writeBack(copied);
+                synchronized (this) {
+                    force();
+                    Map<Long, byte[]> later = new HashMap<>();
+                    for (Map.Entry<Long, byte[]> e : this.committed.entrySet()) {
+                        if (copied.get(e.getKey()) != e.getValue()) {
+                            later.put(e.getKey(), e.getValue());
+                        }
+                    }
+                    if (!later.isEmpty()) {
+                        writeBack(later);
+                    }
+                    this.channel.truncate(0);
+                    this.channel.position(0);
+                    this.committed.clear();
+                    this.logBytes = 0;
+                    // Blocks of the operation still in progress must stay in the new log
+                    for (Map.Entry<Long, byte[]> e : this.uncommitted.entrySet()) {
+                        append(PAGE_RECORD, e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+
+        // Write block images into the index file and make them durable there
+        private void writeBack(Map<Long, byte[]> images) throws IOException {
+            for (Map.Entry<Long, byte[]> e : images.entrySet()) {
+                this.storage.write(e.getKey(), ByteBuffer.wrap(e.getValue()));
+            }
+            long syncStart = System.nanoTime();
+            this.storage.sync();
+            this.metrics.recordSync(syncStart);
+        }
+
+        private synchronized void backgroundTick() {
+            try {
+                if (this.unsyncedCommits > 0
+                        && System.nanoTime() - this.lastSyncNanos >= TimeUnit.MILLISECONDS.toNanos(GROUP_COMMIT_MILLIS)) {
+                    force();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void checkpointQuietly() {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void append(byte type, long offset, byte[] payload) throws IOException {
+            if (this.staging.remaining() < RECORD_OVERHEAD + payload.length) {
+                drain();
+            }
+            this.staging.put(type);
+            this.staging.putLong(offset);
+            this.staging.putInt(payload.length);
+            this.staging.put(payload);
+            this.staging.putInt(checksum(type, offset, payload));
+            this.logBytes += RECORD_OVERHEAD + payload.length;
+        }
+
+        private int checksum(byte type, long offset, byte[] payload) {
+            this.crc.reset();
+            this.crc.update(type);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                this.crc.update((int) (offset >>> shift));
+            }
+            this.crc.update(payload);
+            return (int) this.crc.getValue();
+        }
+
+        // Hand the staged records to the operating system
+        private void drain() throws IOException {
+            this.staging.flip();
+            while (this.staging.hasRemaining()) {
+                this.channel.write(this.staging);
+            }
+            this.staging.clear();
+        }
+
+        // Make every staged record durable
+        private void force() throws IOException {
+            drain();
+            if (this.unsyncedCommits > 0) {
+                long syncStart = System.nanoTime();
+                this.channel.force(false);
+                this.metrics.recordSync(syncStart);
+                this.unsyncedCommits = 0;
+            }
+            this.lastSyncNanos = System.nanoTime();
+        }
+
+        // Close without a checkpoint after a failed open. An empty log is deleted; one with records is kept.
+        synchronized void abandon() throws IOException {
+            if (this.background != null) {
+                this.background.shutdownNow();
+            }
+            boolean empty = this.channel.size() == 0 && this.staging.position() == 0;
+            this.channel.close();
+            if (!this.readOnly && empty) {
+                Files.deleteIfExists(this.path);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.background != null) {
+                this.background.shutdown();
+                try {
+                    this.background.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (!this.readOnly) {
+                checkpoint();
+            }
+            synchronized (this) {
+                this.channel.close();
+                if (!this.readOnly && this.uncommitted.isEmpty()) {
+                    Files.deleteIfExists(this.path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorted in-memory buffer of recent inserts in front of a BTree, with an append-only log kept
+     * next to the index file (<index>.buf) that makes them durable. The tree moves the buffered pairs
+     * into itself as one sorted batch when the buffer fills up or the index is closed. The log starts
+     * with the epoch of the batch it collects and the tree header holds the last epoch flushed, so a
+     * log whose batch reached the tree just before a crash is not replayed a second time.
+     */
+    static class WriteBuffer implements Closeable {
+        private static final byte INSERT_RECORD = 1;
+        private static final byte DELETE_RECORD = 2;
+        private static final byte UPDATE_RECORD = 3;
+        // type + key + value, then a checksum of those bytes
+        private static final int RECORD_BODY = 1 + 8 + 8;
+        private static final int RECORD_SIZE = RECORD_BODY + 4;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final Durability durability;
+        private final Metrics metrics;
+        private final ByteBuffer staging = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        private final CRC32 crc = new CRC32();
+        // The values of each buffered key in the order they were inserted; arrays are replaced, never changed
+        private final ConcurrentSkipListMap<Long, long[]> pairs = new ConcurrentSkipListMap<>();
+        private volatile long size = 0;
+        private long epoch;
+        private int unsyncedRecords = 0;
+        private ScheduledExecutorService background;
+
+        private WriteBuffer(Path path, Durability durability, Metrics metrics) throws IOException {
+            this.path = path;
+            this.durability = durability;
+            this.metrics = metrics;
+            this.channel = FileChannel.open(path, java.nio.file.StandardOpenOption.READ,
+                    java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.CREATE);
+        }
+
+        // Open the log at 'path', taking back the pairs it holds unless its epoch is the one the tree
+        // has already flushed; a torn tail is cut off and later records are appended after the rest
+        static WriteBuffer open(Path path, long flushedEpoch, Durability durability, Metrics metrics) throws IOException {
+            WriteBuffer buffer = new WriteBuffer(path, durability, metrics);
+            boolean opened = false;
+            try {
+                buffer.replay(flushedEpoch);
+                if (durability != Durability.SYNC) {
+                    buffer.background = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "buf-" + path.getFileName());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    buffer.background.scheduleWithFixedDelay(buffer::backgroundTick,
+                            GROUP_COMMIT_MILLIS, GROUP_COMMIT_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                opened = true;
+                return buffer;
+            } finally {
+                if (!opened) {
+                    buffer.channel.close();
+                }
+            }
+        }
+
+        private synchronized void replay(long flushedEpoch) throws IOException {
+            long epoch = -1;
+            long valid = 0;
+            this.channel.position(0);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel)));
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            try {
+                epoch = in.readLong();
+                valid = Long.BYTES;
+                while (epoch != flushedEpoch) {
+                    in.readFully(record.array());
+                    if (record.getInt(RECORD_BODY) != this.checksum(record.array(), 0)
+                            || !this.apply(record.get(0), record.getLong(1), record.getLong(9))) {
+                        break;
+                    }
+                    valid += RECORD_SIZE;
+                }
+            } catch (EOFException e) {
+                // The log ends here, possibly inside a record that never finished
+            }
+            if (epoch == -1 || epoch == flushedEpoch) {
+                this.pairs.clear();
+                this.size = 0;
+                this.restart(flushedEpoch + 1);
+                return;
+            }
+            this.epoch = epoch;
+            this.channel.truncate(valid);
+            this.channel.position(valid);
+        }
+
+        // Apply one logged change to the buffered pairs; false for a record no run of this code writes
+        private boolean apply(byte type, long key, long value) {
+            if (type == INSERT_RECORD) {
+                // A new key takes one pass through the skip list; a repeated one a second
+                long[] values = this.pairs.putIfAbsent(key, new long[]{value});
+                if (values != null) {
+                    long[] grown = Arrays.copyOf(values, values.length + 1);
+                    grown[values.length] = value;
+                    this.pairs.put(key, grown);
+                }
+                this.size++;
+                return true;
+            }
+            long[] values = this.pairs.get(key);
+            switch (type) {
+                case DELETE_RECORD:
+                    if (values == null) {
+                        return false;
+                    }
+                    if (values.length == 1) {
+                        this.pairs.remove(key);
+                    } else {
+                        this.pairs.put(key, Arrays.copyOfRange(values, 1, values.length));
+                    }
+                    this.size--;
+                    return true;
+                case UPDATE_RECORD:
+                    if (values == null) {
+                        return false;
+                    }
+                    long[] changed = values.clone();
+                    changed[0] = value;
+                    this.pairs.put(key, changed);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        long size() {
+            return this.size;
+        }
+
+        synchronized long epoch() {
+            return this.epoch;
+        }
+
+        synchronized void insert(long key, long value) throws IOException {
+            this.log(INSERT_RECORD, key, value);
+            this.apply(INSERT_RECORD, key, value);
+            this.settle(1);
+        }
+
+        // Buffer the first n pairs of the arrays with a single log force
+        synchronized void insertMany(long[] keys, long[] values, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                this.log(INSERT_RECORD, keys[i], values[i]);
+                this.apply(INSERT_RECORD, keys[i], values[i]);
+            }
+            this.settle(n);
+        }
+
+        // Remove the first buffered pair with this key; returns false if there is none
+        synchronized boolean delete(long key) throws IOException {
+            if (!this.pairs.containsKey(key)) {
+                return false;
+            }
+            this.log(DELETE_RECORD, key, 0);
+            this.apply(DELETE_RECORD, key, 0);
+            this.settle(1);
+            return true;
+        }
+
+        // Replace the value of the first buffered pair with this key; returns false if there is none
+        synchronized boolean update(long key, long value) throws IOException {
+            if (!this.pairs.containsKey(key)) {
+                return false;
+            }
+            this.log(UPDATE_RECORD, key, value);
+            this.apply(UPDATE_RECORD, key, value);
+            this.settle(1);
+            return true;
+        }
+
+        // The value of the first buffered pair with this key, or null
+        Long first(long key) {
+            long[] values = this.pairs.get(key);
+            return values == null ? null : values[0];
+        }
+
+        // The count and value sum of the buffered pairs with fromKey <= key <= toKey
+        long[] aggregate(long fromKey, long toKey) {
+            long[] total = new long[2];
+            for (long[] values : this.pairs.subMap(fromKey, true, toKey, true).values()) {
+                total[0] += values.length;
+                for (long v : values) {
+                    total[1] += v;
+                }
+            }
+            return total;
+        }
+
+        // Every buffered pair as {keys, values}, in key order and then in insertion order
+        long[][] sorted() {
+            int n = (int) this.size;
+            long[] keys = new long[n];
+            long[] values = new long[n];
+            int i = 0;
+            for (Map.Entry<Long, long[]> e : this.pairs.entrySet()) {
+                for (long v : e.getValue()) {
+                    if (i == n) {
+                        break;
+                    }
+                    keys[i] = e.getKey();
+                    values[i++] = v;
+                }
+            }
+            return new long[][]{Arrays.copyOf(keys, i), Arrays.copyOf(values, i)};
+        }
+
+        // The buffered pairs with fromKey <= key <= toKey as a stream
+        PairStream stream(long fromKey, long toKey) {
+            Iterator<Map.Entry<Long, long[]>> entries = this.pairs.subMap(fromKey, true, toKey, true).entrySet().iterator();
+            return new PairStream() {
+                private long key;
+                private long[] values = new long[0];
+                private int next = 0;
+
+                @Override
+                public boolean next() {
+                    while (this.next == this.values.length) {
+                        if (!entries.hasNext()) {
+                            return false;
+                        }
+                        Map.Entry<Long, long[]> e = entries.next();
+                        this.key = e.getKey();
+                        this.values = e.getValue();
+                        this.next = 0;
+                    }
+                    this.next++;
+                    return true;
+                }
+
+                @Override
+                public long key() {
+                    return this.key;
+                }
+
+                @Override
+                public long value() {
+                    return this.values[this.next - 1];
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        // Drop every pair, which the tree now holds, and start an empty log for the next epoch
+        synchronized void reset(long nextEpoch) throws IOException {
+            this.pairs.clear();
+            this.size = 0;
+            this.restart(nextEpoch);
+        }
+
+        private void restart(long nextEpoch) throws IOException {
+            this.staging.clear();
+            this.unsyncedRecords = 0;
+            this.channel.truncate(0);
+            this.channel.position(0);
+            this.epoch = nextEpoch;
+            this.channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, nextEpoch));
+            if (this.durability != Durability.OS) {
+                long syncStart = System.nanoTime();
+                this.channel.force(false);
+                this.metrics.recordSync(syncStart);
+            }
+        }
+
+        private void log(byte type, long key, long value) throws IOException {
+            if (this.staging.remaining() < RECORD_SIZE) {
+                this.drain();
+            }
+            int start = this.staging.position();
+            this.staging.put(type);
+            this.staging.putLong(key);
+            this.staging.putLong(value);
+            this.staging.putInt(this.checksum(this.staging.array(), start));
+        }
+
+        // Push the records of the operation just logged toward the disk according to the durability level.
+        // Without sync durability they are written in groups, as the write-ahead log forces its commits.
+        private void settle(int records) throws IOException {
+            this.unsyncedRecords += records;
+            if (this.durability == Durability.SYNC || this.unsyncedRecords >= GROUP_COMMIT_SIZE) {
+                this.force();
+            }
+        }
+
+        private int checksum(byte[] bytes, int offset) {
+            this.crc.reset();
+            this.crc.update(bytes, offset, RECORD_BODY);
+            return (int) this.crc.getValue();
+        }
+
+        private void drain() throws IOException {
+            this.staging.flip();
+            while (this.staging.hasRemaining()) {
+                this.channel.write(this.staging);
+            }
+            this.staging.clear();
+        }
+
+        // Write every staged record, and make them durable unless the durability level leaves that to the system
+        private void force() throws IOException {
+            this.drain();
+            if (this.durability != Durability.OS && this.unsyncedRecords > 0) {
+                long syncStart = System.nanoTime();
+                this.channel.force(false);
+                this.metrics.recordSync(syncStart);
+            }
+            this.unsyncedRecords = 0;
+        }
+
+        private synchronized void backgroundTick() {
+            try {
+                if (this.unsyncedRecords > 0) {
+                    this.force();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Close the log, and delete it if every pair has been flushed into the tree
+        @Override
+        public void close() throws IOException {
+            if (this.background != null) {
+                this.background.shutdown();
+                try {
+                    this.background.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                this.force();
+                this.channel.close();
+                if (this.size == 0) {
+                    Files.deleteIfExists(this.path);
+                }
+            }
+        }
+    }
+
+    // Callback for each key-value row parsed from a load file
+    interface RowHandler {
+        void accept(long key, long value) throws IOException;
+    }
+
+    // Thrown by the sortedness probe to stop reading as soon as a key goes backwards
+    static class UnsortedInputException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        UnsortedInputException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Builds a tree bottom-up from key-value pairs supplied in ascending key order.
+     */
+    interface TreeBuilder {
+        void add(long key, long value) throws IOException;
+
+        // Write what is left and publish the new root in the header
+        void finish() throws IOException;
+    }
+
+    /**
+     * Builds a B-Tree bottom-up from key-value pairs supplied in ascending key order.
+     * The number of nodes on every level is planned from the total row count up front,
+     * so each node is written exactly once, in block order, and none ends up under-full.
+     */
+    static class BulkBuilder implements TreeBuilder {
+        private final BTree btree;
+        private final long expected;
+        private final long[] nodesPerLevel;
+        private final long[] baseKeys;
+        private final long[] extraKeys;
+        private final long[] closed;
+        private final BTreeNode[] open;
+        private long added = 0;
+        private long lastKey = Long.MIN_VALUE;
+        private long rootId = 0;
+
+        BulkBuilder(BTree btree, long rows, double fillFactor) {
+            this.btree = btree;
+            this.expected = rows;
+            int maxKeys = btree.maxKeys;
+            int target = (int) Math.round(fillFactor * maxKeys);
+            target = Math.max(btree.minDegree - 1, Math.min(maxKeys, target));
+
+            // Level h receives n entries; all but (nodes - 1) of them stay, the rest become separators above
+            List<long[]> plan = new ArrayList<>();
+            long n = rows;
+            while (n > 0) {
+                long nodes = Math.max(ceilDiv(n + 1, maxKeys + 1), (n + 1) / (target + 1));
+                nodes = Math.max(nodes, 1);
+                long keys = n - (nodes - 1);
+                plan.add(new long[]{nodes, keys / nodes, keys % nodes});
+                if (nodes == 1) {
+                    break;
+                }
+                n = nodes - 1;
+            }
+            int levels = plan.size();
+            this.nodesPerLevel = new long[levels];
+            this.baseKeys = new long[levels];
+            this.extraKeys = new long[levels];
+            for (int h = 0; h < levels; h++) {
+                this.nodesPerLevel[h] = plan.get(h)[0];
+                this.baseKeys[h] = plan.get(h)[1];
+                this.extraKeys[h] = plan.get(h)[2];
+            }
+            this.closed = new long[levels];
+            this.open = new BTreeNode[levels];
+        }
+
+        private static long ceilDiv(long a, long b) {
+            return (a + b - 1) / b;
+        }
+
+        @Override
+        public void add(long key, long value) throws IOException {
+            if (key < this.lastKey) {
+                throw new IOException("Bulk load input is not sorted at key " + key + ".");
+            }
+            if (this.added == this.expected) {
+                throw new IOException("Bulk load input has more rows than planned.");
+            }
+            this.lastKey = key;
+            this.added++;
+            push(0, key, value);
+        }
+
+        // Append an entry at level h, closing the open node and promoting the entry once the node is full
+        private void push(int h, long key, long value) throws IOException {
+            if (this.open[h] == null) {
+                this.open[h] = this.btree.newNode(0);
+            }
+            BTreeNode node = this.open[h];
+            long quota = this.baseKeys[h] + (this.closed[h] < this.extraKeys[h] ? 1 : 0);
+            if (node.numKeys == quota) {
+                if (h + 1 == this.open.length) {
+                    throw new IOException("Bulk load plan overflowed at level " + h + ".");
+                }
+                close(h);
+                push(h + 1, key, value);
+            } else {
+                node.keys[node.numKeys] = key;
+                node.values[node.numKeys] = value;
+                node.numKeys++;
+            }
+        }
+
+        // Assign the next block to the open node at level h, write it, and attach it to its parent
+        private void close(int h) throws IOException {
+            BTreeNode node = this.open[h];
+            node.blockId = this.btree.allocateBlock();
+            this.btree.writeFreshNode(node);
+            this.open[h] = null;
+            this.closed[h]++;
+            if (h + 1 < this.open.length) {
+                if (this.open[h + 1] == null) {
+                    this.open[h + 1] = this.btree.newNode(0);
+                    this.open[h + 1].leaf = false;
+                }
+                BTreeNode parent = this.open[h + 1];
+                parent.children[parent.numKeys] = node.blockId;
+                if (this.btree.counted) {
+                    BTree.recount(parent, parent.numKeys, node);
+                }
+            } else {
+                this.rootId = node.blockId;
+            }
+        }
+
+        // Flush the remaining open nodes bottom-up and publish the new root in the header
+        @Override
+        public void finish() throws IOException {
+            if (this.added != this.expected) {
+                throw new IOException("Bulk load input changed: expected " + this.expected + " rows, got " + this.added + ".");
+            }
+            for (int h = 0; h < this.open.length; h++) {
+                if (this.open[h] != null) {
+                    close(h);
+                }
+            }
+            this.btree.syncFreshNodes();
+            if (this.rootId != 0) {
+                this.btree.rootId = this.rootId;
+            }
+            this.btree.commit();
+        }
+    }
+
+    /**
+     * Builds a compressed-layout B-Tree bottom-up from pairs in ascending key order. How many keys
+     * fit a compressed node depends on their bytes, so nodes cannot be planned from the row count.
+     * Instead each level is filled greedily, node by node, up to the fill factor of a block, and
+     * its last node is topped up from the one before so it is not left nearly empty. Leaves are
+     * streamed in block order; each level above is built from the block ids and separators of the
+     * level below once that level is complete.
+     */
+    static class CompressedBulkBuilder implements TreeBuilder {
+        private final BTree btree;
+        private final long expected;
+        private final int targetBytes;
+        private final Level leaves;
+        private long added = 0;
+        private long lastKey = Long.MIN_VALUE;
+
+        CompressedBulkBuilder(BTree btree, long rows, double fillFactor) {
+            this.btree = btree;
+            this.expected = rows;
+            // A node filled to the target must not be crowded, and must hold at least t - 1 worst-case keys
+            int most = btree.blockSize - COMPRESSED_SLACK;
+            int least = NODE_HEADER_LONGS * Long.BYTES + MAX_VARINT_BYTES + (btree.minDegree - 1) * MAX_COMPRESSED_ENTRY;
+            this.targetBytes = (int) Math.max(least, Math.min(most, Math.round(fillFactor * btree.blockSize)));
+            this.leaves = new Level(true);
+        }
+
+        @Override
+        public void add(long key, long value) throws IOException {
+            if (key < this.lastKey) {
+                throw new IOException("Bulk load input is not sorted at key " + key + ".");
+            }
+            if (this.added == this.expected) {
+                throw new IOException("Bulk load input has more rows than planned.");
+            }
+            this.lastKey = key;
+            this.added++;
+            this.leaves.add(key, value, 0);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (this.added != this.expected) {
+                throw new IOException("Bulk load input changed: expected " + this.expected + " rows, got " + this.added + ".");
+            }
+            Level level = this.leaves;
+            level.finish();
+            while (level.count > 1) {
+                Level above = new Level(false);
+                above.start(level.ids[0]);
+                for (int i = 1; i < level.count; i++) {
+                    above.add(level.keys[i - 1], level.values[i - 1], level.ids[i]);
+                }
+                above.finish();
+                level = above;
+            }
+            this.btree.syncFreshNodes();
+            if (level.count == 1) {
+                this.btree.rootId = level.ids[0];
+            }
+            this.btree.commit();
+        }
+
+        /**
+         * One level of the tree, filled left to right. The last closed node is held back until the
+         * next one closes, so the final node of the level can borrow from it.
+         */
+        private final class Level {
+            private final boolean leaf;
+            // Block ids of the written nodes, and the separator between each one and the next
+            private long[] ids = new long[16];
+            private long[] keys = new long[16];
+            private long[] values = new long[16];
+            private int count = 0;
+            private BTreeNode held;
+            private long heldKey;
+            private long heldValue;
+            private BTreeNode open;
+            private int openBytes;
+
+            Level(boolean leaf) {
+                this.leaf = leaf;
+            }
+
+            // Begin an internal level with the first child of its first node
+            void start(long child) {
+                this.open = this.newNode(child);
+            }
+
+            // Append a pair (with the child to its right, on internal levels); a pair that does not
+            // fit the open node separates it from the next one
+            void add(long key, long value, long child) throws IOException {
+                if (this.open == null) {
+                    this.open = this.newNode(0);
+                }
+                BTreeNode node = this.open;
+                long previous = node.numKeys == 0 ? 0 : node.keys[node.numKeys - 1];
+                int bytes = CodecBuffer.varintLength(key - previous) + CodecBuffer.varintLength(value)
+                        + (this.leaf ? 0 : CodecBuffer.varintLength(child));
+                if (node.numKeys == CompressedBulkBuilder.this.btree.maxKeys
+                        || this.openBytes + bytes > CompressedBulkBuilder.this.targetBytes) {
+                    if (this.held != null) {
+                        this.write(this.held, this.heldKey, this.heldValue);
+                    }
+                    this.held = node;
+                    this.heldKey = key;
+                    this.heldValue = value;
+                    this.open = this.newNode(child);
+                    return;
+                }
+                node.keys[node.numKeys] = key;
+                node.values[node.numKeys] = value;
+                node.numKeys++;
+                if (!this.leaf) {
+                    node.children[node.numKeys] = child;
+                }
+                this.openBytes += bytes;
+            }
+
+            // Write the held and open nodes, the open one topped up to t - 1 keys from the held one
+            void finish() throws IOException {
+                if (this.held != null) {
+                    BTreeNode left = this.held;
+                    BTreeNode right = this.open;
+                    int least = CompressedBulkBuilder.this.btree.minDegree - 1;
+                    while (right.numKeys < least && left.numKeys > right.numKeys + 1) {
+                        System.arraycopy(right.keys, 0, right.keys, 1, right.numKeys);
+                        System.arraycopy(right.values, 0, right.values, 1, right.numKeys);
+                        right.keys[0] = this.heldKey;
+                        right.values[0] = this.heldValue;
+                        if (!this.leaf) {
+                            System.arraycopy(right.children, 0, right.children, 1, right.numKeys + 1);
+                            right.children[0] = left.children[left.numKeys];
+                            left.children[left.numKeys] = 0;
+                        }
+                        right.numKeys++;
+                        left.numKeys--;
+                        this.heldKey = left.keys[left.numKeys];
+                        this.heldValue = left.values[left.numKeys];
+                    }
+                    this.write(left, this.heldKey, this.heldValue);
+                }
+                if (this.open != null) {
+                    this.write(this.open, 0, 0);
+                }
+            }
+
+            // A node for this level, starting with 'child' on internal levels
+            private BTreeNode newNode(long child) {
+                BTreeNode node = CompressedBulkBuilder.this.btree.newNode(0);
+                node.leaf = this.leaf;
+                this.openBytes = NODE_HEADER_LONGS * Long.BYTES;
+                if (!this.leaf) {
+                    node.children[0] = child;
+                    this.openBytes += CodecBuffer.varintLength(child);
+                }
+                return node;
+            }
+
+            // Give a node the next block, write it and record it with the separator that follows it
+            private void write(BTreeNode node, long key, long value) throws IOException {
+                BTree btree = CompressedBulkBuilder.this.btree;
+                node.blockId = btree.allocateBlock();
+                btree.writeFreshNode(node);
+                if (this.count == this.ids.length) {
+                    this.ids = Arrays.copyOf(this.ids, 2 * this.count);
+                    this.keys = Arrays.copyOf(this.keys, 2 * this.count);
+                    this.values = Arrays.copyOf(this.values, 2 * this.count);
+                }
+                this.ids[this.count] = node.blockId;
+                this.keys[this.count] = key;
+                this.values[this.count] = value;
+                this.count++;
+            }
+        }
+    }
+
+    /**
+     * Builds a B+Tree bottom-up from key-value pairs supplied in ascending key order. The rows
+     * are spread evenly over a number of leaves planned from the row count, which take the first
+     * blocks in key order; each leaf's block is assigned when it opens, so the one before it can
+     * be written with its next-leaf link. The levels above are built once the leaves are done,
+     * from the first key and block of each node of the level below.
+     */
+    static class BPlusBulkBuilder implements TreeBuilder {
+        private final BTree btree;
+        private final long expected;
+        private final long baseKeys;
+        private final long extraKeys;
+        private final int targetChildren;
+        // Block and first key of each leaf opened so far
+        private long[] ids = new long[16];
+        private long[] firstKeys = new long[16];
+        private int count = 0;
+        private BTreeNode open;
+        private long added = 0;
+        private long lastKey = Long.MIN_VALUE;
+
+        BPlusBulkBuilder(BTree btree, long rows, double fillFactor) {
+            this.btree = btree;
+            this.expected = rows;
+            int maxKeys = btree.maxKeys;
+            int target = (int) Math.round(fillFactor * maxKeys);
+            target = Math.max(btree.minDegree - 1, Math.min(maxKeys, target));
+            long leaves = Math.max(1, Math.max(BulkBuilder.ceilDiv(rows, maxKeys), rows / target));
+            this.baseKeys = rows / leaves;
+            this.extraKeys = rows % leaves;
+            this.targetChildren = target + 1;
+        }
+
+        @Override
+        public void add(long key, long value) throws IOException {
+            if (key < this.lastKey) {
+                throw new IOException("Bulk load input is not sorted at key " + key + ".");
+            }
+            if (this.added == this.expected) {
+                throw new IOException("Bulk load input has more rows than planned.");
+            }
+            this.lastKey = key;
+            this.added++;
+            BTreeNode leaf = this.open;
+            if (leaf != null && leaf.numKeys == this.baseKeys + (this.count <= this.extraKeys ? 1 : 0)) {
+                this.open = this.openLeaf();
+                leaf.next = this.open.blockId;
+                this.btree.writeFreshNode(leaf);
+                leaf = this.open;
+            } else if (leaf == null) {
+                leaf = this.open = this.openLeaf();
+            }
+            if (leaf.numKeys == 0) {
+                this.firstKeys[this.count - 1] = key;
+            }
+            leaf.keys[leaf.numKeys] = key;
+            leaf.values[leaf.numKeys] = value;
+            leaf.numKeys++;
+        }
+
+        private BTreeNode openLeaf() throws IOException {
+            BTreeNode leaf = this.btree.newNode(this.btree.allocateBlock());
+            if (this.count == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, 2 * this.count);
+                this.firstKeys = Arrays.copyOf(this.firstKeys, 2 * this.count);
+            }
+            this.ids[this.count++] = leaf.blockId;
+            return leaf;
+        }
+
+        // Write the last leaf, then each level above from the one below, and publish the root
+        @Override
+        public void finish() throws IOException {
+            if (this.added != this.expected) {
+                throw new IOException("Bulk load input changed: expected " + this.expected + " rows, got " + this.added + ".");
+            }
+            if (this.open != null) {
+                this.btree.writeFreshNode(this.open);
+            }
+            long[] ids = this.ids;
+            long[] keys = this.firstKeys;
+            int n = this.count;
+            while (n > 1) {
+                int nodes = (int) Math.max(1, Math.max(BulkBuilder.ceilDiv(n, this.btree.maxChildren), n / this.targetChildren));
+                long[] parentIds = new long[nodes];
+                long[] parentKeys = new long[nodes];
+                int c = 0;
+                for (int p = 0; p < nodes; p++) {
+                    int children = n / nodes + (p < n % nodes ? 1 : 0);
+                    BTreeNode node = this.btree.newNode(this.btree.allocateBlock());
+                    node.leaf = false;
+                    node.children[0] = ids[c];
+                    for (int j = 1; j < children; j++) {
+                        node.keys[j - 1] = keys[c + j];
+                        node.children[j] = ids[c + j];
+                    }
+                    node.numKeys = children - 1;
+                    this.btree.writeFreshNode(node);
+                    parentIds[p] = node.blockId;
+                    parentKeys[p] = keys[c];
+                    c += children;
+                }
+                ids = parentIds;
+                keys = parentKeys;
+                n = nodes;
+            }
+            this.btree.syncFreshNodes();
+            if (n == 1) {
+                this.btree.rootId = ids[0];
+            }
+            this.btree.commit();
+        }
+    }
+
+    /**
+     * A stream of key-value pairs read one at a time, in ascending key order.
+     */
+    interface PairStream extends Closeable {
+        // Move to the next pair; returns false once the stream is exhausted
+        boolean next() throws IOException;
+
+        long key();
+
+        long value();
+    }
+
+    /**
+     * Merges several sorted streams into one. Equal keys come out in the order of their streams,
+     * so merging runs cut from a file in order keeps duplicate keys in file order.
+     */
+    static class MergingStream implements PairStream {
+        private final List<? extends PairStream> sources;
+        private final PriorityQueue<Integer> heads;
+        private int current = -1;
+        private long key;
+        private long value;
+
+        MergingStream(List<? extends PairStream> sources) throws IOException {
+            this.sources = sources;
+            this.heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+                int c = Long.compare(sources.get(a).key(), sources.get(b).key());
+                return c != 0 ? c : Integer.compare(a, b);
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).next()) {
+                    this.heads.add(i);
+                }
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            // The stream we took the last pair from is out of the queue until it has moved on
+            if (this.current >= 0 && this.sources.get(this.current).next()) {
+                this.heads.add(this.current);
+            }
+            Integer head = this.heads.poll();
+            if (head == null) {
+                this.current = -1;
+                return false;
+            }
+            this.current = head;
+            this.key = this.sources.get(head).key();
+            this.value = this.sources.get(head).value();
+            return true;
+        }
+
+        @Override
+        public long key() {
+            return this.key;
+        }
+
+        @Override
+        public long value() {
+            return this.value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (PairStream source : this.sources) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Sorts the rows of a CSV-like file that may be far larger than memory. The calling thread
+     * reads the file in chunks of a fixed number of lines; a pool of workers parses each chunk,
+     * sorts it and writes it to a temporary run file, with at most one chunk per worker (plus the
+     * one being read) held in memory. The runs are then merged, in several passes if there are
+     * more than MERGE_FAN_IN of them, and read back through merge().
+     */
+    static class ExternalSorter implements Closeable {
+        private final Path dir;
+        private final List<Run> runs = new ArrayList<>();
+        private long rows = 0;
+        private int nextRun = 0;
+
+        /**
+         * A run file of pairs in key order, written as two longs per pair.
+         */
+        private static final class Run {
+            final Path file;
+            final long rows;
+            final List<String> skipped;
+
+            Run(Path file, long rows, List<String> skipped) {
+                this.file = file;
+                this.rows = rows;
+                this.skipped = skipped;
+            }
+        }
+
+        private ExternalSorter(Path dir) {
+            this.dir = dir;
+        }
+
+        // Sort the valid rows of 'filename', reporting invalid lines in file order as load always has
+        static ExternalSorter sort(String filename, int threads, int runRows) throws IOException {
+            ExternalSorter sorter = new ExternalSorter(Files.createTempDirectory("btree-load"));
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+                Deque<Future<Run>> pending = new ArrayDeque<>();
+                int lineNumber = 0;
+                while (true) {
+                    List<String> lines = new ArrayList<>(runRows);
+                    String line;
+                    while (lines.size() < runRows && (line = br.readLine()) != null) {
+                        lines.add(line);
+                    }
+                    if (lines.isEmpty()) {
+                        break;
+                    }
+                    Path file = sorter.dir.resolve("run" + sorter.nextRun++);
+                    int firstLine = lineNumber + 1;
+                    pending.add(pool.submit(() -> writeRun(lines, firstLine, file)));
+                    lineNumber += lines.size();
+                    if (pending.size() > threads) {
+                        sorter.collect(pending.poll());
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    sorter.collect(pending.poll());
+                }
+                sorter.reduce();
+                return sorter;
+            } catch (IOException | RuntimeException | Error e) {
+                sorter.close();
+                throw e;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        // Wait for a run, report its invalid lines and keep it
+        private void collect(Future<Run> future) throws IOException {
+            Run run;
+            try {
+                run = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sorting load input.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Sorting load input failed.", e.getCause());
+            }
+            for (String message : run.skipped) {
+                System.out.println(message);
+            }
+            this.runs.add(run);
+            this.rows += run.rows;
+        }
+
+        // Parse one chunk of lines, sort its pairs by key and write them to 'file'
+        private static Run writeRun(List<String> lines, int firstLine, Path file) throws IOException {
+            long[] keys = new long[lines.size()];
+            long[] values = new long[lines.size()];
+            long[] pair = new long[2];
+            List<String> skipped = new ArrayList<>();
+            int n = 0;
+            for (int i = 0; i < lines.size(); i++) {
+                if (BTree.parseRow(lines.get(i), pair)) {
+                    keys[n] = pair[0];
+                    values[n] = pair[1];
+                    n++;
+                } else {
+                    skipped.add("Skipping invalid line " + (firstLine + i) + ": " + lines.get(i).trim());
+                }
+            }
+            sortPairs(keys, values, n);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                for (int i = 0; i < n; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(values[i]);
+                }
+            }
+            return new Run(file, n, skipped);
+        }
+
+        // Stable bottom-up merge sort of the first n pairs by key, so duplicates keep file order
+        static void sortPairs(long[] keys, long[] values, int n) {
+            long[] k = keys;
+            long[] v = values;
+            long[] kt = new long[n];
+            long[] vt = new long[n];
+            for (int width = 1; width < n; width *= 2) {
+                for (int lo = 0; lo < n; lo += 2 * width) {
+                    int mid = Math.min(lo + width, n);
+                    int hi = Math.min(lo + 2 * width, n);
+                    int i = lo;
+                    int j = mid;
+                    for (int out = lo; out < hi; out++) {
+                        if (i < mid && (j == hi || k[i] <= k[j])) {
+                            kt[out] = k[i];
+                            vt[out] = v[i++];
+                        } else {
+                            kt[out] = k[j];
+                            vt[out] = v[j++];
+                        }
+                    }
+                }
+                long[] swap = k;
+                k = kt;
+                kt = swap;
+                swap = v;
+                v = vt;
+                vt = swap;
+            }
+            if (k != keys) {
+                System.arraycopy(k, 0, keys, 0, n);
+                System.arraycopy(v, 0, values, 0, n);
+            }
+        }
+
+        // Merge neighbouring runs until at most MERGE_FAN_IN are left
+        private void reduce() throws IOException {
+            while (this.runs.size() > MERGE_FAN_IN) {
+                List<Run> merged = new ArrayList<>();
+                for (int from = 0; from < this.runs.size(); from += MERGE_FAN_IN) {
+                    List<Run> group = this.runs.subList(from, Math.min(from + MERGE_FAN_IN, this.runs.size()));
+                    Path file = this.dir.resolve("run" + this.nextRun++);
+                    long count = 0;
+                    try (PairStream in = open(group);
+                         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                        while (in.next()) {
+                            out.writeLong(in.key());
+                            out.writeLong(in.value());
+                            count++;
+                        }
+                    }
+                    for (Run run : group) {
+                        Files.delete(run.file);
+                    }
+                    merged.add(new Run(file, count, Collections.emptyList()));
+                }
+                this.runs.clear();
+                this.runs.addAll(merged);
+            }
+        }
+
+        private static PairStream open(List<Run> runs) throws IOException {
+            List<RunReader> readers = new ArrayList<>();
+            try {
+                for (Run run : runs) {
+                    readers.add(new RunReader(run));
+                }
+            } catch (IOException e) {
+                for (RunReader reader : readers) {
+                    reader.close();
+                }
+                throw e;
+            }
+            return new MergingStream(readers);
+        }
+
+        // Number of valid rows in the input
+        long rows() {
+            return this.rows;
+        }
+
+        // Every valid row of the input in key order; duplicates in the order they appear in the file
+        PairStream merge() throws IOException {
+            return open(this.runs);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+                for (Path p : files) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(this.dir);
+        }
+
+        /**
+         * Reads the pairs of one run file back in order.
+         */
+        private static final class RunReader implements PairStream {
+            private final DataInputStream in;
+            private long remaining;
+            private long key;
+            private long value;
+
+            RunReader(Run run) throws IOException {
+                this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.file), 1 << 16));
+                this.remaining = run.rows;
+            }
+
+            @Override
+            public boolean next() throws IOException {
+                if (this.remaining == 0) {
+                    return false;
+                }
+                this.remaining--;
+                this.key = this.in.readLong();
+                this.value = this.in.readLong();
+                return true;
+            }
+
+            @Override
+            public long key() {
+                return this.key;
+            }
+
+            @Override
+            public long value() {
+                return this.value;
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.in.close();
+            }
+        }
+    }
+
+    /**
+     * Fork-join task writing the pairs of a run of key ranges into numbered part files, one per
+     * range. Runs are halved until a single range is left, so idle workers steal the larger halves.
+     * Range i holds the keys above bounds[i - 1] up to bounds[i], open at both ends of the array.
+     * Every range is read from the same snapshot, so the parts join into one consistent copy.
+     */
+    static class ExtractTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+        // Room for the longest row: two 20-character longs, a comma and the line separator
+        private static final int MAX_ROW_BYTES = 41 + LINE_SEPARATOR.length;
+
+        private final Snapshot snapshot;
+        private final long[] bounds;
+        private final String partPrefix;
+        private final int from;
+        private final int to;
+
+        ExtractTask(Snapshot snapshot, long[] bounds, String partPrefix, int from, int to) {
+            this.snapshot = snapshot;
+            this.bounds = bounds;
+            this.partPrefix = partPrefix;
+            this.from = from;
+            this.to = to;
+        }
+
+        // Name of the part file that receives range i
+        static Path partFile(String partPrefix, int i) {
+            return Paths.get(partPrefix + ".part" + i);
+        }
+
+        @Override
+        protected Long compute() {
+            if (this.to - this.from == 1) {
+                try {
+                    return writePart(this.from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int mid = (this.from + this.to) >>> 1;
+            ExtractTask left = new ExtractTask(this.snapshot, this.bounds, this.partPrefix, this.from, mid);
+            left.fork();
+            long rows = new ExtractTask(this.snapshot, this.bounds, this.partPrefix, mid, this.to).compute();
+            return rows + left.join();
+        }
+
+        // Stream range i through a cursor into its part file and return the number of rows
+        private long writePart(int i) throws IOException {
+            long lo = i == 0 ? Long.MIN_VALUE : this.bounds[i - 1] + 1;
+            long hi = i == this.bounds.length ? Long.MAX_VALUE : this.bounds[i];
+            byte[] buf = new byte[1 << 16];
+            int pos = 0;
+            long rows = 0;
+            try (OutputStream out = Files.newOutputStream(partFile(this.partPrefix, i));
+                 PairStream c = this.snapshot.scan(lo, hi)) {
+                while (c.next()) {
+                    if (pos > buf.length - MAX_ROW_BYTES) {
+                        out.write(buf, 0, pos);
+                        pos = 0;
+                    }
+                    pos = putDecimal(c.key(), buf, pos);
+                    buf[pos++] = ',';
+                    pos = putDecimal(c.value(), buf, pos);
+                    System.arraycopy(LINE_SEPARATOR, 0, buf, pos, LINE_SEPARATOR.length);
+                    pos += LINE_SEPARATOR.length;
+                    rows++;
+                }
+                out.write(buf, 0, pos);
+            }
+            return rows;
+        }
+
+        // Write v in decimal, exactly as Long.toString would, at buf[pos]; returns the end position
+        static int putDecimal(long v, byte[] buf, int pos) {
+            if (v < 0) {
+                buf[pos++] = '-';
+            } else {
+                v = -v;
+            }
+            // v is now <= 0, which also covers Long.MIN_VALUE
+            int end = pos + 1;
+            for (long t = v; t <= -10; t /= 10) {
+                end++;
+            }
+            for (int i = end - 1; i >= pos; i--) {
+                buf[i] = (byte) ('0' - v % 10);
+                v /= 10;
+            }
+            return end;
+        }
+    }
+
+    /**
+     * Per-thread scratch block used to encode and decode nodes without allocating per field.
+     * The long view shares the byte buffer's memory, so both are positioned in step.
+     */
+    static final class CodecBuffer {
+        private static final ThreadLocal<CodecBuffer> CURRENT = new ThreadLocal<>();
+
+        final ByteBuffer bytes;
+        final LongBuffer longs;
+
+        private CodecBuffer(int capacity) {
+            this.bytes = ByteBuffer.allocate(capacity);
+            this.longs = this.bytes.asLongBuffer();
+        }
+
+        // This thread's buffer, grown if needed, cleared and limited to one block of 'blockSize' bytes
+        static CodecBuffer forBlock(int blockSize) {
+            CodecBuffer buffer = CURRENT.get();
+            if (buffer == null || buffer.bytes.capacity() < blockSize) {
+                buffer = new CodecBuffer(blockSize);
+                CURRENT.set(buffer);
+            }
+            buffer.bytes.clear().limit(blockSize);
+            buffer.longs.clear().limit(blockSize / Long.BYTES);
+            return buffer;
+        }
+
+        // Unsigned LEB128: seven bits per byte, lowest first, with the high bit set on all but the last
+        static void putVarint(ByteBuffer out, long v) {
+            while ((v & ~0x7FL) != 0) {
+                out.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.put((byte) v);
+        }
+
+        static long getVarint(ByteBuffer in) {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = in.get();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalStateException("Varint longer than " + MAX_VARINT_BYTES + " bytes.");
+        }
+
+        static int varintLength(long v) {
+            return v == 0 ? 1 : (Long.SIZE - Long.numberOfLeadingZeros(v) + 6) / 7;
+        }
+    }
+
+    /**
+     * Admits any number of readers until a writer closes it, then holds new readers back and waits
+     * for those inside to leave. Entering costs one striped increment and a volatile read, so
+     * unlike a shared lock it adds no contention between readers.
+     */
+    static class ReaderGate {
+        private final LongAdder inside = new LongAdder();
+        private volatile boolean closed = false;
+
+        void enter() {
+            while (true) {
+                this.inside.increment();
+                if (!this.closed) {
+                    return;
+                }
+                this.inside.decrement();
+                synchronized (this) {
+                    boolean interrupted = false;
+                    while (this.closed) {
+                        try {
+                            this.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        // Enter unless the gate is closed, without waiting for it to open
+        boolean tryEnter() {
+            this.inside.increment();
+            if (this.closed) {
+                this.inside.decrement();
+                return false;
+            }
+            return true;
+        }
+
+        void exit() {
+            this.inside.decrement();
+        }
+
+        // Stop admitting readers and wait until none are inside
+        void close() {
+            this.closed = true;
+            while (this.inside.sum() != 0) {
+                Thread.yield();
+            }
+        }
+
+        synchronized void open() {
+            this.closed = false;
+            this.notifyAll();
+        }
+
+        boolean isClosed() {
+            return this.closed;
+        }
+    }
+
+    /**
+     * Bloom filter over the keys of an index, saved to <index>.bloom by a clean close. A negative
+     * answer is exact, so most searches for a missing key end without reading a node. Keys are
+     * never removed; a deleted key only costs a wasted descent. Bits are set by compare-and-set,
+     * so inserts on several threads can add keys at once.
+     */
+    static class BloomFilter {
+        private static final byte[] MAGIC = "4337BLM1".getBytes();
+        private final AtomicLongArray words;
+        private final long numBits;
+        private final int numHashes;
+        // Keys the filter was sized for, and keys added to it so far (duplicates included)
+        final long capacity;
+        private final AtomicLong added;
+
+        private BloomFilter(long capacity, long numBits, int numHashes, long added) {
+            this.words = new AtomicLongArray((int) (numBits / Long.SIZE));
+            this.numBits = numBits;
+            this.numHashes = numHashes;
+            this.capacity = capacity;
+            this.added = new AtomicLong(added);
+        }
+
+        // An empty filter that answers with about 'fpp' false positives once it holds 'keys' keys
+        static BloomFilter forKeys(long keys, double fpp) {
+            long capacity = Math.max(keys, BLOOM_MIN_KEYS);
+            double ln2 = Math.log(2);
+            long bits = (long) Math.ceil(-capacity * Math.log(fpp) / (ln2 * ln2));
+            bits = Math.min((bits + Long.SIZE - 1) / Long.SIZE, Integer.MAX_VALUE) * Long.SIZE;
+            int hashes = (int) Math.max(1, Math.min(30, Math.round((double) bits / capacity * ln2)));
+            return new BloomFilter(capacity, bits, hashes, 0);
+        }
+
+        void add(long key) {
+            long h = mix(key);
+            long h1 = h >>> 32;
+            long h2 = (h & 0xFFFFFFFFL) | 1;
+            for (int i = 0; i < this.numHashes; i++) {
+                long bit = (h1 + i * h2) % this.numBits;
+                int w = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long old;
+                do {
+                    old = this.words.get(w);
+                } while ((old & mask) == 0 && !this.words.compareAndSet(w, old, old | mask));
+            }
+            this.added.incrementAndGet();
+        }
+
+        boolean mightContain(long key) {
+            long h = mix(key);
+            long h1 = h >>> 32;
+            long h2 = (h & 0xFFFFFFFFL) | 1;
+            for (int i = 0; i < this.numHashes; i++) {
+                long bit = (h1 + i * h2) % this.numBits;
+                if ((this.words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long added() {
+            return this.added.get();
+        }
+
+        long sizeBytes() {
+            return this.numBits / Byte.SIZE;
+        }
+
+        int numHashes() {
+            return this.numHashes;
+        }
+
+        // False-positive rate expected with the keys added so far
+        double expectedFpp() {
+            return Math.pow(1 - Math.exp(-(double) this.numHashes * this.added.get() / this.numBits), this.numHashes);
+        }
+
+        // SplitMix64 finalizer: spreads sequential keys over all 64 bits
+        private static long mix(long key) {
+            long z = key + 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        // Write the filter with a stamp of the index header it matches and a checksum of its bits
+        void save(Path path, long[] stamp) throws IOException {
+            CRC32 crc = new CRC32();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+                out.write(MAGIC);
+                for (long v : stamp) {
+                    out.writeLong(v);
+                }
+                out.writeLong(this.capacity);
+                out.writeLong(this.numBits);
+                out.writeLong(this.numHashes);
+                out.writeLong(this.added.get());
+                byte[] word = new byte[Long.BYTES];
+                for (int i = 0; i < this.words.length(); i++) {
+                    long v = this.words.get(i);
+                    out.writeLong(v);
+                    for (int b = 0; b < Long.BYTES; b++) {
+                        word[b] = (byte) (v >>> (56 - 8 * b));
+                    }
+                    crc.update(word);
+                }
+                out.writeLong(crc.getValue());
+            }
+        }
+
+        // Read a saved filter, or return null if there is none, it is damaged, or its stamp is not 'stamp'
+        static BloomFilter load(Path path, long[] stamp) throws IOException {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            long size = Files.size(path);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+                byte[] magic = new byte[MAGIC.length];
+                if (size < MAGIC.length + (stamp.length + 5) * Long.BYTES) {
+                    return null;
+                }
+                in.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    return null;
+                }
+                for (long v : stamp) {
+                    if (in.readLong() != v) {
+                        return null;
+                    }
+                }
+                long capacity = in.readLong();
+                long numBits = in.readLong();
+                long numHashes = in.readLong();
+                long added = in.readLong();
+                if (numBits <= 0 || numBits % Long.SIZE != 0 || numHashes < 1 || numHashes > 30
+                        || size != MAGIC.length + (stamp.length + 5) * Long.BYTES + numBits / Byte.SIZE) {
+                    return null;
+                }
+                BloomFilter filter = new BloomFilter(capacity, numBits, (int) numHashes, added);
+                CRC32 crc = new CRC32();
+                byte[] word = new byte[Long.BYTES];
+                for (int i = 0; i < filter.words.length(); i++) {
+                    in.readFully(word);
+                    crc.update(word);
+                    filter.words.set(i, ByteBuffer.wrap(word).getLong());
+                }
+                return in.readLong() == crc.getValue() ? filter : null;
+            }
+        }
+    }
+
+    /**
+     * Management view of an open index, registered with the platform MBean server as
+     * btree:type=Index,file=<path>. Latencies are in microseconds.
+     */
+    public interface IndexStatsMBean {
+        long getCacheHits();
+        long getCacheMisses();
+        long getCacheEvictions();
+        long getDirtyWritebacks();
+        long getNodeReads();
+        long getNodeWrites();
+        long getPrefetches();
+        long getPrefetchHits();
+        long getFsyncs();
+        double getFsyncMillis();
+        long getSplits();
+        double getSplitsPerInsert();
+        long getMerges();
+        long getFreeBlocks();
+        long getFilterSkips();
+        long getFilterFalsePositives();
+        int getOpenSnapshots();
+        long getSnapshotCopies();
+        int getTreeHeight();
+        long getInserts();
+        double getInsertP50Micros();
+        double getInsertP99Micros();
+        double getInsertMaxMicros();
+        long getSearches();
+        double getSearchP50Micros();
+        double getSearchP99Micros();
+        double getSearchMaxMicros();
+        long getDeletes();
+        double getDeleteP99Micros();
+        long getLoads();
+        double getLoadP50Micros();
+        double getLoadP99Micros();
+        double getLoadMaxMicros();
+    }
+
+    /**
+     * Latency histogram with four buckets per power of two of nanoseconds, so a percentile is
+     * reported within 25% of the true value. Buckets are LongAdders: recording never blocks,
+     * and a reader sees a sum that may be a few records behind rather than an atomic snapshot.
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 4;
+        private final LongAdder[] buckets = new LongAdder[64 * SUB_BUCKETS];
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        LatencyHistogram() {
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            this.buckets[bucketOf(nanos)].increment();
+            this.totalNanos.add(nanos);
+            this.maxNanos.accumulate(nanos);
+        }
+
+        // Record 'count' operations that took 'nanos' each, such as the share of one batch
+        void record(long nanos, long count) {
+            nanos = Math.max(nanos, 0);
+            this.buckets[bucketOf(nanos)].add(count);
+            this.totalNanos.add(nanos * count);
+            this.maxNanos.accumulate(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder b : this.buckets) {
+                count += b.sum();
+            }
+            return count;
+        }
+
+        double meanNanos() {
+            long count = count();
+            return count == 0 ? 0 : (double) this.totalNanos.sum() / count;
+        }
+
+        long maxNanos() {
+            return this.maxNanos.get();
+        }
+
+        // Upper bound of the bucket holding the given fraction of recorded values (0 when empty)
+        long percentileNanos(double fraction) {
+            long[] counts = new long[this.buckets.length];
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets[i].sum();
+                count += counts[i];
+            }
+            long target = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBoundOf(i), maxNanos());
+                }
+            }
+            return 0;
+        }
+
+        // Values below 4 get a bucket each; above that, the top three bits pick one of four per power of two
+        private static int bucketOf(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (msb - 2)) & (SUB_BUCKETS - 1);
+            return ((msb - 1) * SUB_BUCKETS) + sub;
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int msb = bucket / SUB_BUCKETS + 1;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (msb - 2);
+            return lower + (1L << (msb - 2)) - 1;
+        }
+    }
+
+    /**
+     * Counters and latency histograms for one index, shared by its buffer pool and write-ahead
+     * log. Everything is a LongAdder so the hot paths only pay for an uncontended increment,
+     * which keeps the metrics cheap enough to leave on.
+     */
+    static class Metrics implements IndexStatsMBean {
+        final LongAdder cacheHits = new LongAdder();
+        final LongAdder cacheMisses = new LongAdder();
+        final LongAdder cacheEvictions = new LongAdder();
+        final LongAdder dirtyWritebacks = new LongAdder();
+        final LongAdder nodeReads = new LongAdder();
+        final LongAdder nodeWrites = new LongAdder();
+        final LongAdder fsyncs = new LongAdder();
+        final LongAdder fsyncNanos = new LongAdder();
+        final LongAdder splits = new LongAdder();
+        final LongAdder merges = new LongAdder();
+        // Searched keys the Bloom filter ruled out, and keys it let through that were not there
+        final LongAdder filterSkips = new LongAdder();
+        final LongAdder filterFalsePositives = new LongAdder();
+        // Nodes that writers copied to a new block because an open snapshot could still read them
+        final LongAdder snapshotCopies = new LongAdder();
+        // Blocks read ahead of a scan, and those pinned before they were evicted
+        final LongAdder prefetches = new LongAdder();
+        final LongAdder prefetchHits = new LongAdder();
+        // Write buffer flushes into the tree and the pairs they moved
+        final LongAdder bufferFlushes = new LongAdder();
+        final LongAdder bufferFlushedPairs = new LongAdder();
+        final LatencyHistogram insertLatency = new LatencyHistogram();
+        final LatencyHistogram searchLatency = new LatencyHistogram();
+        final LatencyHistogram loadLatency = new LatencyHistogram();
+        final LatencyHistogram deleteLatency = new LatencyHistogram();
+
+        private final BTree btree;
+        private ObjectName registeredName;
+
+        Metrics(BTree btree) {
+            this.btree = btree;
+        }
+
+        // Count one fsync (of the log or the index file) that started at 'startNanos'
+        void recordSync(long startNanos) {
+            this.fsyncs.increment();
+            this.fsyncNanos.add(System.nanoTime() - startNanos);
+        }
+
+        // Publish these metrics over JMX while the index is open; failure only costs the JMX view
+        synchronized void register(String filePath) {
+            unregister();
+            try {
+                ObjectName name = new ObjectName("btree:type=Index,file=" + ObjectName.quote(filePath));
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(name)) {
+                    // Another open instance of the same file (a read-only scan, say) keeps the name
+                    return;
+                }
+                server.registerMBean(new StandardMBean(this, IndexStatsMBean.class), name);
+                this.registeredName = name;
+            } catch (JMException e) {
+                System.err.println("Could not register index metrics with JMX: " + e.getMessage());
+            }
+        }
+
+        synchronized void unregister() {
+            if (this.registeredName == null) {
+                return;
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.registeredName);
+            } catch (JMException e) {
+                // Already gone; nothing left to clean up
+            }
+            this.registeredName = null;
+        }
+
+        // Human-readable summary for the stats command
+        String report() throws IOException {
+            long hits = this.cacheHits.sum();
+            long misses = this.cacheMisses.sum();
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("Cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d dirty write-backs.%n",
+                    hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+                    this.cacheEvictions.sum(), this.dirtyWritebacks.sum()));
+            out.append(String.format("Nodes: %d read, %d written.%n", this.nodeReads.sum(), this.nodeWrites.sum()));
+            out.append(String.format("Read-ahead: %d blocks read ahead of scans, %d of them used.%n",
+                    this.prefetches.sum(), this.prefetchHits.sum()));
+            out.append(String.format("Fsync: %d calls, %.3f ms total.%n", this.fsyncs.sum(), getFsyncMillis()));
+            out.append(String.format("Tree: height %d, %d splits (%.4f per insert), %d merges.%n",
+                    this.btree.height(), this.splits.sum(), getSplitsPerInsert(), this.merges.sum()));
+            out.append(String.format("File: %d blocks, %s layout, %d on the free list.%n",
+                    this.btree.nextBlockId, this.btree.layout().name().toLowerCase(), this.btree.freeCount));
+            BloomFilter filter = this.btree.filter;
+            if (filter != null) {
+                out.append(String.format("Filter: %d keys in %d bytes, %d hashes, %.2f%% expected false positives; %d searches skipped, %d false positives.%n",
+                        filter.added(), filter.sizeBytes(), filter.numHashes(), 100 * filter.expectedFpp(),
+                        this.filterSkips.sum(), this.filterFalsePositives.sum()));
+            } else {
+                out.append(String.format("Filter: off.%n"));
+            }
+            WriteBuffer buffer = this.btree.buffer;
+            if (buffer != null) {
+                out.append(String.format("Write buffer: %d pairs held of %d, %d flushes moved %d pairs.%n",
+                        buffer.size(), this.btree.memtableKeys, this.bufferFlushes.sum(), this.bufferFlushedPairs.sum()));
+            } else {
+                out.append(String.format("Write buffer: off.%n"));
+            }
+            out.append(String.format("Snapshots: %d open, %d nodes copied for them, %d blocks waiting to be freed.%n",
+                    this.btree.openSnapshots(), this.snapshotCopies.sum(), this.btree.retiredBlocks()));
+            appendLatency(out, "insert", this.insertLatency);
+            appendLatency(out, "search", this.searchLatency);
+            appendLatency(out, "delete", this.deleteLatency);
+            appendLatency(out, "load", this.loadLatency);
+            return out.toString();
+        }
+
+        private static void appendLatency(StringBuilder out, String name, LatencyHistogram h) {
+            out.append(String.format("%s: %d ops, mean %.1f us, p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us.%n",
+                    name, h.count(), h.meanNanos() / 1e3, h.percentileNanos(0.5) / 1e3, h.percentileNanos(0.9) / 1e3,
+                    h.percentileNanos(0.99) / 1e3, h.percentileNanos(0.999) / 1e3, h.maxNanos() / 1e3));
+        }
+
+        @Override
+        public long getCacheHits() {
+            return this.cacheHits.sum();
+        }
+
+        @Override
+        public long getCacheMisses() {
+            return this.cacheMisses.sum();
+        }
+
+        @Override
+        public long getCacheEvictions() {
+            return this.cacheEvictions.sum();
+        }
+
+        @Override
+        public long getDirtyWritebacks() {
+            return this.dirtyWritebacks.sum();
+        }
+
+        @Override
+        public long getNodeReads() {
+            return this.nodeReads.sum();
+        }
+
+        @Override
+        public long getNodeWrites() {
+            return this.nodeWrites.sum();
+        }
+
+        @Override
+        public long getPrefetches() {
+            return this.prefetches.sum();
+        }
+
+        @Override
+        public long getPrefetchHits() {
+            return this.prefetchHits.sum();
+        }
+
+        @Override
+        public long getFsyncs() {
+            return this.fsyncs.sum();
+        }
+
+        @Override
+        public double getFsyncMillis() {
+            return this.fsyncNanos.sum() / 1e6;
+        }
+
+        @Override
+        public long getSplits() {
+            return this.splits.sum();
+        }
+
+        @Override
+        public double getSplitsPerInsert() {
+            long inserts = this.insertLatency.count();
+            return inserts == 0 ? 0 : (double) this.splits.sum() / inserts;
+        }
+
+        @Override
+        public int getTreeHeight() {
+            try {
+                return this.btree.height();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public long getInserts() {
+            return this.insertLatency.count();
+        }
+
+        @Override
+        public double getInsertP50Micros() {
+            return this.insertLatency.percentileNanos(0.5) / 1e3;
+        }
+
+        @Override
+        public double getInsertP99Micros() {
+            return this.insertLatency.percentileNanos(0.99) / 1e3;
+        }
+
+        @Override
+        public double getInsertMaxMicros() {
+            return this.insertLatency.maxNanos() / 1e3;
+        }
+
+        @Override
+        public long getSearches() {
+            return this.searchLatency.count();
+        }
+
+        @Override
+        public double getSearchP50Micros() {
+            return this.searchLatency.percentileNanos(0.5) / 1e3;
+        }
+
+        @Override
+        public double getSearchP99Micros() {
+            return this.searchLatency.percentileNanos(0.99) / 1e3;
+        }
+
+        @Override
+        public double getSearchMaxMicros() {
+            return this.searchLatency.maxNanos() / 1e3;
+        }
+
+        @Override
+        public long getMerges() {
+            return this.merges.sum();
+        }
+
+        @Override
+        public long getFreeBlocks() {
+            return this.btree.freeCount;
+        }
+
+        @Override
+        public long getFilterSkips() {
+            return this.filterSkips.sum();
+        }
+
+        @Override
+        public long getFilterFalsePositives() {
+            return this.filterFalsePositives.sum();
+        }
+
+        @Override
+        public int getOpenSnapshots() {
+            return this.btree.openSnapshots();
+        }
+
+        @Override
+        public long getSnapshotCopies() {
+            return this.snapshotCopies.sum();
+        }
+
+        @Override
+        public long getDeletes() {
+            return this.deleteLatency.count();
+        }
+
+        @Override
+        public double getDeleteP99Micros() {
+            return this.deleteLatency.percentileNanos(0.99) / 1e3;
+        }
+
+        @Override
+        public long getLoads() {
+            return this.loadLatency.count();
+        }
+
+        @Override
+        public double getLoadP50Micros() {
+            return this.loadLatency.percentileNanos(0.5) / 1e3;
+        }
+
+        @Override
+        public double getLoadP99Micros() {
+            return this.loadLatency.percentileNanos(0.99) / 1e3;
+        }
+
+        @Override
+        public double getLoadMaxMicros() {
+            return this.loadLatency.maxNanos() / 1e3;
+        }
+    }
+
+    /**
+     * The operations the commands run against an open index, whether it is one BTree file or
+     * a ShardedIndex spread over several.
+     */
+    interface Index {
+        void insert(long key, long value) throws IOException;
+
+        // Insert the first n pairs, committed together
+        void insertMany(long[] keys, long[] values, int n) throws IOException;
+
+        boolean delete(long key) throws IOException;
+
+        // Replace the value of the first pair with this key; returns false if there is none
+        boolean update(long key, long value) throws IOException;
+
+        Long searchKey(long key) throws IOException;
+
+        // The value of each key in order, or null where a key is missing
+        Long[] searchMany(long[] keys) throws IOException;
+
+        // The pairs with fromKey <= key <= toKey, in ascending key order
+        PairStream scan(long fromKey, long toKey) throws IOException;
+
+        // How many pairs have fromKey <= key <= toKey
+        long count(long fromKey, long toKey) throws IOException;
+
+        // How many pairs have a key below 'key': the position its first pair has, or would have, in key order
+        long rank(long key) throws IOException;
+
+        // The pair at 0-based position 'position' in key order as {key, value}, or null past the last pair
+        long[] select(long position) throws IOException;
+
+        // Sum of the values of the pairs with fromKey <= key <= toKey, wrapping as long arithmetic does
+        long sum(long fromKey, long toKey) throws IOException;
+
+        void loadData(String filename) throws IOException;
+
+        // Write every pair to 'filename', replacing it if it exists; the caller asks before overwriting
+        void extractData(String filename) throws IOException;
+
+        void compact(double fillFactor) throws IOException;
+
+        // Rebuild the Bloom filters from the keys now present and return how many there were
+        long rebuildFilter() throws IOException;
+
+        // The Bloom filters in use; empty when filters are off
+        List<BloomFilter> filters();
+
+        boolean upgradeFormat() throws IOException;
+
+        boolean isReadOnly();
+
+        int shardCount();
+
+        // Human-readable summary for the stats command
+        String report() throws IOException;
+
+        void closeIndexFile();
+
+        default void printTree() throws IOException {
+            printRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        // Print the pairs with fromKey <= key <= toKey and return how many there were
+        default long printRange(long fromKey, long toKey) throws IOException {
+            long count = 0;
+            try (PairStream c = this.scan(fromKey, toKey)) {
+                while (c.next()) {
+                    System.out.println(c.key() + ": " + c.value());
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        // Create an index file, or a manifest and that many shard files when 'shards' is above 1
+        static Index create(String filename, int shards) throws IOException {
+            ShardedIndex.deleteShards(filename);
+            if (shards == 1) {
+                BTree index = new BTree(filename);
+                index.createIndexFile();
+                return index;
+            }
+            return ShardedIndex.create(filename, shards);
+        }
+
+        // Open an index file, or the shards named by a manifest
+        static Index open(String filename) throws IOException {
+            if (ShardedIndex.isManifest(filename)) {
+                return ShardedIndex.open(filename);
+            }
+            BTree index = new BTree(filename);
+            index.openAndLoad("rw");
+            return index;
+        }
+    }
+
+    /**
+     * BTree class handles all operations on the B-Tree index such as
+     * creating, opening, inserting, searching, loading, extracting, and printing.
+     */
+    static class BTree implements Index {
+        private String filePath;
+        private NodeStorage storage;
+        private WriteAheadLog wal;
+        // Root and next block as last written to the header, to know when it needs rewriting
+        private long headerRootId = -1;
+        private long headerNextBlockId = -1;
+        private long headerFreeHead = -1;
+        private long headerBufferEpoch = -1;
+        volatile long rootId = 0;
+        long nextBlockId = 1;
+        // Freed blocks form a list threaded through the blocks themselves, reused before the file grows
+        long freeHead = 0;
+        long freeCount = 0;
+        BufferPool cache;
+        // Buffer pool size in nodes, or 0 to size it from the btree.cachePages/btree.cacheMB properties
+        private final int cacheCapacity;
+        // On-disk layout, from the header of an opened file or the settings of a created one
+        int formatVersion = 2;
+        int blockSize;
+        int minDegree;
+        int maxKeys;
+        int maxChildren;
+        boolean compressed;
+        boolean bplus;
+        boolean counted;
+        // Version-1 files are opened read-only until they are upgraded
+        boolean readOnly = false;
+        // Whether the file was opened "rw"; only such an open saves the filter when it closes
+        private boolean writable = false;
+        // Length and modification time of the index file just before it was opened
+        private long[] openedFileState;
+        // Checked before a search descends; null when btree.bloomFpp is 0, or a read-only open found no saved filter
+        volatile BloomFilter filter;
+        // Searches and inserts hold this shared and latch nodes; commits and whole-tree work hold it exclusively
+        final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+        // Bumped whenever a node changes, so cursors know when to re-seek
+        final AtomicLong modifications = new AtomicLong();
+        // Inserts finished so far, and how many of them the last commit covered
+        private final AtomicLong completedOps = new AtomicLong();
+        private volatile long committedOps = 0;
+        final Metrics metrics = new Metrics(this);
+        // Searches and cursors pass through this gate, so compaction can swap files beneath them
+        final ReaderGate readers = new ReaderGate();
+        // Each snapshot takes the current generation and starts the next one
+        private long generation = 1;
+        // Generations of the open snapshots, and the newest of them or -1 when none is open. A node
+        // made in that generation or earlier may be read by a snapshot, so writers copy it instead
+        // of changing it.
+        private final TreeSet<Long> snapshots = new TreeSet<>();
+        private volatile long newestSnapshot = -1;
+        // Blocks of nodes replaced by such copies; the first commit after the last snapshot closes frees them
+        private final List<Long> retired = new ArrayList<>();
+        // B+Tree nodes keep their blocks, since leaves are reached through their neighbours as well as
+        // their parents; the image a snapshot needs goes to a new block instead. For each block changed
+        // while shared: pairs of (generation it was copied in, block of the copy), oldest first.
+        final ConcurrentHashMap<Long, long[]> versions = new ConcurrentHashMap<>();
+        // Size at which the write buffer is flushed, or 0 for none; set before the file is created or loaded
+        int memtableKeys = MEMTABLE_KEYS;
+        // Recent inserts not yet in the tree, or null without a write buffer
+        volatile WriteBuffer buffer;
+        // Epoch of the last buffer log flushed into the tree, kept in the header, and flushes so far
+        long bufferEpoch = 0;
+        long bufferFlushes = 0;
+        // Operations that may touch the write buffer hold this shared and a flush holds it exclusively;
+        // it is always taken before treeLatch
+        final ReentrantReadWriteLock bufferLatch = new ReentrantReadWriteLock();
+
+        BTree(String filePath) {
+            this(filePath, 0);
+        }
+
+        BTree(String filePath, int cacheCapacity) {
+            this.filePath = filePath;
+            this.cacheCapacity = cacheCapacity;
+            this.configureLayout(DEFAULT_BLOCK_SIZE, minDegreeFor(DEFAULT_BLOCK_SIZE), NodeLayout.FIXED);
+        }
+
+        // Adopt a block size, minimum degree and node layout and size an empty buffer pool for them.
+        // A fixed or B+Tree node holds exactly 2t - 1 keys; a compressed one holds as many as fit its block.
+        void configureLayout(int blockSize, int minDegree, NodeLayout layout) {
+            this.blockSize = blockSize;
+            this.minDegree = minDegree;
+            this.compressed = layout == NodeLayout.COMPRESSED;
+            this.bplus = layout == NodeLayout.BPLUS;
+            this.counted = layout == NodeLayout.COUNTED;
+            this.maxKeys = this.compressed ? compressedMaxKeys(blockSize) : 2 * minDegree - 1;
+            this.maxChildren = this.maxKeys + 1;
+            this.cache = new BufferPool(this.cacheCapacity > 0 ? this.cacheCapacity : cachePages(blockSize), this);
+        }
+
+        NodeLayout layout() {
+            return this.compressed ? NodeLayout.COMPRESSED : this.bplus ? NodeLayout.BPLUS
+                    : this.counted ? NodeLayout.COUNTED : NodeLayout.FIXED;
+        }
+
+        // Largest minimum degree a block of this size allows in a layout
+        static int maxMinDegree(int blockSize, NodeLayout layout) {
+            switch (layout) {
+                case COMPRESSED:
+                    return compressedMinDegreeFor(blockSize);
+                case BPLUS:
+                    return bplusMinDegreeFor(blockSize);
+                case COUNTED:
+                    return countedMinDegreeFor(blockSize);
+                default:
+                    return minDegreeFor(blockSize);
+            }
+        }
+
+        BTreeNode newNode(long blockId) {
+            BTreeNode node = this.emptyNode(blockId);
+            node.generation = this.generation;
+            return node;
+        }
+
+        // An empty leaf, with room for counts and sums in a counted tree
+        private BTreeNode emptyNode(long blockId) {
+            BTreeNode node = new BTreeNode(blockId, this.maxKeys);
+            if (this.counted) {
+                node.counts = new long[this.maxChildren];
+                node.sums = new long[this.maxChildren];
+            }
+            return node;
+        }
+
+        // A bottom-up builder for exactly 'rows' sorted pairs in this tree's node layout. It replaces
+        // the filter with one sized for those rows; the tree is empty until the builder finishes.
+        TreeBuilder newBulkBuilder(long rows, double fillFactor) {
+            TreeBuilder builder = this.compressed ? new CompressedBulkBuilder(this, rows, fillFactor)
+                    : this.bplus ? new BPlusBulkBuilder(this, rows, fillFactor) : new BulkBuilder(this, rows, fillFactor);
+            BloomFilter filter = newFilter(rows);
+            this.filter = filter;
+            if (filter == null) {
+                return builder;
+            }
+            return new TreeBuilder() {
+                @Override
+                public void add(long key, long value) throws IOException {
+                    filter.add(key);
+                    builder.add(key, value);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    builder.finish();
+                }
+            };
+        }
+
+        // An empty filter with room to grow for an index of about 'keys' keys, or null if filters are off
+        // Checked on every create and open, before any filter is sized from the rate
+        private static void checkBloomFpp() throws IOException {
+            if (BLOOM_FPP != 0 && !(BLOOM_FPP > 0 && BLOOM_FPP < 1)) {
+                throw new IOException("Invalid btree.bloomFpp \"" + System.getProperty("btree.bloomFpp")
+                        + "\"; expected 0 (off) or a rate between 0 and 1.");
+            }
+        }
+
+        private static BloomFilter newFilter(long keys) {
+            return BLOOM_FPP > 0 ? BloomFilter.forKeys(keys * BLOOM_GROWTH, BLOOM_FPP) : null;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return this.readOnly;
+        }
+
+        @Override
+        public int shardCount() {
+            return 1;
+        }
+
+        @Override
+        public List<BloomFilter> filters() {
+            BloomFilter f = this.filter;
+            return f == null ? Collections.emptyList() : Collections.singletonList(f);
+        }
+
+        @Override
+        public String report() throws IOException {
+            return this.metrics.report();
+        }
+
+        // ====== Public interface methods (reordered for clarity) ======
+
+        void openIndexFile(String mode) throws IOException {
+            openIndexFile(mode, STORAGE_KIND);
+        }
+
+        // Open the index file through the given storage backend ("raf" or "mmap")
+        void openIndexFile(String mode, String storageKind) throws IOException {
+            if (DURABILITY == null) {
+                throw invalidProperty("btree.durability", Durability.class);
+            }
+            checkBloomFpp();
+            checkCacheSize();
+            this.openedFileState = fileState();
+            this.storage = NodeStorage.open(this.filePath, mode, storageKind);
+            Path walPath = walPath();
+            boolean readOnly = mode.equals("r");
+            this.writable = !readOnly;
+            if (DURABILITY != Durability.OS && (!readOnly || Files.exists(walPath))) {
+                try {
+                    this.wal = new WriteAheadLog(walPath, this.storage, DURABILITY, readOnly, this.metrics);
+                } catch (IOException | RuntimeException e) {
+                    this.abandonOpen(e);
+                    throw e;
+                }
+            }
+            this.metrics.register(this.filePath);
+        }
+
+        // Open the index file and load the tree. If the load fails, whatever the open started is closed
+        // again without writing to the file, so a file that cannot be read is left as it was.
+        void openAndLoad(String mode) throws IOException {
+            this.openIndexFile(mode);
+            try {
+                this.loadBTree();
+            } catch (IOException | RuntimeException e) {
+                this.abandonOpen(e);
+                throw e;
+            }
+        }
+
+        // Close the write buffer, log and storage of a failed open and drop its JMX registration. Nothing
+        // is committed or checkpointed; logs that still hold records stay for the next open to replay.
+        private void abandonOpen(Exception cause) {
+            WriteBuffer b = this.buffer;
+            this.buffer = null;
+            try {
+                if (b != null) {
+                    b.close();
+                }
+                if (this.wal != null) {
+                    this.wal.abandon();
+                }
+                if (this.storage != null) {
+                    this.storage.close();
+                }
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            } finally {
+                this.wal = null;
+                this.storage = null;
+                this.metrics.unregister();
+            }
+        }
+
+        // Create (or truncate) the index file with an empty header and open it for writing
+        void createIndexFile() throws IOException {
+            if (NODE_LAYOUT == null) {
+                throw invalidProperty("btree.nodeLayout", NodeLayout.class);
+            }
+            createIndexFile(DEFAULT_BLOCK_SIZE, NODE_LAYOUT);
+        }
+
+        // Create a file with the largest minimum degree the block size and layout allow
+        void createIndexFile(int blockSize, NodeLayout layout) throws IOException {
+            createIndexFile(blockSize, maxMinDegree(blockSize, layout), layout);
+        }
+
+        void createIndexFile(int blockSize, int minDegree) throws IOException {
+            createIndexFile(blockSize, minDegree, NodeLayout.FIXED);
+        }
+
+        void createIndexFile(int blockSize, int minDegree, NodeLayout layout) throws IOException {
+            if (Integer.bitCount(blockSize) != 1 || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+                throw new IOException("Block size must be a power of two from " + MIN_BLOCK_SIZE + " to " + MAX_BLOCK_SIZE + ".");
+            }
+            checkBloomFpp();
+            checkCacheSize();
+            this.formatVersion = 2;
+            this.readOnly = false;
+            this.configureLayout(blockSize, minDegree, layout);
+            try (FileOutputStream fos = new FileOutputStream(this.filePath)) {
+                fos.write(new byte[blockSize]);
+            }
+            // A log or filter left by an earlier file of the same name must not be applied to this one
+            Files.deleteIfExists(walPath());
+            Files.deleteIfExists(filterPath());
+            Files.deleteIfExists(bufferPath());
+            this.filter = newFilter(0);
+            this.bufferEpoch = 0;
+            this.openIndexFile("rw");
+            this.writeHeader();
+            this.commit();
+            this.openBuffer();
+        }
+
+        /**
+         * Rows and time of one full scan through a fresh read-only open of an index file with a
+         * small buffer pool, so that nearly every node is read from the file.
+         */
+        static final class ScanTiming {
+            final long rows;
+            final long nanos;
+
+            private ScanTiming(long rows, long nanos) {
+                this.rows = rows;
+                this.nanos = nanos;
+            }
+
+            static ScanTiming of(String filePath) throws IOException {
+                BTree reader = new BTree(filePath, 64);
+                reader.openIndexFile("r");
+                try {
+                    reader.loadBTree();
+                    long start = System.nanoTime();
+                    long rows = 0;
+                    try (Cursor c = reader.treeScan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                        while (c.next()) {
+                            rows++;
+                        }
+                    }
+                    return new ScanTiming(rows, System.nanoTime() - start);
+                } finally {
+                    reader.closeIndexFile();
+                }
+            }
+
+            double rowsPerSecond() {
+                return this.rows / Math.max(this.nanos / 1e9, 1e-9);
+            }
+        }
+
+        /**
+         * Rows added by one load, and the way they were added (bulk build, sorted insert, ...).
+         */
+        static final class LoadResult {
+            final long rows;
+            final String method;
+
+            LoadResult(long rows, String method) {
+                this.rows = rows;
+                this.method = method;
+            }
+        }
+
+        Path walPath() {
+            return Paths.get(this.filePath + ".wal");
+        }
+
+        Path filterPath() {
+            return Paths.get(this.filePath + ".bloom");
+        }
+
+        Path bufferPath() {
+            return Paths.get(this.filePath + ".buf");
+        }
+
+        // What a saved filter must match to be taken as up to date: the header fields that change
+        // with the tree's shape, and the length and modification time of the closed index file
+        private long[] filterStamp(long[] fileState) {
+            return new long[]{this.rootId, this.nextBlockId, this.freeHead, fileState[0], fileState[1]};
+        }
+
+        private long[] fileState() throws IOException {
+            Path path = Paths.get(this.filePath);
+            if (!Files.exists(path)) {
+                return new long[]{-1, -1};
+            }
+            return new long[]{Files.size(path), Files.getLastModifiedTime(path).toMillis()};
+        }
+
+        // Flush and close the write buffer, then close the index file
+        @Override
+        public void closeIndexFile() {
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                try {
+                    try {
+                        this.flushBuffer(1);
+                    } finally {
+                        // A log that could not be flushed stays on disk and is replayed at the next open
+                        b.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    this.buffer = null;
+                }
+            }
+            this.closeFiles();
+        }
+
+        // Commit and close the index file and its log; a swap reopens the file beneath the open write buffer
+        private void closeFiles() {
+            if (this.storage != null) {
+                this.treeLatch.writeLock().lock();
+                try {
+                    this.commit();
+                    // Blocks still kept for open snapshots stay allocated until the next compaction
+                    synchronized (this) {
+                        this.retired.clear();
+                        this.versions.clear();
+                    }
+                    if (this.wal != null) {
+                        this.wal.close();
+                        this.wal = null;
+                    } else {
+                        long syncStart = System.nanoTime();
+                        this.storage.sync();
+                        this.metrics.recordSync(syncStart);
+                    }
+                    this.storage.close();
+                    if (this.writable && this.filter != null) {
+                        this.filter.save(filterPath(), filterStamp(fileState()));
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    this.storage = null;
+                    this.metrics.unregister();
+                    this.treeLatch.writeLock().unlock();
+                }
+            }
+        }
+
+        void loadBTree() throws IOException {
+            this.loadTreeState();
+            this.openBuffer();
+            if (this.needsFilter()) {
+                this.rebuildFilter();
+            }
+        }
+
+        // Replay the log, read the header and take over a saved filter, without scanning the tree
+        private void loadTreeState() throws IOException {
+            if (this.storage == null) {
+                throw new IOException("File is not open.");
+            }
+            this.cache.clear();
+            if (this.wal != null) {
+                long replayed = this.wal.recover();
+                if (replayed > 0) {
+                    System.out.println("Recovered " + replayed + " committed operations from " + walPath() + ".");
+                }
+            }
+            this.readHeader();
+            this.takeSavedFilter();
+        }
+
+        // Open the write buffer if this tree has one, taking back the pairs a crash left in its log. A log
+        // found when the tree has no buffer is replayed and flushed into the tree at once.
+        private void openBuffer() throws IOException {
+            Path path = bufferPath();
+            if (!this.writable || this.readOnly || this.memtableKeys <= 0 && !Files.exists(path)) {
+                return;
+            }
+            WriteBuffer b = WriteBuffer.open(path, this.bufferEpoch, DURABILITY, this.metrics);
+            if (b.size() > 0) {
+                System.out.println("Recovered " + b.size() + " buffered pairs from " + path + ".");
+            }
+            this.buffer = b;
+            if (this.memtableKeys <= 0) {
+                try {
+                    this.flushBuffer(1);
+                } finally {
+                    this.buffer = null;
+                    b.close();
+                }
+            }
+        }
+
+        // Take over the filter saved by the last clean close, if it was saved for this state of the
+        // file. A writable open deletes the saved copy, so a crash before the next close cannot leave
+        // behind a filter that lacks the keys added meanwhile.
+        private void takeSavedFilter() throws IOException {
+            this.filter = null;
+            if (BLOOM_FPP <= 0) {
+                return;
+            }
+            this.filter = BloomFilter.load(filterPath(), filterStamp(this.openedFileState));
+            if (this.writable) {
+                Files.deleteIfExists(filterPath());
+            }
+        }
+
+        // Whether a writable open found no saved filter it could use, so one must be built from the tree
+        private boolean needsFilter() {
+            return BLOOM_FPP > 0 && this.writable && this.filter == null;
+        }
+
+        // Size a new filter for the keys in the tree now and fill it from a scan; returns the key
+        // count. Writers wait. Searches meanwhile use the old filter, which holds every key the new one will.
+        // Buffered keys join the filter when they are flushed into the tree, so they are only counted.
+        @Override
+        public long rebuildFilter() throws IOException {
+            this.treeLatch.writeLock().lock();
+            try {
+                WriteBuffer b = this.buffer;
+                long keys = b == null ? 0 : b.size();
+                try (Cursor c = this.treeScan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    while (c.next()) {
+                        keys++;
+                    }
+                }
+                BloomFilter rebuilt = newFilter(keys);
+                if (rebuilt != null) {
+                    try (Cursor c = this.treeScan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                        while (c.next()) {
+                            rebuilt.add(c.key());
+                        }
+                    }
+                }
+                this.filter = rebuilt;
+                return keys;
+            } finally {
+                this.treeLatch.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public void insert(long key, long value) throws IOException {
+            this.checkWritable();
+            long start = System.nanoTime();
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                this.bufferLatch.readLock().lock();
+                try {
+                    b.insert(key, value);
+                } finally {
+                    this.bufferLatch.readLock().unlock();
+                }
+                this.flushBuffer(this.memtableKeys);
+                this.metrics.insertLatency.record(System.nanoTime() - start);
+                return;
+            }
+            BloomFilter f;
+            this.treeLatch.readLock().lock();
+            try {
+                // Into the filter first, so a search can never find the key in the tree but not in the filter
+                f = this.filter;
+                if (f != null) {
+                    f.add(key);
+                }
+                if (!this.insertOptimistic(key, value)) {
+                    this.insertPessimistic(key, value);
+                }
+            } finally {
+                this.treeLatch.readLock().unlock();
+            }
+            this.commitThrough(this.completedOps.incrementAndGet());
+            if (f != null && f.added() > f.capacity) {
+                this.growFilter(f);
+            }
+            this.metrics.insertLatency.record(System.nanoTime() - start);
+        }
+
+        // Insert the first n pairs of the arrays as one unit, in array order: one commit covers them
+        // all, so with sync durability the whole batch costs a single log force
+        @Override
+        public void insertMany(long[] keys, long[] values, int n) throws IOException {
+            this.checkWritable();
+            if (n == 0) {
+                return;
+            }
+            long start = System.nanoTime();
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                this.bufferLatch.readLock().lock();
+                try {
+                    b.insertMany(keys, values, n);
+                } finally {
+                    this.bufferLatch.readLock().unlock();
+                }
+                this.flushBuffer(this.memtableKeys);
+                this.metrics.insertLatency.record((System.nanoTime() - start) / n, n);
+                return;
+            }
+            BloomFilter f;
+            this.treeLatch.readLock().lock();
+            try {
+                f = this.filter;
+                for (int i = 0; i < n; i++) {
+                    if (f != null) {
+                        f.add(keys[i]);
+                    }
+                    if (!this.insertOptimistic(keys[i], values[i])) {
+                        this.insertPessimistic(keys[i], values[i]);
+                    }
+                }
+            } finally {
+                this.treeLatch.readLock().unlock();
+            }
+            this.commitThrough(this.completedOps.addAndGet(n));
+            if (f != null && f.added() > f.capacity) {
+                this.growFilter(f);
+            }
+            this.metrics.insertLatency.record((System.nanoTime() - start) / n, n);
+        }
+
+        // Move the buffered pairs into the tree as one sorted batch, if there are at least 'minPairs' of
+        // them, then start the next buffer log. The header takes the epoch of the flushed log in the same
+        // commit as the pairs, so a crash before the log is reset does not replay them a second time.
+        void flushBuffer(long minPairs) throws IOException {
+            WriteBuffer b = this.buffer;
+            if (b == null || b.size() < Math.max(1, minPairs)) {
+                return;
+            }
+            BloomFilter f;
+            this.bufferLatch.writeLock().lock();
+            try {
+                if (b.size() < Math.max(1, minPairs)) {
+                    return;
+                }
+                long[][] batch = b.sorted();
+                long[] keys = batch[0];
+                long[] values = batch[1];
+                this.treeLatch.writeLock().lock();
+                try {
+                    f = this.filter;
+                    for (int i = 0; i < keys.length; i++) {
+                        if (f != null) {
+                            f.add(keys[i]);
+                        }
+                        if (!this.insertOptimistic(keys[i], values[i])) {
+                            this.insertPessimistic(keys[i], values[i]);
+                        }
+                    }
+                    this.bufferEpoch = b.epoch();
+                    long upTo = this.completedOps.get();
+                    this.commit();
+                    this.committedOps = upTo;
+                    // The batch must be on disk before the log that holds it is emptied
+                    if (this.wal != null) {
+                        this.wal.checkpoint();
+                    }
+                } finally {
+                    this.treeLatch.writeLock().unlock();
+                }
+                b.reset(this.bufferEpoch + 1);
+                this.bufferFlushes++;
+                this.metrics.bufferFlushes.increment();
+                this.metrics.bufferFlushedPairs.add(keys.length);
+            } finally {
+                this.bufferLatch.writeLock().unlock();
+            }
+            if (f != null && f.added() > f.capacity) {
+                this.growFilter(f);
+            }
+        }
+
+        // Replace a filter that holds more keys than it was sized for, unless another insert already did
+        private void growFilter(BloomFilter full) throws IOException {
+            this.treeLatch.writeLock().lock();
+            try {
+                if (this.filter == full) {
+                    this.rebuildFilter();
+                }
+            } finally {
+                this.treeLatch.writeLock().unlock();
+            }
+        }
+
+        // Remove one pair with this key; returns false if there is none. A counted tree learns which pair
+        // went only at the bottom, so its deletes run one at a time and fix the counts on the way back up.
+        @Override
+        public boolean delete(long key) throws IOException {
+            this.checkWritable();
+            long start = System.nanoTime();
+            boolean deleted;
+            // Pairs in the tree come before buffered ones with the same key
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                this.bufferLatch.readLock().lock();
+            }
+            try {
+                Lock lock = this.counted ? this.treeLatch.writeLock() : this.treeLatch.readLock();
+                lock.lock();
+                try {
+                    List<Long> path = this.counted ? new ArrayList<>() : null;
+                    deleted = this.deleteFromTree(key, path);
+                    if (path != null) {
+                        this.refreshCounts(path);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (deleted) {
+                    this.commitThrough(this.completedOps.incrementAndGet());
+                } else if (b != null) {
+                    deleted = b.delete(key);
+                }
+            } finally {
+                if (b != null) {
+                    this.bufferLatch.readLock().unlock();
+                }
+            }
+            this.metrics.deleteLatency.record(System.nanoTime() - start);
+            return deleted;
+        }
+
+        // Replace the value of the first pair with this key in place; returns false if there is none.
+        // In a counted tree the sums above it change too, so updates run one at a time as deletes do.
+        @Override
+        public boolean update(long key, long value) throws IOException {
+            this.checkWritable();
+            boolean updated;
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                this.bufferLatch.readLock().lock();
+            }
+            try {
+                Lock lock = this.counted ? this.treeLatch.writeLock() : this.treeLatch.readLock();
+                lock.lock();
+                try {
+                    List<Long> path = this.counted ? new ArrayList<>() : null;
+                    updated = this.updateInTree(key, value, path);
+                    if (path != null) {
+                        this.refreshCounts(path);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (updated) {
+                    this.commitThrough(this.completedOps.incrementAndGet());
+                } else if (b != null) {
+                    updated = b.update(key, value);
+                }
+            } finally {
+                if (b != null) {
+                    this.bufferLatch.readLock().unlock();
+                }
+            }
+            return updated;
+        }
+
+        // The value of the first pair with this key in the tree, or failing that in the write buffer
+        @Override
+        public Long searchKey(long key) throws IOException {
+            long start = System.nanoTime();
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                this.bufferLatch.readLock().lock();
+            }
+            try {
+                Long value = this.searchTree(key);
+                return value == null && b != null ? b.first(key) : value;
+            } finally {
+                if (b != null) {
+                    this.bufferLatch.readLock().unlock();
+                }
+                this.metrics.searchLatency.record(System.nanoTime() - start);
+            }
+        }
+
+        private Long searchTree(long key) throws IOException {
+            this.readers.enter();
+            try {
+                BloomFilter f = this.filter;
+                if (f != null && !f.mightContain(key)) {
+                    this.metrics.filterSkips.increment();
+                    return null;
+                }
+                Long value = findKey(key);
+                if (f != null && value == null) {
+                    this.metrics.filterFalsePositives.increment();
+                }
+                return value;
+            } finally {
+                this.readers.exit();
+            }
+        }
+
+        private Long findKey(long key) throws IOException {
+            while (true) {
+                long id = this.rootId;
+                if (id == 0) {
+                    return null;
+                }
+                BTreeNode root = this.cache.pin(id);
+                root.latch.readLock().lock();
+                if (this.isRoot(id, root)) {
+                    return searchNode(root, key);
+                }
+                // The root split before we latched it; start again from the new one
+                root.latch.readLock().unlock();
+                this.cache.unpin(root);
+            }
+        }
+
+        // A counted tree answers from the counts along two root-to-leaf paths; any other scans the range
+        @Override
+        public long count(long fromKey, long toKey) throws IOException {
+            return this.aggregate(fromKey, toKey)[0];
+        }
+
+        @Override
+        public long sum(long fromKey, long toKey) throws IOException {
+            return this.aggregate(fromKey, toKey)[1];
+        }
+
+        @Override
+        public long rank(long key) throws IOException {
+            return key == Long.MIN_VALUE ? 0 : this.aggregate(Long.MIN_VALUE, key - 1)[0];
+        }
+
+        // The count and value sum of the pairs with fromKey <= key <= toKey
+        private long[] aggregate(long fromKey, long toKey) throws IOException {
+            if (fromKey > toKey) {
+                return new long[2];
+            }
+            if (!this.counted) {
+                long[] total = new long[2];
+                try (PairStream c = this.scan(fromKey, toKey)) {
+                    while (c.next()) {
+                        total[0]++;
+                        total[1] += c.value();
+                    }
+                }
+                return total;
+            }
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                this.bufferLatch.readLock().lock();
+            }
+            // Inserts may run meanwhile and be counted or not; deletes and updates wait
+            this.treeLatch.readLock().lock();
+            try {
+                long[] upTo = this.below(toKey, true);
+                long[] before = this.below(fromKey, false);
+                long[] held = b == null ? new long[2] : b.aggregate(fromKey, toKey);
+                return new long[]{upTo[0] - before[0] + held[0], upTo[1] - before[1] + held[1]};
+            } finally {
+                this.treeLatch.readLock().unlock();
+                if (b != null) {
+                    this.bufferLatch.readLock().unlock();
+                }
+            }
+        }
+
+        // The count and value sum of a counted tree's pairs with keys below 'key', or at or below it when
+        // 'inclusive': at each node on one path down, its keys before the path and the subtrees left of it
+        private long[] below(long key, boolean inclusive) throws IOException {
+            long count = 0;
+            long sum = 0;
+            BTreeNode node = this.latchRootForRead();
+            while (node != null) {
+                int i = inclusive ? node.upperBound(key) : node.lowerBound(key, 0);
+                count += i;
+                for (int j = 0; j < i; j++) {
+                    sum += node.values[j];
+                }
+                BTreeNode child = null;
+                if (!node.isLeaf()) {
+                    for (int j = 0; j < i; j++) {
+                        count += node.counts[j];
+                        sum += node.sums[j];
+                    }
+                    child = this.cache.pin(node.children[i]);
+                    child.latch.readLock().lock();
+                }
+                node.latch.readLock().unlock();
+                this.cache.unpin(node);
+                node = child;
+            }
+            return new long[]{count, sum};
+        }
+
+        @Override
+        public long[] select(long position) throws IOException {
+            if (position < 0) {
+                return null;
+            }
+            if (!this.counted) {
+                try (PairStream c = this.scan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    for (long skipped = 0; c.next(); skipped++) {
+                        if (skipped == position) {
+                            return new long[]{c.key(), c.value()};
+                        }
+                    }
+                }
+                return null;
+            }
+            WriteBuffer b = this.buffer;
+            if (b == null) {
+                return this.selectInTree(position);
+            }
+            this.bufferLatch.readLock().lock();
+            try {
+                // Buffered pair i lies at (tree pairs with keys up to its own) + i, since tree pairs come
+                // first among equal keys. Find how many buffered pairs lie before the position.
+                long[][] held = b.sorted();
+                int lo = 0;
+                int hi = held[0].length;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    long at = this.treeCountUpTo(held[0][mid]) + mid;
+                    if (at == position) {
+                        return new long[]{held[0][mid], held[1][mid]};
+                    } else if (at < position) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                return this.selectInTree(position - lo);
+            } finally {
+                this.bufferLatch.readLock().unlock();
+            }
+        }
+
+        // Pairs in a counted tree with keys up to 'key'
+        private long treeCountUpTo(long key) throws IOException {
+            this.treeLatch.readLock().lock();
+            try {
+                return this.below(key, true)[0];
+            } finally {
+                this.treeLatch.readLock().unlock();
+            }
+        }
+
+        private long[] selectInTree(long position) throws IOException {
+            this.treeLatch.readLock().lock();
+            try {
+                // Skip whole subtrees by their counts, then step into the one holding the position
+                long k = position;
+                BTreeNode node = this.latchRootForRead();
+                while (node != null) {
+                    long[] found = null;
+                    BTreeNode child = null;
+                    if (node.isLeaf()) {
+                        if (k < node.numKeys) {
+                            found = new long[]{node.keys[(int) k], node.values[(int) k]};
+                        }
+                    } else {
+                        for (int j = 0; j <= node.numKeys; j++) {
+                            if (k < node.counts[j]) {
+                                child = this.cache.pin(node.children[j]);
+                                child.latch.readLock().lock();
+                                break;
+                            }
+                            k -= node.counts[j];
+                            if (j < node.numKeys && k-- == 0) {
+                                found = new long[]{node.keys[j], node.values[j]};
+                                break;
+                            }
+                        }
+                    }
+                    node.latch.readLock().unlock();
+                    this.cache.unpin(node);
+                    if (found != null) {
+                        return found;
+                    }
+                    node = child;
+                }
+                return null;
+            } finally {
+                this.treeLatch.readLock().unlock();
+            }
+        }
+
+        // Pin and share-latch the current root, or return null for an empty tree
+        private BTreeNode latchRootForRead() throws IOException {
+            while (true) {
+                long id = this.rootId;
+                if (id == 0) {
+                    return null;
+                }
+                BTreeNode root = this.cache.pin(id);
+                root.latch.readLock().lock();
+                if (this.isRoot(id, root)) {
+                    return root;
+                }
+                root.latch.readLock().unlock();
+                this.cache.unpin(root);
+            }
+        }
+
+        // Number of levels from the root down to the leaves (0 for an empty tree)
+        int height() throws IOException {
+            int height = 0;
+            this.readers.enter();
+            try {
+                long id = this.rootId;
+                while (id != 0) {
+                    BTreeNode node = this.cache.pin(id);
+                    node.latch.readLock().lock();
+                    try {
+                        id = node.isLeaf() ? 0 : node.children[0];
+                    } finally {
+                        node.latch.readLock().unlock();
+                        this.cache.unpin(node);
+                    }
+                    height++;
+                }
+            } finally {
+                this.readers.exit();
+            }
+            return height;
+        }
+
+        // Look up a batch of keys with one descent per subtree, reading each node at most once.
+        // Results line up with 'keys'; a missing key yields null.
+        @Override
+        public Long[] searchMany(long[] keys) throws IOException {
+            long start = System.nanoTime();
+            Long[] results;
+            WriteBuffer b = this.buffer;
+            if (b != null) {
+                this.bufferLatch.readLock().lock();
+            }
+            try {
+                results = this.searchTreeMany(keys);
+                if (b != null) {
+                    for (int i = 0; i < keys.length; i++) {
+                        if (results[i] == null) {
+                            results[i] = b.first(keys[i]);
+                        }
+                    }
+                }
+            } finally {
+                if (b != null) {
+                    this.bufferLatch.readLock().unlock();
+                }
+            }
+            if (keys.length > 0) {
+                this.metrics.searchLatency.record((System.nanoTime() - start) / keys.length, keys.length);
+            }
+            return results;
+        }
+
+        private Long[] searchTreeMany(long[] keys) throws IOException {
+            long[] unique = keys.clone();
+            Arrays.sort(unique);
+            int n = 0;
+            for (int i = 0; i < unique.length; i++) {
+                if (i == 0 || unique[i] != unique[i - 1]) {
+                    unique[n++] = unique[i];
+                }
+            }
+            Long[] found = new Long[n];
+            this.readers.enter();
+            try {
+                // Keys the filter rules out are dropped here; the rest stay sorted and unique
+                BloomFilter f = this.filter;
+                if (f != null) {
+                    int kept = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (f.mightContain(unique[i])) {
+                            unique[kept++] = unique[i];
+                        }
+                    }
+                    this.metrics.filterSkips.add(n - kept);
+                    n = kept;
+                }
+                List<Integer> spilled = new ArrayList<>();
+                while (n > 0) {
+                    long id = this.rootId;
+                    if (id == 0) {
+                        break;
+                    }
+                    BTreeNode root = this.cache.pin(id);
+                    root.latch.readLock().lock();
+                    try {
+                        if (this.isRoot(id, root)) {
+                            searchBatch(root, unique, 0, n, found, spilled);
+                            break;
+                        }
+                    } finally {
+                        root.latch.readLock().unlock();
+                        this.cache.unpin(root);
+                    }
+                }
+                for (int k : spilled) {
+                    found[k] = findKey(unique[k]);
+                }
+                if (f != null) {
+                    for (int i = 0; i < n; i++) {
+                        if (found[i] == null) {
+                            this.metrics.filterFalsePositives.increment();
+                        }
+                    }
+                }
+            } finally {
+                this.readers.exit();
+            }
+            Long[] results = new Long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                int at = Arrays.binarySearch(unique, 0, n, keys[i]);
+                results[i] = at >= 0 ? found[at] : null;
+            }
+            return results;
+        }
+
+        // Resolve sorted keys [lo, hi) in the subtree of a pinned, shared-latched node; the node stays
+        // latched while its children are searched so no split can move keys out from under the batch.
+        // B+Tree keys past the end of their leaf may be in the next one; they are added to 'spilled'
+        // for the caller to look up one by one once the batch has let go of its latches.
+        private void searchBatch(BTreeNode node, long[] keys, int lo, int hi, Long[] found, List<Integer> spilled) throws IOException {
+            boolean separators = this.bplus && !node.isLeaf();
+            int i = 0;
+            int k = lo;
+            while (k < hi) {
+                i = node.lowerBound(keys[k], i);
+                if (i < node.numKeys && keys[k] == node.keys[i] && !separators) {
+                    found[k++] = node.values[i];
+                    continue;
+                }
+                if (this.bplus && node.isLeaf() && i == node.numKeys && node.next != 0) {
+                    for (; k < hi; k++) {
+                        spilled.add(k);
+                    }
+                    break;
+                }
+                // Every remaining key below keys[i] (or equal to it, if it only separates) belongs to child i
+                int end = k + 1;
+                while (end < hi && (i == node.numKeys || keys[end] < node.keys[i] || separators && keys[end] == node.keys[i])) {
+                    end++;
+                }
+                if (!node.isLeaf() && node.children[i] != 0) {
+                    BTreeNode child = this.cache.pin(node.children[i]);
+                    child.latch.readLock().lock();
+                    try {
+                        searchBatch(child, keys, k, end, found, spilled);
+                    } finally {
+                        child.latch.readLock().unlock();
+                        this.cache.unpin(child);
+                    }
+                }
+                k = end;
+            }
+        }
+
+        // Stream the pairs with fromKey <= key <= toKey in ascending key order, buffered ones included
+        @Override
+        public PairStream scan(long fromKey, long toKey) throws IOException {
+            return this.buffer == null ? this.treeScan(fromKey, toKey) : new BufferedScan(this, fromKey, toKey);
+        }
+
+        // Open a cursor over the pairs with fromKey <= key <= toKey that are in the tree itself
+        Cursor treeScan(long fromKey, long toKey) throws IOException {
+            return new Cursor(this, fromKey, toKey);
+        }
+
+        // Write every pair to 'filename', replacing it if it exists; the caller asks before overwriting
+        @Override
+        public void extractData(String filename) throws IOException {
+            requirePositive("btree.extractThreads", EXTRACT_THREADS);
+            long start = System.nanoTime();
+            long rows = this.extractTo(filename, EXTRACT_THREADS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("Data extracted to " + filename + ".");
+            System.out.printf("Extracted %d rows in %.3f s (%.0f rows/sec, %d threads).%n",
+                    rows, seconds, rows / Math.max(seconds, 1e-9), EXTRACT_THREADS);
+        }
+
+        // Write every pair to 'filename' as "key,value" lines in key order and return the row count.
+        // The key space is cut at separator keys near the root and each range is written to its own
+        // part file by a fork-join pool of 'threads' workers; the parts are then joined in order.
+        // Inserts and deletes may go on meanwhile; the file holds the pairs as of the start.
+        long extractTo(String filename, int threads) throws IOException {
+            long[] bounds = this.splitKeys(threads * EXTRACT_RANGES_PER_THREAD - 1);
+            int parts = bounds.length + 1;
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try (Snapshot snapshot = this.snapshot()) {
+                long rows = pool.invoke(new ExtractTask(snapshot, bounds, filename, 0, parts));
+                try (FileChannel out = FileChannel.open(Paths.get(filename), java.nio.file.StandardOpenOption.CREATE,
+                        java.nio.file.StandardOpenOption.TRUNCATE_EXISTING, java.nio.file.StandardOpenOption.WRITE)) {
+                    for (int i = 0; i < parts; i++) {
+                        try (FileChannel in = FileChannel.open(ExtractTask.partFile(filename, i))) {
+                            long size = in.size();
+                            for (long pos = 0; pos < size; ) {
+                                pos += in.transferTo(pos, size - pos, out);
+                            }
+                        }
+                    }
+                }
+                return rows;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+                for (int i = 0; i < parts; i++) {
+                    Files.deleteIfExists(ExtractTask.partFile(filename, i));
+                }
+            }
+        }
+
+        // About 'wanted' ascending keys that cut the tree into ranges of similar size, taken from the
+        // highest level that has enough of them. They are only hints: each range is read from whatever
+        // the tree or snapshot holds then, so a split or merge racing with this is harmless.
+        long[] splitKeys(int wanted) throws IOException {
+            List<Long> keys = new ArrayList<>();
+            this.readers.enter();
+            try {
+                for (int depth = 0; ; depth++) {
+                    keys.clear();
+                    long id = this.rootId;
+                    if (id == 0) {
+                        break;
+                    }
+                    BTreeNode root = this.cache.pin(id);
+                    root.latch.readLock().lock();
+                    boolean deeper;
+                    try {
+                        if (!this.isRoot(id, root)) {
+                            // The root changed before we latched it; try this level again from the new one
+                            depth--;
+                            continue;
+                        }
+                        deeper = this.collectKeys(root, depth, keys);
+                    } finally {
+                        root.latch.readLock().unlock();
+                        this.cache.unpin(root);
+                    }
+                    if (keys.size() >= wanted || !deeper) {
+                        break;
+                    }
+                }
+            } finally {
+                this.readers.exit();
+            }
+            // Keep evenly spaced, strictly increasing keys below Long.MAX_VALUE, the upper end of the last range
+            long[] bounds = new long[Math.min(wanted, keys.size())];
+            int n = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                long k = keys.get((int) ((long) i * keys.size() / bounds.length));
+                if (k != Long.MAX_VALUE && (n == 0 || k > bounds[n - 1])) {
+                    bounds[n++] = k;
+                }
+            }
+            return Arrays.copyOf(bounds, n);
+        }
+
+        // Append, in key order, the keys of the nodes 'depth' levels below a pinned, shared-latched
+        // node; returns whether there is a level below those. Each child is latched before its parent
+        // is released, as in searchBatch.
+        private boolean collectKeys(BTreeNode node, int depth, List<Long> keys) throws IOException {
+            if (depth == 0) {
+                for (int i = 0; i < node.numKeys; i++) {
+                    keys.add(node.keys[i]);
+                }
+                return !node.isLeaf();
+            }
+            if (node.isLeaf()) {
+                return false;
+            }
+            boolean deeper = false;
+            for (int i = 0; i <= node.numKeys; i++) {
+                BTreeNode child = this.cache.pin(node.children[i]);
+                child.latch.readLock().lock();
+                try {
+                    deeper |= this.collectKeys(child, depth - 1, keys);
+                } finally {
+                    child.latch.readLock().unlock();
+                    this.cache.unpin(child);
+                }
+            }
+            return deeper;
+        }
+
+        @Override
+        public void loadData(String filename) throws IOException {
+            File f = new File(filename);
+            if (!f.exists()) {
+                System.out.println("File " + filename + " does not exist.");
+                return;
+            }
+            long start = System.nanoTime();
+            LoadResult result = this.loadRows(filename);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Loaded %d rows in %.3f s (%.0f rows/sec, %s).%n",
+                    result.rows, seconds, result.rows / Math.max(seconds, 1e-9), result.method);
+        }
+
+        // Add every valid row of an existing file, reporting the lines that are skipped
+        LoadResult loadRows(String filename) throws IOException {
+            requirePositive("btree.loadThreads", LOAD_THREADS);
+            requirePositive("btree.loadRunRows", LOAD_RUN_ROWS);
+            requireBetween("btree.fillFactor", FILL_FACTOR, 0.5, 1.0);
+            long start = System.nanoTime();
+            // Buffered pairs go in first, so an empty tree is still known to be empty
+            this.flushBuffer(1);
+            long loaded = 0;
+            String method = null;
+            // An empty tree fed with sorted input can be built bottom-up instead of key by key
+            long sortedRows = this.rootId == 0 ? countSortedRows(filename) : -1;
+            if (sortedRows >= 0) {
+                this.treeLatch.writeLock().lock();
+                try {
+                    // Another thread may have inserted while the file was probed; then it is loaded as below
+                    if (this.rootId == 0) {
+                        this.reclaimAllBlocks();
+                        TreeBuilder builder = this.newBulkBuilder(sortedRows, FILL_FACTOR);
+                        loaded = forEachRow(filename, true, builder::add);
+                        builder.finish();
+                        method = "bulk build";
+                    }
+                } finally {
+                    this.treeLatch.writeLock().unlock();
+                }
+            }
+            if (method == null) {
+                try (ExternalSorter sorted = ExternalSorter.sort(filename, LOAD_THREADS, LOAD_RUN_ROWS)) {
+                    loaded = sorted.rows();
+                    method = "external sort, " + this.loadSorted(sorted);
+                }
+            }
+            this.metrics.loadLatency.record(System.nanoTime() - start);
+            return new LoadResult(loaded, method);
+        }
+
+        // Add externally sorted rows to the tree and name the way it was done. An empty tree is built
+        // bottom-up. When the new rows are a large share of the tree, it is merged with them into a
+        // side file, which is swapped in; otherwise they are inserted in key order, which keeps
+        // consecutive inserts on the same path.
+        private String loadSorted(ExternalSorter sorted) throws IOException {
+            this.checkWritable();
+            if (sorted.rows() == 0) {
+                return "nothing to add";
+            }
+            if (this.rootId == 0) {
+                this.treeLatch.writeLock().lock();
+                try {
+                    // Checked again under the latch, since an insert may have got in first
+                    if (this.rootId == 0) {
+                        try (PairStream rows = sorted.merge()) {
+                            this.reclaimAllBlocks();
+                            TreeBuilder builder = this.newBulkBuilder(sorted.rows(), FILL_FACTOR);
+                            while (rows.next()) {
+                                builder.add(rows.key(), rows.value());
+                            }
+                            builder.finish();
+                        }
+                        return "bulk build";
+                    }
+                } finally {
+                    this.treeLatch.writeLock().unlock();
+                }
+            }
+            // Nodes hold at least minDegree - 1 keys; a tree loaded or grown by splits is around two thirds full
+            long estimatedRows = (this.nextBlockId - 1 - this.freeCount) * this.maxKeys * 2 / 3;
+            if (sorted.rows() * MERGE_REBUILD_SHARE < estimatedRows) {
+                try (PairStream rows = sorted.merge()) {
+                    while (rows.next()) {
+                        this.insert(rows.key(), rows.value());
+                    }
+                }
+                return "sorted insert";
+            }
+            Path merged = Paths.get(this.filePath + ".load");
+            this.treeLatch.writeLock().lock();
+            try {
+                this.commit();
+                if (this.wal != null) {
+                    this.wal.checkpoint();
+                }
+                long existing = 0;
+                try (Cursor c = this.treeScan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    while (c.next()) {
+                        existing++;
+                    }
+                }
+                // Existing pairs come first among equal keys, as if the new rows had been inserted after them
+                try (Cursor current = this.treeScan(Long.MIN_VALUE, Long.MAX_VALUE);
+                     PairStream added = sorted.merge();
+                     PairStream rows = new MergingStream(Arrays.asList(current, added))) {
+                    this.rewriteInto(merged, rows, existing + sorted.rows(), FILL_FACTOR);
+                }
+                this.swapInFile(merged);
+            } finally {
+                this.treeLatch.writeLock().unlock();
+            }
+            return "merged rebuild";
+        }
+
+        // Returns the number of valid rows if their keys never decrease, or -1 otherwise
+        long countSortedRows(String filename) throws IOException {
+            long[] last = {Long.MIN_VALUE};
+            try {
+                return forEachRow(filename, false, (k, v) -> {
+                    if (k < last[0]) {
+                        throw new UnsortedInputException();
+                    }
+                    last[0] = k;
+                });
+            } catch (UnsortedInputException e) {
+                return -1;
+            }
+        }
+
+        // Parse every "key,value" line of a file, optionally reporting the lines that are skipped
+        static long forEachRow(String filename, boolean report, RowHandler handler) throws IOException {
+            long rows = 0;
+            try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+                String line;
+                int lineNumber = 0;
+                long[] pair = new long[2];
+                while ((line = br.readLine()) != null) {
+                    lineNumber++;
+                    if (!parseRow(line, pair)) {
+                        if (report) {
+                            System.out.println("Skipping invalid line " + lineNumber + ": " + line.trim());
+                        }
+                        continue;
+                    }
+                    handler.accept(pair[0], pair[1]);
+                    rows++;
+                }
+            }
+            return rows;
+        }
+
+        // Parse a "key,value" line into pair[0] and pair[1]; returns false if the line is invalid
+        static boolean parseRow(String line, long[] pair) {
+            String[] parts = line.trim().split(",");
+            if (parts.length != 2) {
+                return false;
+            }
+            try {
+                pair[0] = Long.parseLong(parts[0]);
+                pair[1] = Long.parseLong(parts[1]);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        void checkWritable() throws IOException {
+            if (this.readOnly) {
+                throw new IOException("Index file " + this.filePath + " uses format version 1 and is open read-only; run upgrade first.");
+            }
+        }
+
+        // Rewrite a version-1 file in the version-2 layout (same block size and degree, same block
+        // numbers) into a side file, then swap it in and reopen; returns false if nothing to do
+        @Override
+        public boolean upgradeFormat() throws IOException {
+            if (this.formatVersion >= 2) {
+                return false;
+            }
+            Path source = Paths.get(this.filePath);
+            Path upgraded = Paths.get(this.filePath + ".upgrade");
+            BTree target = new BTree(upgraded.toString());
+            target.memtableKeys = 0;
+            target.createIndexFile(V1_BLOCK_SIZE, V1_MIN_DEGREE);
+            this.treeLatch.writeLock().lock();
+            try {
+                Deque<Long> pending = new ArrayDeque<>();
+                if (this.rootId != 0) {
+                    pending.push(this.rootId);
+                }
+                while (!pending.isEmpty()) {
+                    BTreeNode node = this.readNodeFromFile(pending.pop());
+                    if (!node.isLeaf()) {
+                        // Version 1 splits left stale pointers past the last child; drop them
+                        Arrays.fill(node.children, node.numKeys + 1, node.children.length, 0);
+                        for (int i = 0; i <= node.numKeys; i++) {
+                            pending.push(node.children[i]);
+                        }
+                    }
+                    target.writeFreshNode(node);
+                }
+                target.rootId = this.rootId;
+                target.nextBlockId = this.nextBlockId;
+                target.syncFreshNodes();
+                target.commit();
+                // The nodes were copied without passing through the filter; let the reopen rebuild it
+                target.filter = null;
+            } finally {
+                this.treeLatch.writeLock().unlock();
+            }
+            target.closeIndexFile();
+            this.swapInFile(upgraded);
+            return true;
+        }
+
+        // Rewrite the tree into a new file with its nodes in key order, packed to 'fillFactor', and
+        // swap it in for the current one. Writers wait until it is done; searches and cursors keep
+        // reading the old file until the moment of the swap.
+        @Override
+        public void compact(double fillFactor) throws IOException {
+            this.checkWritable();
+            Path compacted = Paths.get(this.filePath + ".compact");
+            long start = System.nanoTime();
+            long sizeBefore;
+            long sizeAfter;
+            ScanTiming before;
+            this.flushBuffer(1);
+            this.treeLatch.writeLock().lock();
+            try {
+                // Put everything in the file itself so a separate read-only open sees the whole tree
+                this.commit();
+                if (this.wal != null) {
+                    this.wal.checkpoint();
+                }
+                sizeBefore = Files.size(Paths.get(this.filePath));
+                before = ScanTiming.of(this.filePath);
+
+                try (Cursor c = this.treeScan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    this.rewriteInto(compacted, c, before.rows, fillFactor);
+                }
+                sizeAfter = Files.size(compacted);
+                this.swapInFile(compacted);
+            } finally {
+                this.treeLatch.writeLock().unlock();
+            }
+            ScanTiming after = ScanTiming.of(this.filePath);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Compacted %d rows in %.3f s. File size: %d -> %d bytes. Scan: %.0f -> %.0f rows/sec.%n",
+                    before.rows, seconds, sizeBefore, sizeAfter, before.rowsPerSecond(), after.rowsPerSecond());
+        }
+
+        // Bulk-build a closed index file at 'target', with this tree's block size and degree, from
+        // exactly 'rows' sorted pairs; a partly written file is removed if the build fails. The new
+        // header keeps the epoch of the last flushed buffer log, which stays in place across a swap.
+        private void rewriteInto(Path target, PairStream source, long rows, double fillFactor) throws IOException {
+            BTree built = new BTree(target.toString());
+            built.memtableKeys = 0;
+            built.createIndexFile(this.blockSize, this.minDegree, this.layout());
+            built.bufferEpoch = this.bufferEpoch;
+            try {
+                TreeBuilder builder = built.newBulkBuilder(rows, fillFactor);
+                while (source.next()) {
+                    builder.add(source.key(), source.value());
+                }
+                builder.finish();
+            } catch (IOException e) {
+                built.closeIndexFile();
+                Files.deleteIfExists(target);
+                Files.deleteIfExists(built.filterPath());
+                throw e;
+            }
+            built.closeIndexFile();
+        }
+
+        // Replace the open index file with 'replacement', which must be complete and closed, along with
+        // the filter saved beside it; without one, the filter is rebuilt afterwards. Writers are kept out,
+        // open snapshots are waited for, and readers are drained through the gate for the moment of the swap.
+        private void swapInFile(Path replacement) throws IOException {
+            this.treeLatch.writeLock().lock();
+            this.awaitSnapshots();
+            this.readers.close();
+            try {
+                this.closeFiles();
+                try {
+                    Files.move(replacement, Paths.get(this.filePath), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                            java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                    Path replacementFilter = Paths.get(replacement + ".bloom");
+                    if (Files.exists(replacementFilter)) {
+                        Files.move(replacementFilter, filterPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                    } else {
+                        Files.deleteIfExists(filterPath());
+                    }
+                } finally {
+                    // Reopen whichever file is now in place
+                    this.openIndexFile("rw");
+                    this.loadTreeState();
+                    this.modifications.incrementAndGet();
+                }
+            } finally {
+                this.readers.open();
+                this.treeLatch.writeLock().unlock();
+            }
+            // A rebuild scans through the gate, so it waits until the gate is open; searches until
+            // then go unfiltered
+            if (this.needsFilter()) {
+                this.rebuildFilter();
+            }
+        }
+
+        // Commit unless a commit since insert number 'op' finished already covered it
+        void commitThrough(long op) throws IOException {
+            if (this.committedOps >= op) {
+                return;
+            }
+            this.treeLatch.writeLock().lock();
+            try {
+                if (this.committedOps < op) {
+                    long upTo = this.completedOps.get();
+                    this.commit();
+                    this.committedOps = upTo;
+                }
+            } finally {
+                this.treeLatch.writeLock().unlock();
+            }
+        }
+
+        // Take a block from the free list, or extend the file when the list is empty
+        synchronized long allocateBlock() throws IOException {
+            if (this.freeHead != 0) {
+                long blockId = this.freeHead;
+                this.freeHead = this.readFreeBlock(blockId);
+                this.freeCount--;
+                return blockId;
+            }
+            return this.nextBlockId++;
+        }
+
+        // Push the block of a node that nothing refers to any more onto the free list; the caller
+        // still has the node pinned and exclusively latched, so it cannot be written back meanwhile
+        synchronized void freeBlock(BTreeNode node) throws IOException {
+            node.freed = true;
+            this.freeBlockId(node.blockId);
+        }
+
+        private synchronized void freeBlockId(long blockId) throws IOException {
+            this.cache.discard(blockId);
+            this.writeFreeBlock(blockId, this.freeHead);
+            this.freeHead = blockId;
+            this.freeCount++;
+        }
+
+        // ====== Snapshots ======
+
+        // A read-only view of the tree as it is now, which stays the same while writers go on. Close
+        // it promptly: blocks replaced meanwhile are kept until then, and a compaction waits for it.
+        // Buffered pairs are flushed first, so the snapshot holds every pair inserted before it
+        Snapshot snapshot() throws IOException {
+            this.flushBuffer(1);
+            this.treeLatch.writeLock().lock();
+            try {
+                long g;
+                synchronized (this) {
+                    g = this.generation++;
+                    this.snapshots.add(g);
+                    this.newestSnapshot = g;
+                }
+                return new Snapshot(this, g, this.rootId);
+            } finally {
+                this.treeLatch.writeLock().unlock();
+            }
+        }
+
+        synchronized void releaseSnapshot(Snapshot snapshot) {
+            this.snapshots.remove(snapshot.generation);
+            this.newestSnapshot = this.snapshots.isEmpty() ? -1 : this.snapshots.last();
+            this.notifyAll();
+        }
+
+        // Wait until every open snapshot is closed; the caller holds treeLatch exclusively, so no new one opens
+        private synchronized void awaitSnapshots() {
+            boolean interrupted = false;
+            while (!this.snapshots.isEmpty()) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized int openSnapshots() {
+            return this.snapshots.size();
+        }
+
+        synchronized int retiredBlocks() {
+            return this.retired.size();
+        }
+
+        // Whether an open snapshot may read this node, so that a writer must copy it before changing it
+        private boolean isShared(BTreeNode node) {
+            return node.generation <= this.newestSnapshot;
+        }
+
+        // A copy of a pinned, exclusively latched shared node in a new block, pinned and exclusively
+        // latched. The old block is kept for the snapshots; the caller repoints the parent (or rootId)
+        // to the copy and then releases the old node.
+        private BTreeNode copyShared(BTreeNode node) throws IOException {
+            BTreeNode copy = this.cache.pinNew(this.newNode(this.allocateBlock()));
+            copy.latch.writeLock().lock();
+            copyContents(node, copy);
+            this.cache.put(copy.blockId, copy);
+            synchronized (this) {
+                this.retired.add(node.blockId);
+            }
+            this.metrics.snapshotCopies.increment();
+            return copy;
+        }
+
+        // Save the image of a pinned, exclusively latched, shared B+Tree node in a new block for the
+        // snapshots, so the node itself can change in place
+        private void preserve(BTreeNode node) throws IOException {
+            BTreeNode copy = this.cache.pinNew(this.newNode(this.allocateBlock()));
+            copyContents(node, copy);
+            this.cache.put(copy.blockId, copy);
+            this.cache.unpin(copy);
+            synchronized (this) {
+                long[] saved = this.versions.get(node.blockId);
+                saved = saved == null ? new long[2] : Arrays.copyOf(saved, saved.length + 2);
+                saved[saved.length - 2] = this.generation;
+                saved[saved.length - 1] = copy.blockId;
+                this.versions.put(node.blockId, saved);
+                this.retired.add(copy.blockId);
+            }
+            node.generation = this.generation;
+            this.metrics.snapshotCopies.increment();
+        }
+
+        // The block holding the image of a B+Tree node that a snapshot of generation g reads, or 0 when
+        // the node has not changed since g: the first image saved after the snapshot was taken
+        long versionFor(long blockId, long g) {
+            long[] saved = this.versions.get(blockId);
+            if (saved != null) {
+                for (int j = 0; j < saved.length; j += 2) {
+                    if (saved[j] > g) {
+                        return saved[j + 1];
+                    }
+                }
+            }
+            return 0;
+        }
+
+        // An unshared copy of a node the caller has pinned and latched, in the same block
+        BTreeNode copyOf(BTreeNode node) {
+            BTreeNode copy = this.emptyNode(node.blockId);
+            copyContents(node, copy);
+            return copy;
+        }
+
+        private static void copyContents(BTreeNode from, BTreeNode to) {
+            to.parentId = from.parentId;
+            to.leaf = from.leaf;
+            to.numKeys = from.numKeys;
+            to.next = from.next;
+            System.arraycopy(from.keys, 0, to.keys, 0, from.numKeys);
+            System.arraycopy(from.values, 0, to.values, 0, from.numKeys);
+            if (!from.isLeaf()) {
+                System.arraycopy(from.children, 0, to.children, 0, from.numKeys + 1);
+                if (from.counts != null) {
+                    System.arraycopy(from.counts, 0, to.counts, 0, from.numKeys + 1);
+                    System.arraycopy(from.sums, 0, to.sums, 0, from.numKeys + 1);
+                }
+            }
+        }
+
+        // The exclusively latched root, or a private copy that has replaced it when a snapshot shares it
+        private BTreeNode ownRoot(BTreeNode root) throws IOException {
+            if (!this.isShared(root)) {
+                return root;
+            }
+            if (this.bplus) {
+                this.preserve(root);
+                return root;
+            }
+            BTreeNode copy = this.copyShared(root);
+            // Switch the root before letting go of the old one, so no other writer latches it as the root
+            this.rootId = copy.blockId;
+            this.release(root);
+            return copy;
+        }
+
+        // The exclusively latched child at parent.children[i], or a private copy that has replaced it
+        // there when a snapshot shares it; 'parent' must already be private to writers
+        private BTreeNode ownChild(BTreeNode parent, int i, BTreeNode child) throws IOException {
+            if (!this.isShared(child)) {
+                return child;
+            }
+            if (this.bplus) {
+                this.preserve(child);
+                return child;
+            }
+            BTreeNode copy = this.copyShared(child);
+            parent.children[i] = copy.blockId;
+            this.cache.put(parent.blockId, parent);
+            this.release(child);
+            return copy;
+        }
+
+        // Put the blocks replaced for snapshots on the free list once none is open. Searches hold no
+        // treeLatch and may still be following a child id into one of them, so the gate is closed
+        // around the frees unless a file swap has closed it already. The caller holds treeLatch exclusively.
+        private void freeRetiredBlocks() throws IOException {
+            List<Long> blocks;
+            synchronized (this) {
+                if (this.retired.isEmpty() || !this.snapshots.isEmpty()) {
+                    return;
+                }
+                blocks = new ArrayList<>(this.retired);
+                this.retired.clear();
+                this.versions.clear();
+            }
+            boolean closeGate = !this.readers.isClosed();
+            if (closeGate) {
+                this.readers.close();
+            }
+            try {
+                for (long blockId : blocks) {
+                    this.freeBlockId(blockId);
+                }
+            } finally {
+                if (closeGate) {
+                    this.readers.open();
+                }
+            }
+            this.modifications.incrementAndGet();
+        }
+
+        // Whether a node latched after reading 'id' from rootId is still the live root
+        private boolean isRoot(long id, BTreeNode node) {
+            return id == this.rootId && !node.freed;
+        }
+
+        // An empty tree owns no blocks, so forget the free list and number blocks from 1 again. The log
+        // is checkpointed first so no logged image of an old block can later land on a freshly written one.
+        // The caller holds treeLatch exclusively.
+        private void reclaimAllBlocks() throws IOException {
+            if (this.rootId != 0 || this.nextBlockId == 1 || this.openSnapshots() > 0) {
+                return;
+            }
+            this.cache.clear();
+            this.freeHead = 0;
+            this.freeCount = 0;
+            this.nextBlockId = 1;
+            this.commit();
+            if (this.wal != null) {
+                this.wal.checkpoint();
+            }
+        }
+
+        // Write back cached nodes and the header if they moved, then commit them as one unit;
+        // the caller holds treeLatch exclusively so no insert is half done
+        void commit() throws IOException {
+            this.freeRetiredBlocks();
+            this.cache.flush();
+            if (this.rootId != this.headerRootId || this.nextBlockId != this.headerNextBlockId
+                    || this.freeHead != this.headerFreeHead || this.bufferEpoch != this.headerBufferEpoch) {
+                this.writeHeader();
+            }
+            if (this.wal != null) {
+                this.wal.commit();
+            }
+        }
+
+        // ====== Internal B-Tree operations (reordered, renamed methods) ======
+
+        // Descend with shared latches and latch only the leaf exclusively; returns false,
+        // changing nothing, when the insert needs a split or a new root. A counted tree always
+        // returns false, since every node on the way down must count the new pair.
+        private boolean insertOptimistic(long key, long value) throws IOException {
+            long id = this.rootId;
+            if (id == 0 || this.counted) {
+                return false;
+            }
+            BTreeNode node = this.cache.pin(id);
+            node.latch.readLock().lock();
+            if (!this.isRoot(id, node)) {
+                node.latch.readLock().unlock();
+                this.cache.unpin(node);
+                return false;
+            }
+            if (node.isLeaf()) {
+                node.latch.readLock().unlock();
+                node.latch.writeLock().lock();
+                if (!this.isRoot(id, node)) {
+                    node.latch.writeLock().unlock();
+                    this.cache.unpin(node);
+                    return false;
+                }
+                return insertIntoLeaf(node, key, value);
+            }
+            while (true) {
+                long childId = node.children[node.upperBound(key)];
+                if (childId == 0) {
+                    node.latch.readLock().unlock();
+                    this.cache.unpin(node);
+                    return false;
+                }
+                BTreeNode child = this.cache.pin(childId);
+                child.latch.readLock().lock();
+                if (child.isLeaf()) {
+                    // Nothing can split the leaf while its parent is latched, so retake it as a writer
+                    child.latch.readLock().unlock();
+                    child.latch.writeLock().lock();
+                    node.latch.readLock().unlock();
+                    this.cache.unpin(node);
+                    return insertIntoLeaf(child, key, value);
+                }
+                node.latch.readLock().unlock();
+                this.cache.unpin(node);
+                node = child;
+            }
+        }
+
+        // Insert into a pinned, exclusively latched leaf unless it is full or a snapshot shares it (a
+        // B+Tree leaf is saved for the snapshot and changed anyway); releases the leaf either way
+        private boolean insertIntoLeaf(BTreeNode leaf, long key, long value) throws IOException {
+            try {
+                if (this.isFull(leaf) || this.isShared(leaf) && !this.bplus) {
+                    return false;
+                }
+                if (this.isShared(leaf)) {
+                    this.preserve(leaf);
+                }
+                insertIntoNode(leaf, key, value);
+                this.cache.put(leaf.blockId, leaf);
+                this.modifications.incrementAndGet();
+                return true;
+            } finally {
+                leaf.latch.writeLock().unlock();
+                this.cache.unpin(leaf);
+            }
+        }
+
+        // Descend with exclusive latches, splitting full nodes on the way down so that
+        // only a node and its child are ever latched together
+        private void insertPessimistic(long key, long value) throws IOException {
+            BTreeNode node;
+            while (true) {
+                long id = this.rootId;
+                if (id == 0) {
+                    if (this.createRoot(key, value)) {
+                        return;
+                    }
+                    continue;
+                }
+                BTreeNode root = this.cache.pin(id);
+                root.latch.writeLock().lock();
+                if (!this.isRoot(id, root)) {
+                    root.latch.writeLock().unlock();
+                    this.cache.unpin(root);
+                    continue;
+                }
+                // If root is full, split it first
+                root = this.ownRoot(root);
+                node = this.isFull(root) ? this.splitRoot(root) : root;
+                break;
+            }
+            this.insertNonFull(node, key, value);
+        }
+
+        // Put a new root above the exclusively latched, full root and split the old root under it;
+        // releases the old root and returns the new one, pinned and exclusively latched
+        private BTreeNode splitRoot(BTreeNode root) throws IOException {
+            BTreeNode newRoot = this.cache.pinNew(this.newNode(this.allocateBlock()));
+            newRoot.leaf = false;
+            newRoot.latch.writeLock().lock();
+            newRoot.children[0] = root.blockId;
+            this.splitChild(newRoot, 0, root);
+            this.rootId = newRoot.blockId;
+            root.latch.writeLock().unlock();
+            this.cache.unpin(root);
+            return newRoot;
+        }
+
+        // No room for another key: every slot is taken, or a compressed node's block is nearly used up
+        private boolean isFull(BTreeNode node) {
+            return node.numKeys == this.maxKeys || this.isCrowded(node);
+        }
+
+        // A compressed node with no free key slot, or whose block may not hold a promoted separator
+        // plus one replaced key and value. Such a node is split before anything that could grow it,
+        // even a delete's rotation or an update. A fixed node never grows without gaining a key, so
+        // it is never crowded.
+        private boolean isCrowded(BTreeNode node) {
+            // Up to 2t - 1 keys always leave the slack free, so only larger nodes need measuring
+            return this.compressed && (node.numKeys == this.maxKeys || node.numKeys >= 2 * this.minDegree
+                    && this.compressedSize(node) > this.blockSize - COMPRESSED_SLACK);
+        }
+
+        // Create the first root holding one pair; false if another thread created it first
+        private synchronized boolean createRoot(long key, long value) throws IOException {
+            if (this.rootId != 0) {
+                return false;
+            }
+            BTreeNode root = this.cache.pinNew(this.newNode(this.allocateBlock()));
+            root.numKeys = 1;
+            root.keys[0] = key;
+            root.values[0] = value;
+            this.cache.put(root.blockId, root);
+            this.cache.unpin(root);
+            this.modifications.incrementAndGet();
+            this.rootId = root.blockId;
+            return true;
+        }
+
+        // Insert into a node that is not full; the caller pins and exclusively latches 'node',
+        // and both are released here
+        void insertNonFull(BTreeNode node, long key, long value) throws IOException {
+            while (true) {
+                if (node.isLeaf()) {
+                    // Insert into leaf node
+                    insertIntoNode(node, key, value);
+                    this.cache.put(node.blockId, node);
+                    this.modifications.incrementAndGet();
+                    node.latch.writeLock().unlock();
+                    this.cache.unpin(node);
+                    return;
+                } else {
+                    // Insert into internal node
+                    int i = node.upperBound(key);
+                    BTreeNode next;
+                    if (node.children[i] == 0) {
+                        // Create a new child if it doesn't exist
+                        System.out.println("Creating new child node for key " + key + " at position " + i);
+                        BTreeNode newChild = this.cache.pinNew(this.newNode(this.allocateBlock()));
+                        newChild.parentId = node.blockId;
+                        node.children[i] = newChild.blockId;
+                        this.cache.put(node.blockId, node);
+
+                        // After creating a new leaf child, the loop continues and inserts into it
+                        newChild.latch.writeLock().lock();
+                        next = newChild;
+                    } else {
+                        // If the chosen child is full, split it first; both stay latched until the split is done
+                        next = this.cache.pin(node.children[i]);
+                        next.latch.writeLock().lock();
+                        next = this.ownChild(node, i, next);
+                        if (this.isFull(next)) {
+                            splitChild(node, i, next);
+                            // A B+Tree descends right of a separator equal to the key, as upperBound does
+                            if (key > node.keys[i] || this.bplus && key == node.keys[i]) {
+                                // Continue in the new right sibling, which only this thread can reach yet
+                                BTreeNode right = this.cache.pin(node.children[i+1]);
+                                right.latch.writeLock().lock();
+                                next.latch.writeLock().unlock();
+                                this.cache.unpin(next);
+                                next = right;
+                                i++;
+                            }
+                        }
+                    }
+                    if (this.counted) {
+                        // An insert always lands, so the pair is counted before it reaches its leaf
+                        node.counts[i]++;
+                        node.sums[i] += value;
+                        this.cache.put(node.blockId, node);
+                    }
+                    node.latch.writeLock().unlock();
+                    this.cache.unpin(node);
+                    node = next;
+                }
+            }
+        }
+
+        // Place a pair after any equal keys in a node that has room for it
+        private static void insertIntoNode(BTreeNode node, long key, long value) {
+            int i = node.upperBound(key);
+            System.arraycopy(node.keys, i, node.keys, i + 1, node.numKeys - i);
+            System.arraycopy(node.values, i, node.values, i + 1, node.numKeys - i);
+            node.keys[i] = key;
+            node.values[i] = value;
+            node.numKeys++;
+        }
+
+        // Pin and exclusively latch the current root, or return null for an empty tree. A crowded
+        // root is split first, so that deletes and updates may change the node they start from.
+        private BTreeNode latchRootForWrite() throws IOException {
+            while (true) {
+                long id = this.rootId;
+                if (id == 0) {
+                    return null;
+                }
+                BTreeNode root = this.cache.pin(id);
+                root.latch.writeLock().lock();
+                if (this.isRoot(id, root)) {
+                    root = this.ownRoot(root);
+                    return this.isCrowded(root) ? this.splitRoot(root) : root;
+                }
+                root.latch.writeLock().unlock();
+                this.cache.unpin(root);
+            }
+        }
+
+        // Pin and exclusively latch the B+Tree leaf that holds the first pair with 'key' if there is one:
+        // descend with shared latches as insertOptimistic does, then move right along the leaves
+        // while the key sorts after all of a leaf's keys. Null for an empty tree.
+        private BTreeNode latchLeafForWrite(long key) throws IOException {
+            BTreeNode node;
+            while (true) {
+                long id = this.rootId;
+                if (id == 0) {
+                    return null;
+                }
+                node = this.cache.pin(id);
+                node.latch.readLock().lock();
+                if (this.isRoot(id, node)) {
+                    break;
+                }
+                node.latch.readLock().unlock();
+                this.cache.unpin(node);
+            }
+            if (node.isLeaf()) {
+                // Whatever the root has become meanwhile, this leaf still starts the chain
+                node.latch.readLock().unlock();
+                node.latch.writeLock().lock();
+            }
+            while (!node.isLeaf()) {
+                BTreeNode child = this.cache.pin(node.children[node.lowerBound(key, 0)]);
+                child.latch.readLock().lock();
+                if (child.isLeaf()) {
+                    child.latch.readLock().unlock();
+                    child.latch.writeLock().lock();
+                }
+                node.latch.readLock().unlock();
+                this.cache.unpin(node);
+                node = child;
+            }
+            while (node.lowerBound(key, 0) == node.numKeys && node.next != 0) {
+                long next = node.next;
+                this.release(node);
+                node = this.cache.pin(next);
+                node.latch.writeLock().lock();
+            }
+            return node;
+        }
+
+        private void release(BTreeNode node) {
+            node.latch.writeLock().unlock();
+            this.cache.unpin(node);
+        }
+
+        // Descend with exclusive latches and set the value of the first pair with 'key', adding the
+        // block of each node entered to 'path' when it is not null
+        private boolean updateInTree(long key, long value, List<Long> path) throws IOException {
+            if (this.bplus) {
+                BTreeNode leaf = this.latchLeafForWrite(key);
+                if (leaf == null) {
+                    return false;
+                }
+                try {
+                    int i = leaf.lowerBound(key, 0);
+                    if (i == leaf.numKeys || leaf.keys[i] != key) {
+                        return false;
+                    }
+                    if (this.isShared(leaf)) {
+                        this.preserve(leaf);
+                    }
+                    leaf.values[i] = value;
+                    this.cache.put(leaf.blockId, leaf);
+                    this.modifications.incrementAndGet();
+                    return true;
+                } finally {
+                    this.release(leaf);
+                }
+            }
+            BTreeNode node = this.latchRootForWrite();
+            if (node != null && path != null) {
+                path.add(node.blockId);
+            }
+            while (node != null) {
+                int i = node.lowerBound(key, 0);
+                if (i < node.numKeys && node.keys[i] == key) {
+                    node.values[i] = value;
+                    this.cache.put(node.blockId, node);
+                    this.modifications.incrementAndGet();
+                    this.release(node);
+                    return true;
+                }
+                BTreeNode child = node.isLeaf() ? null : this.cache.pin(node.children[i]);
+                if (child != null) {
+                    child.latch.writeLock().lock();
+                    child = this.ownChild(node, i, child);
+                    if (this.isCrowded(child)) {
+                        // A longer value might not fit; split it and look at this node again
+                        this.splitChild(node, i, child);
+                        this.release(child);
+                        continue;
+                    }
+                    if (path != null) {
+                        path.add(child.blockId);
+                    }
+                }
+                this.release(node);
+                node = child;
+            }
+            return false;
+        }
+
+        // Top-down delete: before stepping into a child, make sure it has at least t keys by
+        // borrowing from or merging with a sibling, so the removal never has to walk back up.
+        // Latches are coupled exclusively as in insertPessimistic.
+        //
+        // A B+Tree deletes lazily instead: the pair is removed from its leaf and nothing else changes.
+        // Leaves may run low or empty, but no key ever moves left, so a reader that lets go of a
+        // leaf can always carry on from the one after it. A compaction packs the leaves again.
+        //
+        // When 'path' is not null, the block of every node the delete steps into is added to it.
+        private boolean deleteFromTree(long key, List<Long> path) throws IOException {
+            if (this.bplus) {
+                BTreeNode leaf = this.latchLeafForWrite(key);
+                if (leaf == null) {
+                    return false;
+                }
+                try {
+                    int i = leaf.lowerBound(key, 0);
+                    if (i == leaf.numKeys || leaf.keys[i] != key) {
+                        return false;
+                    }
+                    if (this.isShared(leaf)) {
+                        this.preserve(leaf);
+                    }
+                    removeFromNode(leaf, i);
+                    this.cache.put(leaf.blockId, leaf);
+                    this.modifications.incrementAndGet();
+                    return true;
+                } finally {
+                    this.release(leaf);
+                }
+            }
+            BTreeNode node = this.latchRootForWrite();
+            if (node == null) {
+                return false;
+            }
+            if (path != null) {
+                path.add(node.blockId);
+            }
+            while (true) {
+                int i = node.lowerBound(key, 0);
+                boolean here = i < node.numKeys && node.keys[i] == key;
+                if (node.isLeaf()) {
+                    if (here) {
+                        removeFromNode(node, i);
+                        this.cache.put(node.blockId, node);
+                        this.modifications.incrementAndGet();
+                        this.collapseRoot(node);
+                    }
+                    this.release(node);
+                    return here;
+                }
+                if (here) {
+                    // Replace the separator with its predecessor or successor when either side can spare a key
+                    BTreeNode left = this.cache.pin(node.children[i]);
+                    left.latch.writeLock().lock();
+                    left = this.ownChild(node, i, left);
+                    if (left.numKeys >= this.minDegree) {
+                        if (this.isCrowded(left)) {
+                            this.splitChild(node, i, left);
+                            this.release(left);
+                            continue;
+                        }
+                        this.replaceWithNeighbour(node, i, left, true, path);
+                        return true;
+                    }
+                    BTreeNode right = this.cache.pin(node.children[i + 1]);
+                    right.latch.writeLock().lock();
+                    right = this.ownChild(node, i + 1, right);
+                    if (right.numKeys >= this.minDegree) {
+                        this.release(left);
+                        if (this.isCrowded(right)) {
+                            this.splitChild(node, i + 1, right);
+                            this.release(right);
+                            continue;
+                        }
+                        this.replaceWithNeighbour(node, i, right, false, path);
+                        return true;
+                    }
+                    // Both sides are minimal: pull the key down into the merged child and delete it there
+                    this.mergeChildren(node, i, left, right);
+                    BTreeNode next = left;
+                    this.collapseRoot(node);
+                    this.release(node);
+                    node = next;
+                    if (path != null) {
+                        path.add(node.blockId);
+                    }
+                    continue;
+                }
+                BTreeNode child = this.fillChild(node, i);
+                if (child == null) {
+                    continue;
+                }
+                this.collapseRoot(node);
+                this.release(node);
+                node = child;
+                if (path != null) {
+                    path.add(node.blockId);
+                }
+            }
+        }
+
+        // Move the largest (or smallest) pair of the subtree under 'child' into parent.keys[i], removing
+        // it from its leaf. Takes over 'parent' and 'child' (pinned and latched) and releases both.
+        private void replaceWithNeighbour(BTreeNode parent, int i, BTreeNode child, boolean predecessor, List<Long> path) throws IOException {
+            BTreeNode node = child;
+            if (path != null) {
+                path.add(node.blockId);
+            }
+            while (!node.isLeaf()) {
+                BTreeNode next = this.fillChild(node, predecessor ? node.numKeys : 0);
+                if (next == null) {
+                    continue;
+                }
+                this.release(node);
+                node = next;
+                if (path != null) {
+                    path.add(node.blockId);
+                }
+            }
+            int j = predecessor ? node.numKeys - 1 : 0;
+            parent.keys[i] = node.keys[j];
+            parent.values[i] = node.values[j];
+            removeFromNode(node, j);
+            this.cache.put(node.blockId, node);
+            this.cache.put(parent.blockId, parent);
+            this.modifications.incrementAndGet();
+            this.release(node);
+            this.release(parent);
+        }
+
+        // After a delete or update in a counted tree has let go of its latches, set each node's count and
+        // sum for the next node on its path, from the bottom up, from that node's contents. Splits, merges
+        // and rotations already recounted the children they touched, so only this path can be off. The
+        // caller holds treeLatch exclusively. Blocks on the path above the current root were roots that
+        // collapsed and have been freed.
+        private void refreshCounts(List<Long> path) throws IOException {
+            int top = path.lastIndexOf(this.rootId);
+            for (int k = path.size() - 2; top >= 0 && k >= top; k--) {
+                BTreeNode parent = this.cache.pin(path.get(k));
+                parent.latch.writeLock().lock();
+                BTreeNode child = this.cache.pin(path.get(k + 1));
+                child.latch.readLock().lock();
+                try {
+                    for (int j = 0; j <= parent.numKeys; j++) {
+                        if (parent.children[j] == child.blockId) {
+                            if (parent.counts[j] != subtreeCount(child) || parent.sums[j] != subtreeSum(child)) {
+                                recount(parent, j, child);
+                                this.cache.put(parent.blockId, parent);
+                            }
+                            break;
+                        }
+                    }
+                } finally {
+                    child.latch.readLock().unlock();
+                    this.cache.unpin(child);
+                    this.release(parent);
+                }
+            }
+        }
+
+        // With 'parent' pinned and exclusively latched, give its child at 'index' at least t keys and
+        // return that child (or the sibling it was merged into), pinned and exclusively latched.
+        // A crowded child is split instead and null returned; the caller then looks at 'parent' again.
+        private BTreeNode fillChild(BTreeNode parent, int index) throws IOException {
+            BTreeNode child = this.cache.pin(parent.children[index]);
+            child.latch.writeLock().lock();
+            child = this.ownChild(parent, index, child);
+            if (child.numKeys >= this.minDegree) {
+                if (this.isCrowded(child)) {
+                    this.splitChild(parent, index, child);
+                    this.release(child);
+                    return null;
+                }
+                return child;
+            }
+            if (index > 0) {
+                BTreeNode left = this.cache.pin(parent.children[index - 1]);
+                left.latch.writeLock().lock();
+                left = this.ownChild(parent, index - 1, left);
+                if (left.numKeys >= this.minDegree) {
+                    this.rotateRight(parent, index - 1, left, child);
+                    this.release(left);
+                    return child;
+                }
+                if (index == parent.numKeys) {
+                    // No right sibling: fold the child into its left sibling
+                    this.mergeChildren(parent, index - 1, left, child);
+                    return left;
+                }
+                this.release(left);
+            }
+            BTreeNode right = this.cache.pin(parent.children[index + 1]);
+            right.latch.writeLock().lock();
+            right = this.ownChild(parent, index + 1, right);
+            if (right.numKeys >= this.minDegree) {
+                this.rotateLeft(parent, index, child, right);
+                this.release(right);
+            } else {
+                this.mergeChildren(parent, index, child, right);
+            }
+            return child;
+        }
+
+        // Move parent.keys[i] down to the front of 'right' and the last pair of 'left' up to replace it
+        private void rotateRight(BTreeNode parent, int i, BTreeNode left, BTreeNode right) throws IOException {
+            System.arraycopy(right.keys, 0, right.keys, 1, right.numKeys);
+            System.arraycopy(right.values, 0, right.values, 1, right.numKeys);
+            right.keys[0] = parent.keys[i];
+            right.values[0] = parent.values[i];
+            if (!right.isLeaf()) {
+                System.arraycopy(right.children, 0, right.children, 1, right.numKeys + 1);
+                right.children[0] = left.children[left.numKeys];
+                left.children[left.numKeys] = 0;
+                if (this.counted) {
+                    System.arraycopy(right.counts, 0, right.counts, 1, right.numKeys + 1);
+                    System.arraycopy(right.sums, 0, right.sums, 1, right.numKeys + 1);
+                    right.counts[0] = left.counts[left.numKeys];
+                    right.sums[0] = left.sums[left.numKeys];
+                }
+            }
+            right.numKeys++;
+            parent.keys[i] = left.keys[left.numKeys - 1];
+            parent.values[i] = left.values[left.numKeys - 1];
+            left.numKeys--;
+            if (this.counted) {
+                recount(parent, i, left);
+                recount(parent, i + 1, right);
+            }
+            this.cache.put(left.blockId, left);
+            this.cache.put(right.blockId, right);
+            this.cache.put(parent.blockId, parent);
+            this.modifications.incrementAndGet();
+        }
+
+        // Move parent.keys[i] down to the end of 'left' and the first pair of 'right' up to replace it
+        private void rotateLeft(BTreeNode parent, int i, BTreeNode left, BTreeNode right) throws IOException {
+            left.keys[left.numKeys] = parent.keys[i];
+            left.values[left.numKeys] = parent.values[i];
+            if (!left.isLeaf()) {
+                left.children[left.numKeys + 1] = right.children[0];
+                System.arraycopy(right.children, 1, right.children, 0, right.numKeys);
+                right.children[right.numKeys] = 0;
+                if (this.counted) {
+                    left.counts[left.numKeys + 1] = right.counts[0];
+                    left.sums[left.numKeys + 1] = right.sums[0];
+                    System.arraycopy(right.counts, 1, right.counts, 0, right.numKeys);
+                    System.arraycopy(right.sums, 1, right.sums, 0, right.numKeys);
+                }
+            }
+            left.numKeys++;
+            parent.keys[i] = right.keys[0];
+            parent.values[i] = right.values[0];
+            System.arraycopy(right.keys, 1, right.keys, 0, right.numKeys - 1);
+            System.arraycopy(right.values, 1, right.values, 0, right.numKeys - 1);
+            right.numKeys--;
+            if (this.counted) {
+                recount(parent, i, left);
+                recount(parent, i + 1, right);
+            }
+            this.cache.put(left.blockId, left);
+            this.cache.put(right.blockId, right);
+            this.cache.put(parent.blockId, parent);
+            this.modifications.incrementAndGet();
+        }
+
+        // Merge 'right' and the separator parent.keys[i] into 'left', free right's block and release it;
+        // 'left' stays pinned and latched
+        private void mergeChildren(BTreeNode parent, int i, BTreeNode left, BTreeNode right) throws IOException {
+            int n = left.numKeys;
+            left.keys[n] = parent.keys[i];
+            left.values[n] = parent.values[i];
+            System.arraycopy(right.keys, 0, left.keys, n + 1, right.numKeys);
+            System.arraycopy(right.values, 0, left.values, n + 1, right.numKeys);
+            if (!left.isLeaf()) {
+                System.arraycopy(right.children, 0, left.children, n + 1, right.numKeys + 1);
+                if (this.counted) {
+                    System.arraycopy(right.counts, 0, left.counts, n + 1, right.numKeys + 1);
+                    System.arraycopy(right.sums, 0, left.sums, n + 1, right.numKeys + 1);
+                }
+            }
+            left.numKeys = n + 1 + right.numKeys;
+
+            System.arraycopy(parent.keys, i + 1, parent.keys, i, parent.numKeys - i - 1);
+            System.arraycopy(parent.values, i + 1, parent.values, i, parent.numKeys - i - 1);
+            System.arraycopy(parent.children, i + 2, parent.children, i + 1, parent.numKeys - i - 1);
+            parent.children[parent.numKeys] = 0;
+            if (this.counted) {
+                System.arraycopy(parent.counts, i + 2, parent.counts, i + 1, parent.numKeys - i - 1);
+                System.arraycopy(parent.sums, i + 2, parent.sums, i + 1, parent.numKeys - i - 1);
+                parent.counts[parent.numKeys] = 0;
+                parent.sums[parent.numKeys] = 0;
+            }
+            parent.numKeys--;
+            if (this.counted) {
+                recount(parent, i, left);
+            }
+
+            this.cache.put(left.blockId, left);
+            this.cache.put(parent.blockId, parent);
+            this.modifications.incrementAndGet();
+            this.metrics.merges.increment();
+            this.freeBlock(right);
+            this.release(right);
+        }
+
+        // If 'node' is the root and a merge or removal left it without keys, its only child (or
+        // nothing) becomes the root and its block is freed; 'node' stays latched
+        private void collapseRoot(BTreeNode node) throws IOException {
+            if (node.numKeys > 0 || node.blockId != this.rootId) {
+                return;
+            }
+            this.rootId = node.isLeaf() ? 0 : node.children[0];
+            this.freeBlock(node);
+        }
+
+        // Pairs under a node of a counted tree
+        static long subtreeCount(BTreeNode node) {
+            long count = node.numKeys;
+            if (!node.isLeaf()) {
+                for (int j = 0; j <= node.numKeys; j++) {
+                    count += node.counts[j];
+                }
+            }
+            return count;
+        }
+
+        // Sum of the values under a node of a counted tree; like any long sum, it wraps past 2^63 - 1
+        static long subtreeSum(BTreeNode node) {
+            long sum = 0;
+            for (int j = 0; j < node.numKeys; j++) {
+                sum += node.values[j];
+            }
+            if (!node.isLeaf()) {
+                for (int j = 0; j <= node.numKeys; j++) {
+                    sum += node.sums[j];
+                }
+            }
+            return sum;
+        }
+
+        // Set the count and sum a counted parent keeps for its child at 'slot' from the child itself
+        static void recount(BTreeNode parent, int slot, BTreeNode child) {
+            parent.counts[slot] = subtreeCount(child);
+            parent.sums[slot] = subtreeSum(child);
+        }
+
+        // Remove the pair at index i of a leaf
+        private static void removeFromNode(BTreeNode node, int i) {
+            System.arraycopy(node.keys, i + 1, node.keys, i, node.numKeys - i - 1);
+            System.arraycopy(node.values, i + 1, node.values, i, node.numKeys - i - 1);
+            node.numKeys--;
+        }
+
+        // Split a full child node around its middle key (key t - 1 of a fixed node's 2t - 1); the
+        // caller keeps 'parent' and 'child' pinned and exclusively latched. A B+Tree leaf keeps its
+        // pairs in the leaves: the middle pair starts the new leaf, which is linked in after the old
+        // one, and only a copy of its key goes up.
+        void splitChild(BTreeNode parent, int index, BTreeNode child) throws IOException {
+            boolean copyUp = this.bplus && child.isLeaf();
+            int mid = child.numKeys / 2;
+            int from = copyUp ? mid : mid + 1;
+            int moved = child.numKeys - from;
+            BTreeNode newChild = this.cache.pinNew(this.newNode(this.allocateBlock()));
+            newChild.leaf = child.leaf;
+            this.metrics.splits.increment();
+
+            newChild.numKeys = moved;
+            System.arraycopy(child.keys, from, newChild.keys, 0, moved);
+            System.arraycopy(child.values, from, newChild.values, 0, moved);
+
+            if (!child.isLeaf()) {
+                System.arraycopy(child.children, mid + 1, newChild.children, 0, moved + 1);
+                Arrays.fill(child.children, mid + 1, this.maxChildren, 0);
+                if (this.counted) {
+                    System.arraycopy(child.counts, mid + 1, newChild.counts, 0, moved + 1);
+                    System.arraycopy(child.sums, mid + 1, newChild.sums, 0, moved + 1);
+                    Arrays.fill(child.counts, mid + 1, this.maxChildren, 0);
+                    Arrays.fill(child.sums, mid + 1, this.maxChildren, 0);
+                }
+            }
+            if (copyUp) {
+                newChild.next = child.next;
+                child.next = newChild.blockId;
+            }
+
+            child.numKeys = mid;
+
+            // Shift keys and children in the parent to make room
+            System.arraycopy(parent.children, index+1, parent.children, index+2, parent.numKeys - index);
+            parent.children[index+1] = newChild.blockId;
+
+            System.arraycopy(parent.keys, index, parent.keys, index+1, parent.numKeys - index);
+            System.arraycopy(parent.values, index, parent.values, index+1, parent.numKeys - index);
+
+            parent.keys[index] = child.keys[mid];
+            parent.values[index] = child.values[mid];
+            parent.numKeys++;
+            if (this.counted) {
+                System.arraycopy(parent.counts, index + 1, parent.counts, index + 2, parent.numKeys - index - 1);
+                System.arraycopy(parent.sums, index + 1, parent.sums, index + 2, parent.numKeys - index - 1);
+                recount(parent, index, child);
+                recount(parent, index + 1, newChild);
+            }
+
+            this.cache.put(parent.blockId, parent);
+            this.cache.put(child.blockId, child);
+            this.cache.put(newChild.blockId, newChild);
+            this.cache.unpin(newChild);
+            this.modifications.incrementAndGet();
+        }
+
+        // Search for a key in the subtree rooted at 'node', which the caller pins and latches shared;
+        // latches are coupled on the way down and everything is released before returning. A B+Tree
+        // descends left of a separator equal to the key, then moves right along the leaves while the
+        // key sorts after all of a leaf's keys, latching each leaf only after letting go of the last.
+        Long searchNode(BTreeNode node, long key) throws IOException {
+            while (true) {
+                int i = node.lowerBound(key, 0);
+                Long found = null;
+                BTreeNode child = null;
+                long next = 0;
+                if (i < node.numKeys && key == node.keys[i] && (node.isLeaf() || !this.bplus)) {
+                    found = node.values[i];
+                } else if (!node.isLeaf()) {
+                    child = this.cache.pin(node.children[i]);
+                    child.latch.readLock().lock();
+                } else if (this.bplus && i == node.numKeys) {
+                    next = node.next;
+                }
+                node.latch.readLock().unlock();
+                this.cache.unpin(node);
+                if (next != 0) {
+                    child = this.cache.pin(next);
+                    child.latch.readLock().lock();
+                }
+                if (child == null) {
+                    return found;
+                }
+                node = child;
+            }
+        }
+
+        // ====== File header operations ======
+
+        void readHeader() throws IOException {
+            // Every format keeps its header fields in the first 512 bytes
+            ByteBuffer data = ByteBuffer.allocate(V1_BLOCK_SIZE);
+            if (!this.readBlock(0, data)) {
+                throw new IOException("Invalid header size.");
+            }
+            if (hasMagic(data, MAGIC_NUMBER)) {
+                this.formatVersion = 1;
+                this.readOnly = true;
+                this.configureLayout(V1_BLOCK_SIZE, V1_MIN_DEGREE, NodeLayout.FIXED);
+                this.freeHead = 0;
+                this.freeCount = 0;
+                this.bufferEpoch = 0;
+            } else if (hasMagic(data, MAGIC_NUMBER_V2)) {
+                int size = (int) data.getLong(24);
+                int degree = (int) data.getLong(32);
+                long flags = data.getLong(40);
+                if (flags != 0 && flags != FILE_FLAG_COMPRESSED && flags != FILE_FLAG_BPLUS && flags != FILE_FLAG_COUNTED) {
+                    throw new IOException("Unsupported flags " + Long.toHexString(flags) + " in header.");
+                }
+                NodeLayout layout = flags == FILE_FLAG_COMPRESSED ? NodeLayout.COMPRESSED
+                        : flags == FILE_FLAG_BPLUS ? NodeLayout.BPLUS
+                        : flags == FILE_FLAG_COUNTED ? NodeLayout.COUNTED : NodeLayout.FIXED;
+                if (Integer.bitCount(size) != 1 || size < MIN_BLOCK_SIZE || size > MAX_BLOCK_SIZE || degree < 2
+                        || degree > maxMinDegree(size, layout)) {
+                    throw new IOException("Invalid block size " + size + " or degree " + degree + " in header.");
+                }
+                this.formatVersion = 2;
+                this.readOnly = false;
+                this.configureLayout(size, degree, layout);
+                this.freeHead = data.getLong(48);
+                this.freeCount = data.getLong(56);
+                // Zero in files written before write buffers, whose first log has epoch 1
+                this.bufferEpoch = data.getLong(64);
+            } else {
+                throw new IOException("Invalid magic number.");
+            }
+            this.rootId = data.getLong(8);
+            this.nextBlockId = data.getLong(16);
+            this.headerRootId = this.rootId;
+            this.headerNextBlockId = this.nextBlockId;
+            this.headerFreeHead = this.freeHead;
+            this.headerBufferEpoch = this.bufferEpoch;
+        }
+
+        private static boolean hasMagic(ByteBuffer data, byte[] magic) {
+            for (int i = 0; i < magic.length; i++) {
+                if (data.get(i) != magic[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void writeHeader() throws IOException {
+            this.checkWritable();
+            ByteBuffer header = ByteBuffer.allocate(this.blockSize);
+            header.put(MAGIC_NUMBER_V2);
+            header.putLong(this.rootId);
+            header.putLong(this.nextBlockId);
+            header.putLong(this.blockSize);
+            header.putLong(this.minDegree);
+            header.putLong(this.compressed ? FILE_FLAG_COMPRESSED : this.bplus ? FILE_FLAG_BPLUS
+                    : this.counted ? FILE_FLAG_COUNTED : 0);
+            header.putLong(this.freeHead);
+            header.putLong(this.freeCount);
+            header.putLong(this.bufferEpoch);
+            header.clear();
+            this.writeBlock(0, header);
+            this.headerRootId = this.rootId;
+            this.headerNextBlockId = this.nextBlockId;
+            this.headerFreeHead = this.freeHead;
+            this.headerBufferEpoch = this.bufferEpoch;
+        }
+
+        // ====== Node I/O operations ======
+
+        BTreeNode readNodeFromFile(long blockId) throws IOException {
+            this.metrics.nodeReads.increment();
+            CodecBuffer scratch = CodecBuffer.forBlock(this.blockSize);
+            if (!this.readBlock((long) this.blockSize * blockId, scratch.bytes)) {
+                throw new IOException("Block " + blockId + " does not exist.");
+            }
+
+            // Header words one at a time, then each array in a single bulk transfer
+            LongBuffer data = scratch.longs;
+            long nodeBlockId = data.get();
+            long parentId = data.get();
+            int numKeys = (int) data.get();
+            long flags = this.formatVersion >= 2 ? data.get() : 0;
+            if (this.compressed) {
+                return this.decodeCompressed(scratch.bytes, nodeBlockId, parentId, numKeys, flags);
+            }
+
+            long[] keys = new long[this.maxKeys];
+            data.get(keys);
+            long[] values = new long[this.maxKeys];
+            long[] children = new long[this.maxChildren];
+            if (this.bplus) {
+                // A leaf's values and next-leaf link share the slots an inner node gives its children
+                BTreeNode node = new BTreeNode(nodeBlockId, parentId, numKeys, (flags & NODE_FLAG_LEAF) != 0, keys, values, children);
+                if (node.isLeaf()) {
+                    data.get(values);
+                    node.next = data.get();
+                } else {
+                    data.get(children);
+                }
+                return node;
+            }
+            data.get(values);
+            data.get(children);
+            if (this.counted) {
+                BTreeNode node = new BTreeNode(nodeBlockId, parentId, numKeys, (flags & NODE_FLAG_LEAF) != 0, keys, values, children);
+                node.counts = new long[this.maxChildren];
+                node.sums = new long[this.maxChildren];
+                if (!node.isLeaf()) {
+                    data.get(node.counts);
+                    data.get(node.sums);
+                }
+                return node;
+            }
+
+            boolean leaf;
+            if (this.formatVersion >= 2) {
+                leaf = (flags & NODE_FLAG_LEAF) != 0;
+            } else {
+                // Version 1 has no flag word; a leaf is a node without children
+                leaf = true;
+                for (long c : children) {
+                    leaf &= c == 0;
+                }
+            }
+
+            return new BTreeNode(nodeBlockId, parentId, numKeys, leaf, keys, values, children);
+        }
+
+        // The body of a compressed node; 'data' is positioned just past the header words
+        private BTreeNode decodeCompressed(ByteBuffer data, long blockId, long parentId, int numKeys, long flags) throws IOException {
+            if (numKeys < 0 || numKeys > this.maxKeys) {
+                throw new IOException("Block " + blockId + " has an invalid key count " + numKeys + ".");
+            }
+            boolean leaf = (flags & NODE_FLAG_LEAF) != 0;
+            long[] keys = new long[this.maxKeys];
+            long[] values = new long[this.maxKeys];
+            long[] children = new long[this.maxChildren];
+            data.position(NODE_HEADER_LONGS * Long.BYTES);
+            try {
+                long key = 0;
+                for (int i = 0; i < numKeys; i++) {
+                    key += CodecBuffer.getVarint(data);
+                    keys[i] = key;
+                }
+                for (int i = 0; i < numKeys; i++) {
+                    values[i] = CodecBuffer.getVarint(data);
+                }
+                if (!leaf) {
+                    for (int i = 0; i <= numKeys; i++) {
+                        children[i] = CodecBuffer.getVarint(data);
+                    }
+                }
+            } catch (BufferUnderflowException | IllegalStateException e) {
+                throw new IOException("Block " + blockId + " is corrupt.", e);
+            }
+            return new BTreeNode(blockId, parentId, numKeys, leaf, keys, values, children);
+        }
+
+        // Bytes the compressed encoding of a node takes
+        int compressedSize(BTreeNode node) {
+            int size = NODE_HEADER_LONGS * Long.BYTES;
+            long previous = 0;
+            for (int i = 0; i < node.numKeys; i++) {
+                size += CodecBuffer.varintLength(node.keys[i] - previous) + CodecBuffer.varintLength(node.values[i]);
+                previous = node.keys[i];
+            }
+            if (!node.isLeaf()) {
+                for (int i = 0; i <= node.numKeys; i++) {
+                    size += CodecBuffer.varintLength(node.children[i]);
+                }
+            }
+            return size;
+        }
+
+        void writeNodeToFile(BTreeNode node) throws IOException {
+            this.metrics.nodeWrites.increment();
+            this.writeBlock((long) this.blockSize * node.blockId, encodeNode(node));
+        }
+
+        // Write a node to a block that no committed header can reach yet, bypassing the log
+        void writeFreshNode(BTreeNode node) throws IOException {
+            this.metrics.nodeWrites.increment();
+            this.storage.write((long) this.blockSize * node.blockId, encodeNode(node));
+        }
+
+        // Mark a block free, linking it to the next free block (0 ends the list)
+        private void writeFreeBlock(long blockId, long next) throws IOException {
+            this.metrics.nodeWrites.increment();
+            CodecBuffer scratch = CodecBuffer.forBlock(this.blockSize);
+            LongBuffer data = scratch.longs;
+            data.put(blockId);
+            data.put(next);
+            data.put(0);
+            data.put(NODE_FLAG_FREE);
+            Arrays.fill(scratch.bytes.array(), data.position() * Long.BYTES, this.blockSize, (byte) 0);
+            this.writeBlock((long) this.blockSize * blockId, scratch.bytes);
+        }
+
+        // The block after 'blockId' on the free list
+        private long readFreeBlock(long blockId) throws IOException {
+            this.metrics.nodeReads.increment();
+            CodecBuffer scratch = CodecBuffer.forBlock(this.blockSize);
+            if (!this.readBlock((long) this.blockSize * blockId, scratch.bytes)) {
+                throw new IOException("Free block " + blockId + " does not exist.");
+            }
+            LongBuffer data = scratch.longs;
+            long next = data.get(1);
+            if (data.get(0) != blockId || (data.get(3) & NODE_FLAG_FREE) == 0) {
+                throw new IOException("Block " + blockId + " is on the free list but is not marked free.");
+            }
+            return next;
+        }
+
+        // Make blocks written with writeFreshNode durable before a header starts referencing them
+        void syncFreshNodes() throws IOException {
+            if (DURABILITY != Durability.OS) {
+                long syncStart = System.nanoTime();
+                this.storage.sync();
+                this.metrics.recordSync(syncStart);
+            }
+        }
+
+        // Encode into this thread's scratch buffer; the result is only valid until the next encode or
+        // read on the same thread, which is enough because the log and the backends copy it
+        ByteBuffer encodeNode(BTreeNode node) {
+            CodecBuffer scratch = CodecBuffer.forBlock(this.blockSize);
+            if (this.compressed) {
+                return this.encodeCompressed(node, scratch.bytes);
+            }
+            LongBuffer data = scratch.longs;
+            data.put(node.blockId);
+            data.put(node.parentId);
+            data.put(node.numKeys);
+            if (this.formatVersion >= 2) {
+                data.put(node.leaf ? NODE_FLAG_LEAF : 0);
+            }
+            data.put(node.keys);
+            if (this.bplus && node.isLeaf()) {
+                data.put(node.values);
+                data.put(node.next);
+            } else if (this.bplus) {
+                data.put(node.children);
+            } else {
+                data.put(node.values);
+                data.put(node.children);
+                if (this.counted && !node.isLeaf()) {
+                    data.put(node.counts);
+                    data.put(node.sums);
+                }
+            }
+            // Unused tail of the block stays zero, as it was when each block had its own buffer
+            Arrays.fill(scratch.bytes.array(), data.position() * Long.BYTES, this.blockSize, (byte) 0);
+            return scratch.bytes;
+        }
+
+        // Splits keep every compressed node within its block, so running out of room here is a bug
+        private ByteBuffer encodeCompressed(BTreeNode node, ByteBuffer data) {
+            data.putLong(node.blockId);
+            data.putLong(node.parentId);
+            data.putLong(node.numKeys);
+            data.putLong(node.leaf ? NODE_FLAG_LEAF : 0);
+            try {
+                long previous = 0;
+                for (int i = 0; i < node.numKeys; i++) {
+                    CodecBuffer.putVarint(data, node.keys[i] - previous);
+                    previous = node.keys[i];
+                }
+                for (int i = 0; i < node.numKeys; i++) {
+                    CodecBuffer.putVarint(data, node.values[i]);
+                }
+                if (!node.isLeaf()) {
+                    for (int i = 0; i <= node.numKeys; i++) {
+                        CodecBuffer.putVarint(data, node.children[i]);
+                    }
+                }
+            } catch (BufferOverflowException e) {
+                throw new IllegalStateException("Node " + node.blockId + " does not fit in a " + this.blockSize + "-byte block.");
+            }
+            Arrays.fill(data.array(), data.position(), this.blockSize, (byte) 0);
+            data.position(0);
+            return data;
+        }
+
+        // Fill 'target' with a block, preferring an image in the log that has not been checkpointed yet;
+        // false if the block lies past the end of the file
+        private boolean readBlock(long offset, ByteBuffer target) throws IOException {
+            if (this.wal == null || !this.wal.lookup(offset, target)) {
+                this.storage.read(offset, target);
+            }
+            boolean complete = !target.hasRemaining();
+            target.flip();
+            return complete;
+        }
+
+        // Write a block through the log when one is open, otherwise straight to storage
+        private void writeBlock(long offset, ByteBuffer data) throws IOException {
+            if (this.wal != null) {
+                this.wal.logPage(offset, data);
+            } else {
+                this.storage.write(offset, data);
+            }
+        }
+    }
+
+    /**
+     * An index spread over several BTree files, each with its own log, filter and latches, so
+     * writers on different shards never wait for one another. Every key lives in the shard picked
+     * by a hash of the key: point operations touch one shard, and equal keys stay together in
+     * the order they were added. Batches and loads are split by shard and run on a thread per
+     * shard; ordered reads merge one scan per shard.
+     *
+     * The index file itself is a small text manifest holding the magic line, the routing, the
+     * shard count and then one shard file name per line, relative to the manifest's directory.
+     */
+    static class ShardedIndex implements Index {
+        private static final String MAGIC = "4337SHD1";
+        static final int MAX_SHARDS = 256;
+
+        private final String manifestPath;
+        private final BTree[] shards;
+        private final ExecutorService pool;
+
+        private ShardedIndex(String manifestPath, BTree[] shards) {
+            this.manifestPath = manifestPath;
+            this.shards = shards;
+            this.pool = Executors.newFixedThreadPool(shards.length);
+        }
+
+        /**
+         * Work done for one shard on the pool.
+         */
+        private interface ShardTask<T> {
+            T run(int shard) throws IOException;
+        }
+
+        static ShardedIndex create(String filename, int count) throws IOException {
+            Path manifest = Paths.get(filename);
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                names.add(manifest.getFileName() + ".shard" + i);
+            }
+            ShardedIndex index = new ShardedIndex(filename, newShards(manifest, names));
+            try {
+                index.eachShard(shard -> {
+                    index.shards[shard].createIndexFile();
+                    return null;
+                });
+                // Written last and renamed into place, so a failed create leaves no manifest behind
+                Path temp = Paths.get(filename + ".tmp");
+                List<String> lines = new ArrayList<>(Arrays.asList(MAGIC, "routing hash", "shards " + count));
+                lines.addAll(names);
+                Files.write(temp, lines);
+                Files.move(temp, manifest, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                        java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                index.closeIndexFile();
+                throw e;
+            }
+            return index;
+        }
+
+        static ShardedIndex open(String filename) throws IOException {
+            Path manifest = Paths.get(filename);
+            ShardedIndex index = new ShardedIndex(filename, newShards(manifest, readManifest(manifest)));
+            try {
+                // Each shard recovers its own log and filter, so they are opened side by side
+                index.eachShard(shard -> {
+                    index.shards[shard].openAndLoad("rw");
+                    return null;
+                });
+            } catch (IOException | RuntimeException e) {
+                index.closeIndexFile();
+                throw e;
+            }
+            return index;
+        }
+
+        // The buffer pool is shared out between the shards, so sharding does not multiply its memory
+        private static BTree[] newShards(Path manifest, List<String> names) {
+            int cachePages = Math.max(cachePages(DEFAULT_BLOCK_SIZE) / names.size(), 64);
+            BTree[] shards = new BTree[names.size()];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new BTree(manifest.resolveSibling(names.get(i)).toString(), cachePages);
+            }
+            return shards;
+        }
+
+        static boolean isManifest(String filename) throws IOException {
+            Path path = Paths.get(filename);
+            if (!Files.isRegularFile(path)) {
+                return false;
+            }
+            byte[] head = new byte[MAGIC.length()];
+            try (InputStream in = Files.newInputStream(path)) {
+                return in.readNBytes(head, 0, head.length) == head.length && MAGIC.equals(new String(head));
+            }
+        }
+
+        // The shard file names listed in a manifest
+        private static List<String> readManifest(Path manifest) throws IOException {
+            List<String> lines = Files.readAllLines(manifest);
+            int count = -1;
+            if (lines.size() >= 3 && lines.get(0).equals(MAGIC) && lines.get(1).equals("routing hash")
+                    && lines.get(2).startsWith("shards ")) {
+                try {
+                    count = Integer.parseInt(lines.get(2).substring("shards ".length()));
+                } catch (NumberFormatException e) {
+                    count = -1;
+                }
+            }
+            if (count < 2 || count > MAX_SHARDS || lines.size() != 3 + count) {
+                throw new IOException("Invalid shard manifest " + manifest + ".");
+            }
+            return lines.subList(3, lines.size());
+        }
+
+        // If 'filename' is a manifest, delete its shards along with their logs and filters
+        static void deleteShards(String filename) throws IOException {
+            if (!isManifest(filename)) {
+                return;
+            }
+            Path manifest = Paths.get(filename);
+            for (String name : readManifest(manifest)) {
+                Path shard = manifest.resolveSibling(name);
+                Files.deleteIfExists(shard);
+                Files.deleteIfExists(Paths.get(shard + ".wal"));
+                Files.deleteIfExists(Paths.get(shard + ".bloom"));
+                Files.deleteIfExists(Paths.get(shard + ".buf"));
+            }
+        }
+
+        // The shard of a key: the high bits of a Fibonacci hash, scaled to the shard count
+        int shardOf(long key) {
+            return (int) ((((key * 0x9E3779B97F4A7C15L) >>> 32) * this.shards.length) >>> 32);
+        }
+
+        // Run a task for every shard on the pool and return the results in shard order. All tasks
+        // finish before the first failure is rethrown.
+        private <T> List<T> eachShard(ShardTask<T> task) throws IOException {
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < this.shards.length; i++) {
+                final int shard = i;
+                futures.add(this.pool.submit(() -> task.run(shard)));
+            }
+            List<T> results = new ArrayList<>();
+            Throwable failure = null;
+            for (Future<T> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    failure = failure == null ? e.getCause() : failure;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = failure == null ? new InterruptedIOException() : failure;
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new IOException(failure);
+            }
+            return results;
+        }
+
+        // For each shard, the positions among the first n keys that belong to it, in order
+        private int[][] partition(long[] keys, int n) {
+            int[] route = new int[n];
+            int[] counts = new int[this.shards.length];
+            for (int i = 0; i < n; i++) {
+                route[i] = this.shardOf(keys[i]);
+                counts[route[i]]++;
+            }
+            int[][] positions = new int[this.shards.length][];
+            for (int s = 0; s < positions.length; s++) {
+                positions[s] = new int[counts[s]];
+                counts[s] = 0;
+            }
+            for (int i = 0; i < n; i++) {
+                positions[route[i]][counts[route[i]]++] = i;
+            }
+            return positions;
+        }
+
+        private static long[] gather(long[] from, int[] positions) {
+            long[] to = new long[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                to[i] = from[positions[i]];
+            }
+            return to;
+        }
+
+        @Override
+        public void insert(long key, long value) throws IOException {
+            this.shards[this.shardOf(key)].insert(key, value);
+        }
+
+        @Override
+        public void insertMany(long[] keys, long[] values, int n) throws IOException {
+            int[][] positions = this.partition(keys, n);
+            this.eachShard(shard -> {
+                int[] mine = positions[shard];
+                if (mine.length > 0) {
+                    this.shards[shard].insertMany(gather(keys, mine), gather(values, mine), mine.length);
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public boolean delete(long key) throws IOException {
+            return this.shards[this.shardOf(key)].delete(key);
+        }
+
+        @Override
+        public boolean update(long key, long value) throws IOException {
+            return this.shards[this.shardOf(key)].update(key, value);
+        }
+
+        @Override
+        public Long searchKey(long key) throws IOException {
+            return this.shards[this.shardOf(key)].searchKey(key);
+        }
+
+        @Override
+        public Long[] searchMany(long[] keys) throws IOException {
+            int[][] positions = this.partition(keys, keys.length);
+            Long[] found = new Long[keys.length];
+            this.eachShard(shard -> {
+                int[] mine = positions[shard];
+                if (mine.length > 0) {
+                    Long[] values = this.shards[shard].searchMany(gather(keys, mine));
+                    for (int i = 0; i < mine.length; i++) {
+                        found[mine[i]] = values[i];
+                    }
+                }
+                return null;
+            });
+            return found;
+        }
+
+        // A k-way merge of one cursor per shard; a key is in one shard only, so equal keys keep their order
+        @Override
+        public PairStream scan(long fromKey, long toKey) throws IOException {
+            List<PairStream> scans = new ArrayList<>();
+            try {
+                for (BTree shard : this.shards) {
+                    scans.add(shard.scan(fromKey, toKey));
+                }
+                return new MergingStream(scans);
+            } catch (IOException | RuntimeException e) {
+                for (PairStream scan : scans) {
+                    scan.close();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public long count(long fromKey, long toKey) throws IOException {
+            long count = 0;
+            for (long c : this.eachShard(shard -> this.shards[shard].count(fromKey, toKey))) {
+                count += c;
+            }
+            return count;
+        }
+
+        @Override
+        public long sum(long fromKey, long toKey) throws IOException {
+            long sum = 0;
+            for (long s : this.eachShard(shard -> this.shards[shard].sum(fromKey, toKey))) {
+                sum += s;
+            }
+            return sum;
+        }
+
+        @Override
+        public long rank(long key) throws IOException {
+            long rank = 0;
+            for (long r : this.eachShard(shard -> this.shards[shard].rank(key))) {
+                rank += r;
+            }
+            return rank;
+        }
+
+        // Counted shards: a binary search over keys for the first whose rank passes the position, then a
+        // select in the one shard holding that key. Otherwise the merged scan is walked to the position.
+        @Override
+        public long[] select(long position) throws IOException {
+            if (position < 0) {
+                return null;
+            }
+            boolean counted = true;
+            for (BTree shard : this.shards) {
+                counted &= shard.counted;
+            }
+            if (!counted) {
+                try (PairStream c = this.scan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    for (long skipped = 0; c.next(); skipped++) {
+                        if (skipped == position) {
+                            return new long[]{c.key(), c.value()};
+                        }
+                    }
+                }
+                return null;
+            }
+            if (position >= this.count(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                return null;
+            }
+            // The largest key whose rank is at most the position
+            long lo = Long.MIN_VALUE;
+            long hi = Long.MAX_VALUE;
+            while (lo < hi) {
+                long mid = (lo >> 1) + (hi >> 1) + (lo & hi & 1) + ((lo ^ hi) & 1);
+                if (this.rank(mid) <= position) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            BTree shard = this.shards[this.shardOf(lo)];
+            return shard.select(position - this.rank(lo) + shard.rank(lo));
+        }
+
+        // Deal the valid rows out to one file per shard, keeping their order, then load the shards side by side
+        @Override
+        public void loadData(String filename) throws IOException {
+            File f = new File(filename);
+            if (!f.exists()) {
+                System.out.println("File " + filename + " does not exist.");
+                return;
+            }
+            long start = System.nanoTime();
+            Path[] parts = new Path[this.shards.length];
+            BufferedWriter[] writers = new BufferedWriter[this.shards.length];
+            try {
+                try {
+                    for (int i = 0; i < parts.length; i++) {
+                        parts[i] = Paths.get(this.shards[i].filePath + ".rows");
+                        writers[i] = Files.newBufferedWriter(parts[i]);
+                    }
+                    BTree.forEachRow(filename, true, (key, value) -> {
+                        BufferedWriter out = writers[this.shardOf(key)];
+                        out.write(Long.toString(key));
+                        out.write(',');
+                        out.write(Long.toString(value));
+                        out.newLine();
+                    });
+                } finally {
+                    for (BufferedWriter out : writers) {
+                        if (out != null) {
+                            out.close();
+                        }
+                    }
+                }
+                List<BTree.LoadResult> results = this.eachShard(shard -> this.shards[shard].loadRows(parts[shard].toString()));
+                long loaded = 0;
+                Set<String> methods = new LinkedHashSet<>();
+                for (BTree.LoadResult result : results) {
+                    loaded += result.rows;
+                    methods.add(result.method);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Loaded %d rows in %.3f s (%.0f rows/sec, %d shards: %s).%n",
+                        loaded, seconds, loaded / Math.max(seconds, 1e-9), this.shards.length, String.join("; ", methods));
+            } finally {
+                for (Path part : parts) {
+                    if (part != null) {
+                        Files.deleteIfExists(part);
+                    }
+                }
+            }
+        }
+
+        // Merge a snapshot scan of every shard into one file; each shard is read as of the start
+        @Override
+        public void extractData(String filename) throws IOException {
+            long start = System.nanoTime();
+            List<Snapshot> snapshots = new ArrayList<>();
+            List<PairStream> scans = new ArrayList<>();
+            long rows = 0;
+            try {
+                for (BTree shard : this.shards) {
+                    Snapshot snapshot = shard.snapshot();
+                    snapshots.add(snapshot);
+                    scans.add(snapshot.scan(Long.MIN_VALUE, Long.MAX_VALUE));
+                }
+                byte[] buf = new byte[1 << 16];
+                int pos = 0;
+                try (OutputStream out = Files.newOutputStream(Paths.get(filename));
+                     PairStream merged = new MergingStream(scans)) {
+                    while (merged.next()) {
+                        if (pos > buf.length - ExtractTask.MAX_ROW_BYTES) {
+                            out.write(buf, 0, pos);
+                            pos = 0;
+                        }
+                        pos = ExtractTask.putDecimal(merged.key(), buf, pos);
+                        buf[pos++] = ',';
+                        pos = ExtractTask.putDecimal(merged.value(), buf, pos);
+                        System.arraycopy(ExtractTask.LINE_SEPARATOR, 0, buf, pos, ExtractTask.LINE_SEPARATOR.length);
+                        pos += ExtractTask.LINE_SEPARATOR.length;
+                        rows++;
+                    }
+                    out.write(buf, 0, pos);
+                }
+            } finally {
+                for (PairStream scan : scans) {
+                    scan.close();
+                }
+                for (Snapshot snapshot : snapshots) {
+                    snapshot.close();
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("Data extracted to " + filename + ".");
+            System.out.printf("Extracted %d rows in %.3f s (%.0f rows/sec, merged from %d shards).%n",
+                    rows, seconds, rows / Math.max(seconds, 1e-9), this.shards.length);
+        }
+
+        // One shard after another, so that their reports stay readable
+        @Override
+        public void compact(double fillFactor) throws IOException {
+            for (int i = 0; i < this.shards.length; i++) {
+                System.out.print("Shard " + i + ": ");
+                this.shards[i].compact(fillFactor);
+            }
+        }
+
+        @Override
+        public long rebuildFilter() throws IOException {
+            long keys = 0;
+            for (long k : this.eachShard(shard -> this.shards[shard].rebuildFilter())) {
+                keys += k;
+            }
+            return keys;
+        }
+
+        @Override
+        public List<BloomFilter> filters() {
+            List<BloomFilter> filters = new ArrayList<>();
+            for (BTree shard : this.shards) {
+                filters.addAll(shard.filters());
+            }
+            return filters;
+        }
+
+        @Override
+        public boolean upgradeFormat() throws IOException {
+            boolean upgraded = false;
+            for (BTree shard : this.shards) {
+                upgraded |= shard.upgradeFormat();
+            }
+            return upgraded;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            for (BTree shard : this.shards) {
+                if (shard.isReadOnly()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int shardCount() {
+            return this.shards.length;
+        }
+
+        @Override
+        public String report() throws IOException {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("Shards: %d, keys placed by hash (manifest %s).%n", this.shards.length, this.manifestPath));
+            for (int i = 0; i < this.shards.length; i++) {
+                out.append(String.format("Shard %d (%s):%n", i, this.shards[i].filePath));
+                for (String line : this.shards[i].report().split(System.lineSeparator())) {
+                    out.append("  ").append(line).append(System.lineSeparator());
+                }
+            }
+            return out.toString();
+        }
+
+        // Close the shards side by side, since each commits and syncs its own log
+        @Override
+        public void closeIndexFile() {
+            try {
+                this.eachShard(shard -> {
+                    this.shards[shard].closeIndexFile();
+                    return null;
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                this.pool.shutdown();
+            }
+        }
+    }
+
+    // Read one key per line from a file, look them all up as one batch, and print the results in file order
+    static void searchKeysFromFile(Index index, String filename) throws IOException {
+        File f = new File(filename);
+        if (!f.exists()) {
+            System.out.println("File " + filename + " does not exist.");
+            return;
+        }
+        long[] keys = new long[1024];
+        int count = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                long key;
+                try {
+                    key = Long.parseLong(line.trim());
+                    if (key < 0) {
+                        throw new NumberFormatException();
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("Skipping invalid line " + lineNumber + ": " + line.trim());
+                    continue;
+                }
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                keys[count++] = key;
+            }
+        }
+        keys = Arrays.copyOf(keys, count);
+        long start = System.nanoTime();
+        Long[] values = index.searchMany(keys);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (values[i] != null) {
+                out.append("Found key ").append(keys[i]).append(" with value ").append(values[i]).append(".\n");
+            } else {
+                out.append("Key ").append(keys[i]).append(" not found.\n");
+            }
+        }
+        System.out.print(out);
+        System.out.printf("Searched %d keys in %.3f s (%.0f keys/sec).%n", count, seconds, count / Math.max(seconds, 1e-9));
+    }
+
+    // Rebuild the index's Bloom filters, one per shard, and report their total size
+    static void rebuildFilter(Index index) throws IOException {
+        long start = System.nanoTime();
+        long keys = index.rebuildFilter();
+        long bytes = 0;
+        int hashes = 0;
+        for (BloomFilter filter : index.filters()) {
+            bytes += filter.sizeBytes();
+            hashes = Math.max(hashes, filter.numHashes());
+        }
+        System.out.printf("Rebuilt the Bloom filter for %d keys in %.3f s: %d bytes, %d hashes.%n",
+                keys, (System.nanoTime() - start) / 1e9, bytes, hashes);
+    }
+
+    static String rankText(long key, long rank) {
+        return rank + (rank == 1 ? " key is" : " keys are") + " smaller than " + key + ".";
+    }
+
+    static String selectText(long position, long[] pair) {
+        return pair == null ? "No key at position " + position + "."
+                : "Key at position " + position + ": " + pair[0] + " with value " + pair[1] + ".";
+    }
+
+    // Parse a shard count, from 1 (a single file) to ShardedIndex.MAX_SHARDS
+    static int shardCount(String text) {
+        int shards = Integer.parseInt(text);
+        if (shards < 1 || shards > ShardedIndex.MAX_SHARDS) {
+            throw new IllegalArgumentException("Invalid input. Please enter a shard count from 1 to " + ShardedIndex.MAX_SHARDS + ".");
+        }
+        return shards;
+    }
+
+    static String shardNote(int shards) {
+        return shards == 1 ? "" : " (" + shards + " shards)";
+    }
+
+    // Where a trailing shard count starts in "name [shards]" as typed at the file name prompt, or -1
+    static int shardSuffix(String line) {
+        int space = line.lastIndexOf(' ');
+        return space > 0 && line.substring(space + 1).matches("\\d+") ? space : -1;
+    }
+
+    /**
+     * Runs one-line commands such as "insert 10 100" or "search 10" from a script or stdin, with no
+     * prompts or menu. Output is buffered and flushed only when the input runs dry, so a driver that
+     * writes commands down one pipe and reads results from another keeps both full. Consecutive
+     * inserts run as one batch under one commit, and consecutive searches as one searchMany; any
+     * other command first finishes the pending batch, so results come out in input order.
+     */
+    static class BatchSession {
+        // Most consecutive inserts or searches run as one batch
+        private static final int BATCH_LIMIT = 65536;
+
+        private final PrintStream out;
+        private Index index;
+        private int lineNumber = 0;
+        private boolean failed = false;
+        // Pending inserts or searches ("insert", "search" or null), with the line the batch started on
+        private String pendingCommand;
+        private int pendingLine;
+        private int pending = 0;
+        private final long[] keys = new long[BATCH_LIMIT];
+        private final long[] values = new long[BATCH_LIMIT];
+
+        private BatchSession(PrintStream out) {
+            this.out = out;
+        }
+
+        // Run a script, or stdin when 'script' is null or "-"; returns the process exit status,
+        // 1 if any command failed
+        static int run(String script) throws IOException {
+            BufferedReader in;
+            if (script == null || script.equals("-")) {
+                in = new BufferedReader(new InputStreamReader(System.in), 1 << 16);
+            } else if (new File(script).exists()) {
+                in = new BufferedReader(new FileReader(script), 1 << 16);
+            } else {
+                System.out.println("File " + script + " does not exist.");
+                return 1;
+            }
+            // Commands report through System.out, so buffer it for the whole session
+            PrintStream original = System.out;
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+            System.setOut(out);
+            BatchSession session = new BatchSession(out);
+            try (BufferedReader lines = in) {
+                while (true) {
+                    if (!lines.ready()) {
+                        // About to block: finish what is pending and let the driver see it
+                        session.drain();
+                        out.flush();
+                    }
+                    String line = lines.readLine();
+                    if (line == null || !session.execute(line)) {
+                        break;
+                    }
+                }
+                session.drain();
+            } finally {
+                if (session.index != null) {
+                    session.index.closeIndexFile();
+                }
+                out.flush();
+                System.setOut(original);
+            }
+            return session.failed ? 1 : 0;
+        }
+
+        // Run or queue one line; returns false on quit
+        private boolean execute(String line) throws IOException {
+            this.lineNumber++;
+            String[] args = words(line);
+            if (args.length == 0 || args[0].startsWith("#")) {
+                return true;
+            }
+            String command = args[0].toLowerCase();
+            if (this.pending > 0 && !command.equals(this.pendingCommand)) {
+                this.drain();
+            }
+            try {
+                switch (command) {
+                    case "insert":
+                        expect(args, 2, "insert <key> <value>");
+                        this.writable();
+                        this.queue(command, unsigned(args[1]), unsigned(args[2]));
+                        break;
+                    case "search":
+                        expect(args, 1, "search <key>");
+                        this.open();
+                        this.queue(command, unsigned(args[1]), 0);
+                        break;
+                    case "create": {
+                        boolean overwrite = args.length > 2 && args[args.length - 1].equalsIgnoreCase("overwrite");
+                        int given = overwrite ? args.length - 1 : args.length;
+                        if (given != 2 && given != 3) {
+                            throw new IllegalArgumentException("Usage: create <file> [shards] [overwrite]");
+                        }
+                        int shards = given == 3 ? shardCount(args[2]) : 1;
+                        if (!overwrite && new File(args[1]).exists()) {
+                            throw new IllegalStateException("File " + args[1] + " exists. Add 'overwrite' to replace it.");
+                        }
+                        this.close();
+                        this.index = Index.create(args[1], shards);
+                        this.out.println("Created and opened index file " + args[1] + shardNote(shards) + ".");
+                        break;
+                    }
+                    case "open": {
+                        if (args.length != 2 && args.length != 3) {
+                            throw new IllegalArgumentException("Usage: open <file> [shards]");
+                        }
+                        int expected = args.length == 3 ? shardCount(args[2]) : 0;
+                        this.close();
+                        this.index = Index.open(args[1]);
+                        if (expected != 0 && this.index.shardCount() != expected) {
+                            int actual = this.index.shardCount();
+                            this.close();
+                            throw new IllegalStateException("Index file " + args[1] + " has " + actual + " shards, not " + expected + ".");
+                        }
+                        this.out.println("Opened and loaded index file " + args[1] + shardNote(this.index.shardCount()) + ".");
+                        break;
+                    }
+                    case "delete": {
+                        expect(args, 1, "delete <key>");
+                        long key = unsigned(args[1]);
+                        this.writable();
+                        this.out.println(this.index.delete(key) ? "Deleted key " + key + "." : "Key not found.");
+                        break;
+                    }
+                    case "update": {
+                        expect(args, 2, "update <key> <value>");
+                        long key = unsigned(args[1]);
+                        long value = unsigned(args[2]);
+                        this.writable();
+                        this.out.println(this.index.update(key, value) ? "Updated key " + key + " to value " + value + "." : "Key not found.");
+                        break;
+                    }
+                    case "msearch":
+                        expect(args, 1, "msearch <file>");
+                        searchKeysFromFile(this.open(), args[1]);
+                        break;
+                    case "range": {
+                        expect(args, 2, "range <lower key> <upper key>");
+                        long from = unsigned(args[1]);
+                        long to = unsigned(args[2]);
+                        this.out.println(this.open().printRange(from, to) + " keys in range.");
+                        break;
+                    }
+                    case "count": {
+                        expect(args, 2, "count <lower key> <upper key>");
+                        long from = unsigned(args[1]);
+                        long to = unsigned(args[2]);
+                        this.out.println(this.open().count(from, to) + " keys in range.");
+                        break;
+                    }
+                    case "sum": {
+                        expect(args, 2, "sum <lower key> <upper key>");
+                        long from = unsigned(args[1]);
+                        long to = unsigned(args[2]);
+                        this.out.println("Sum of values in range: " + Long.toUnsignedString(this.open().sum(from, to)) + ".");
+                        break;
+                    }
+                    case "rank": {
+                        expect(args, 1, "rank <key>");
+                        long key = unsigned(args[1]);
+                        this.out.println(rankText(key, this.open().rank(key)));
+                        break;
+                    }
+                    case "select": {
+                        expect(args, 1, "select <position>");
+                        long position = unsigned(args[1]);
+                        this.out.println(selectText(position, this.open().select(position)));
+                        break;
+                    }
+                    case "load":
+                        expect(args, 1, "load <file>");
+                        this.writable().loadData(args[1]);
+                        break;
+                    case "print":
+                        expect(args, 0, "print");
+                        this.open().printTree();
+                        break;
+                    case "extract":
+                        if (args.length != 2 && !(args.length == 3 && args[2].equalsIgnoreCase("overwrite"))) {
+                            throw new IllegalArgumentException("Usage: extract <file> [overwrite]");
+                        }
+                        this.open();
+                        if (args.length == 2 && new File(args[1]).exists()) {
+                            throw new IllegalStateException("File " + args[1] + " exists. Add 'overwrite' to replace it.");
+                        }
+                        this.index.extractData(args[1]);
+                        break;
+                    case "compact": {
+                        if (args.length > 2) {
+                            throw new IllegalArgumentException("Usage: compact [fill factor]");
+                        }
+                        if (args.length == 1) {
+                            requireBetween("btree.fillFactor", FILL_FACTOR, 0.5, 1.0);
+                        }
+                        double fill = args.length == 1 ? FILL_FACTOR : Double.parseDouble(args[1]);
+                        if (!(fill >= 0.5 && fill <= 1.0)) {
+                            throw new IllegalArgumentException("Invalid input. Please enter a number from 0.5 to 1.0.");
                         }
-                        node = this.cache.get(node.children[i]);
+                        this.writable().compact(fill);
+                        break;
                     }
+                    case "bloom":
+                        expect(args, 0, "bloom");
+                        this.open();
+                        if (BLOOM_FPP <= 0) {
+                            throw new IllegalStateException("The Bloom filter is turned off (btree.bloomFpp=0).");
+                        }
+                        rebuildFilter(this.index);
+                        break;
+                    case "upgrade":
+                        expect(args, 0, "upgrade");
+                        this.out.println(this.open().upgradeFormat()
+                                ? "Upgraded index file to format version 2." : "Index file is already in format version 2.");
+                        break;
+                    case "stats":
+                        expect(args, 0, "stats");
+                        this.out.print(this.open().report());
+                        break;
+                    case "quit":
+                        return false;
+                    default:
+                        throw new IllegalArgumentException("Invalid command: " + args[0]);
                 }
+            } catch (NumberFormatException e) {
+                this.error(this.lineNumber, "Invalid input. Please enter unsigned integers.");
+            } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+                this.error(this.lineNumber, e.getMessage());
+            } catch (Exception e) {
+                this.error(this.lineNumber, e.toString());
             }
+            return true;
         }
 
-        // Split a full child node
-        void splitChild(BTreeNode parent, int index, BTreeNode child) throws IOException {
-            BTreeNode newChild = new BTreeNode(this.nextBlockId);
-            this.nextBlockId++;
-
-            newChild.numKeys = MIN_DEGREE - 1;
-            System.arraycopy(child.keys, MIN_DEGREE, newChild.keys, 0, MIN_DEGREE - 1);
-            System.arraycopy(child.values, MIN_DEGREE, newChild.values, 0, MIN_DEGREE - 1);
-
-            if (!child.isLeaf()) {
-                System.arraycopy(child.children, MIN_DEGREE, newChild.children, 0, MIN_DEGREE);
+        private void queue(String command, long key, long value) {
+            if (this.pending == 0) {
+                this.pendingCommand = command;
+                this.pendingLine = this.lineNumber;
+            }
+            this.keys[this.pending] = key;
+            this.values[this.pending] = value;
+            if (++this.pending == BATCH_LIMIT) {
+                this.drain();
             }
-
-            child.numKeys = MIN_DEGREE - 1;
-
-            // Shift keys and children in the parent to make room
-            System.arraycopy(parent.children, index+1, parent.children, index+2, parent.numKeys - index);
-            parent.children[index+1] = newChild.blockId;
-
-            System.arraycopy(parent.keys, index, parent.keys, index+1, parent.numKeys - index);
-            System.arraycopy(parent.values, index, parent.values, index+1, parent.numKeys - index);
-
-            parent.keys[index] = child.keys[MIN_DEGREE - 1];
-            parent.values[index] = child.values[MIN_DEGREE - 1];
-            parent.numKeys++;
-
-            this.cache.put(parent.blockId, parent);
-            this.cache.put(child.blockId, child);
-            this.cache.put(newChild.blockId, newChild);
         }
 
-        // In-order traversal of the B-Tree to get all key-value pairs sorted by key
-        void inorderTraverse(List<long[]> result) throws IOException {
-            if (this.rootId == 0) {
+        // Run the pending inserts or searches
+        private void drain() {
+            int n = this.pending;
+            if (n == 0) {
                 return;
             }
-            BTreeNode root = this.cache.get(this.rootId);
-            depthFirstSearch(root, result);
-        }
-
-        // Depth-first search to collect all key-value pairs in ascending order
-        void depthFirstSearch(BTreeNode node, List<long[]> result) throws IOException {
-            for (int i = 0; i < node.numKeys; i++) {
-                if (node.children[i] != 0) {
-                    depthFirstSearch(this.cache.get(node.children[i]), result);
+            this.pending = 0;
+            try {
+                if (this.pendingCommand.equals("insert")) {
+                    // A stable sort keeps equal keys in input order and sends neighbouring inserts down one path
+                    ExternalSorter.sortPairs(this.keys, this.values, n);
+                    this.index.insertMany(this.keys, this.values, n);
+                } else {
+                    Long[] found = this.index.searchMany(Arrays.copyOf(this.keys, n));
+                    StringBuilder text = new StringBuilder(n * 32);
+                    for (int i = 0; i < n; i++) {
+                        if (found[i] != null) {
+                            text.append("Found key ").append(this.keys[i]).append(" with value ").append(found[i]).append(".\n");
+                        } else {
+                            text.append("Key not found.\n");
+                        }
+                    }
+                    this.out.print(text);
                 }
-                result.add(new long[]{node.keys[i], node.values[i]});
-            }
-            if (node.children[node.numKeys] != 0) {
-                depthFirstSearch(this.cache.get(node.children[node.numKeys]), result);
+            } catch (IOException e) {
+                this.error(this.pendingLine, e.getMessage());
             }
         }
 
-        // Search for a key in the subtree rooted at 'node'
-        Long searchNode(BTreeNode node, long key) throws IOException {
-            int i = 0;
-            while (i < node.numKeys && key > node.keys[i]) {
-                i++;
-            }
-            if (i < node.numKeys && key == node.keys[i]) {
-                return node.values[i];
-            } else if (node.isLeaf()) {
-                return null;
-            } else {
-                return searchNode(this.cache.get(node.children[i]), key);
-            }
+        // Report a failed line, after the output of any batch queued before it
+        private void error(int line, String message) {
+            this.drain();
+            this.failed = true;
+            this.out.println("Line " + line + ": " + message);
         }
 
-        // ====== File header operations ======
-
-        void readHeader() throws IOException {
-            this.file.seek(0);
-            byte[] data = new byte[BLOCK_SIZE];
-            int read = this.file.read(data);
-            if (read < BLOCK_SIZE) {
-                throw new IOException("Invalid header size.");
-            }
-            for (int i = 0; i < 8; i++) {
-                if (data[i] != MAGIC_NUMBER[i]) {
-                    throw new IOException("Invalid magic number.");
-                }
+        private void close() {
+            if (this.index != null) {
+                this.index.closeIndexFile();
+                this.index = null;
             }
-            this.rootId = fromBytes(Arrays.copyOfRange(data, 8, 16));
-            this.nextBlockId = fromBytes(Arrays.copyOfRange(data, 16, 24));
         }
 
-        void writeHeader() throws IOException {
-            this.file.seek(0);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            bos.write(MAGIC_NUMBER);
-            bos.write(toBytes(this.rootId));
-            bos.write(toBytes(this.nextBlockId));
-
-            byte[] header = bos.toByteArray();
-            if (header.length < BLOCK_SIZE) {
-                header = Arrays.copyOf(header, BLOCK_SIZE);
+        private Index open() {
+            if (this.index == null) {
+                throw new IllegalStateException("No index file is open.");
             }
-            this.file.write(header);
-            this.file.getChannel().force(true);
+            return this.index;
         }
 
-        // ====== Node I/O operations ======
-
-        BTreeNode readNodeFromFile(long blockId) throws IOException {
-            this.file.seek(BLOCK_SIZE * blockId);
-            byte[] data = new byte[BLOCK_SIZE];
-            int read = this.file.read(data);
-            if (read < BLOCK_SIZE) {
-                throw new IOException("Block " + blockId + " does not exist.");
-            }
-
-            int offset = 0;
-            long nodeBlockId = fromBytes(Arrays.copyOfRange(data, offset, offset+8));
-            offset += 8;
-            long parentId = fromBytes(Arrays.copyOfRange(data, offset, offset+8));
-            offset += 8;
-            int numKeys = (int)fromBytes(Arrays.copyOfRange(data, offset, offset+8));
-            offset += 8;
-
-            long[] keys = new long[MAX_KEYS];
-            for (int i = 0; i < MAX_KEYS; i++) {
-                keys[i] = fromBytes(Arrays.copyOfRange(data, offset, offset+8));
-                offset += 8;
+        private Index writable() {
+            if (this.open().isReadOnly()) {
+                throw new IllegalStateException(READ_ONLY_MESSAGE);
             }
+            return this.index;
+        }
 
-            long[] values = new long[MAX_KEYS];
-            for (int i = 0; i < MAX_KEYS; i++) {
-                values[i] = fromBytes(Arrays.copyOfRange(data, offset, offset+8));
-                offset += 8;
+        // Split a line at runs of whitespace; cheaper than a regular expression on every line
+        private static String[] words(String line) {
+            String[] words = new String[4];
+            int n = 0;
+            int i = 0;
+            int length = line.length();
+            while (true) {
+                while (i < length && Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+                if (i == length) {
+                    return n == words.length ? words : Arrays.copyOf(words, n);
+                }
+                int start = i;
+                while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+                if (n == words.length) {
+                    words = Arrays.copyOf(words, n * 2);
+                }
+                words[n++] = line.substring(start, i);
             }
+        }
 
-            long[] children = new long[MAX_CHILDREN];
-            for (int i = 0; i < MAX_CHILDREN; i++) {
-                children[i] = fromBytes(Arrays.copyOfRange(data, offset, offset+8));
-                offset += 8;
+        private static void expect(String[] args, int count, String usage) {
+            if (args.length != count + 1) {
+                throw new IllegalArgumentException("Usage: " + usage);
             }
-
-            return new BTreeNode(nodeBlockId, parentId, numKeys, keys, values, children);
         }
 
-        void writeNodeToFile(BTreeNode node) throws IOException {
-            this.file.seek(BLOCK_SIZE * node.blockId);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            bos.write(toBytes(node.blockId));
-            bos.write(toBytes(node.parentId));
-            bos.write(toBytes(node.numKeys));
-            for (long k : node.keys) {
-                bos.write(toBytes(k));
-            }
-            for (long v : node.values) {
-                bos.write(toBytes(v));
-            }
-            for (long c : node.children) {
-                bos.write(toBytes(c));
-            }
-            byte[] data = bos.toByteArray();
-            if (data.length < BLOCK_SIZE) {
-                data = Arrays.copyOf(data, BLOCK_SIZE);
+        private static long unsigned(String text) {
+            long v = Long.parseLong(text);
+            if (v < 0) {
+                throw new NumberFormatException();
             }
-            this.file.write(data);
-            this.file.getChannel().force(true);
+            return v;
         }
     }
 
+    private static final String READ_ONLY_MESSAGE =
+            "Index file uses format version 1 and is open read-only. Use upgrade to convert it.";
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            try {
+                System.exit(BatchSession.run(args.length > 1 ? args[1] : null));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
         Scanner scanner = new Scanner(System.in);
-        BTree index_file = null;
+        Index index_file = null;
 
         while (true) {
-            System.out.println("\nAvailable commands: create, open, insert, search, load, print, extract, quit");
+            System.out.println("\nAvailable commands: create, open, insert, delete, update, search, msearch, range, count, sum, rank, select, load, print, extract, compact, bloom, upgrade, stats, quit");
             System.out.print("Enter a command: ");
             String command = scanner.nextLine().trim().toLowerCase();
 
             try {
                 switch (command) {
                     case "create": {
-                        System.out.print("Enter index file name: ");
+                        System.out.print("Enter index file name (add a shard count to shard it): ");
                         String filename = scanner.nextLine().trim();
+                        int shards = 1;
+                        int suffix = shardSuffix(filename);
+                        if (suffix > 0) {
+                            try {
+                                shards = shardCount(filename.substring(suffix + 1));
+                            } catch (NumberFormatException e) {
+                                System.out.println("Invalid input. Please enter a shard count from 1 to " + ShardedIndex.MAX_SHARDS + ".");
+                                continue;
+                            } catch (IllegalArgumentException e) {
+                                System.out.println(e.getMessage());
+                                continue;
+                            }
+                            filename = filename.substring(0, suffix).trim();
+                        }
                         File f = new File(filename);
                         if (f.exists()) {
                             System.out.print("File " + filename + " exists. Overwrite? (yes/no): ");
@@ -489,14 +7609,12 @@ public class Main {
                                 continue;
                             }
                         }
-                        FileOutputStream fos = new FileOutputStream(filename);
-                        byte[] zeroes = new byte[BLOCK_SIZE];
-                        fos.write(zeroes);
-                        fos.close();
-                        index_file = new BTree(filename);
-                        index_file.openIndexFile("rw");
-                        index_file.writeHeader();
-                        System.out.println("Created and opened index file " + filename + ".");
+                        if (index_file != null) {
+                            index_file.closeIndexFile();
+                            index_file = null;
+                        }
+                        index_file = Index.create(filename, shards);
+                        System.out.println("Created and opened index file " + filename + shardNote(shards) + ".");
                         break;
                     }
 
@@ -505,11 +7623,10 @@ public class Main {
                         String filename = scanner.nextLine().trim();
                         if (index_file != null) {
                             index_file.closeIndexFile();
+                            index_file = null;
                         }
-                        index_file = new BTree(filename);
-                        index_file.openIndexFile("rw");
-                        index_file.loadBTree();
-                        System.out.println("Opened and loaded index file " + filename + ".");
+                        index_file = Index.open(filename);
+                        System.out.println("Opened and loaded index file " + filename + shardNote(index_file.shardCount()) + ".");
                         break;
                     }
 
@@ -518,6 +7635,10 @@ public class Main {
                             System.out.println("No index file is open.");
                             continue;
                         }
+                        if (index_file.isReadOnly()) {
+                            System.out.println(READ_ONLY_MESSAGE);
+                            continue;
+                        }
                         try {
                             System.out.print("Enter key (unsigned integer): ");
                             long key = Long.parseLong(scanner.nextLine().trim());
@@ -533,6 +7654,60 @@ public class Main {
                         break;
                     }
 
+                    case "delete": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        if (index_file.isReadOnly()) {
+                            System.out.println(READ_ONLY_MESSAGE);
+                            continue;
+                        }
+                        try {
+                            System.out.print("Enter key (unsigned integer): ");
+                            long key = Long.parseLong(scanner.nextLine().trim());
+                            if (key < 0) {
+                                throw new NumberFormatException();
+                            }
+                            if (index_file.delete(key)) {
+                                System.out.println("Deleted key " + key + ".");
+                            } else {
+                                System.out.println("Key not found.");
+                            }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid input. Please enter an unsigned integer.");
+                        }
+                        break;
+                    }
+
+                    case "update": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        if (index_file.isReadOnly()) {
+                            System.out.println(READ_ONLY_MESSAGE);
+                            continue;
+                        }
+                        try {
+                            System.out.print("Enter key (unsigned integer): ");
+                            long key = Long.parseLong(scanner.nextLine().trim());
+                            System.out.print("Enter new value (unsigned integer): ");
+                            long value = Long.parseLong(scanner.nextLine().trim());
+                            if (key < 0 || value < 0) {
+                                throw new NumberFormatException();
+                            }
+                            if (index_file.update(key, value)) {
+                                System.out.println("Updated key " + key + " to value " + value + ".");
+                            } else {
+                                System.out.println("Key not found.");
+                            }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid input. Please enter unsigned integers.");
+                        }
+                        break;
+                    }
+
                     case "search": {
                         if (index_file == null) {
                             System.out.println("No index file is open.");
@@ -556,11 +7731,108 @@ public class Main {
                         break;
                     }
 
+                    case "msearch": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        System.out.print("Enter filename to read keys from: ");
+                        String fname = scanner.nextLine().trim();
+                        searchKeysFromFile(index_file, fname);
+                        break;
+                    }
+
+                    case "range": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        try {
+                            System.out.print("Enter lower key (unsigned integer): ");
+                            long from = Long.parseLong(scanner.nextLine().trim());
+                            System.out.print("Enter upper key (unsigned integer): ");
+                            long to = Long.parseLong(scanner.nextLine().trim());
+                            if (from < 0 || to < 0) {
+                                throw new NumberFormatException();
+                            }
+                            long count = index_file.printRange(from, to);
+                            System.out.println(count + " keys in range.");
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid input. Please enter unsigned integers.");
+                        }
+                        break;
+                    }
+
+                    case "count":
+                    case "sum": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        try {
+                            System.out.print("Enter lower key (unsigned integer): ");
+                            long from = Long.parseLong(scanner.nextLine().trim());
+                            System.out.print("Enter upper key (unsigned integer): ");
+                            long to = Long.parseLong(scanner.nextLine().trim());
+                            if (from < 0 || to < 0) {
+                                throw new NumberFormatException();
+                            }
+                            if (command.equals("count")) {
+                                System.out.println(index_file.count(from, to) + " keys in range.");
+                            } else {
+                                System.out.println("Sum of values in range: " + Long.toUnsignedString(index_file.sum(from, to)) + ".");
+                            }
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid input. Please enter unsigned integers.");
+                        }
+                        break;
+                    }
+
+                    case "rank": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        try {
+                            System.out.print("Enter key (unsigned integer): ");
+                            long key = Long.parseLong(scanner.nextLine().trim());
+                            if (key < 0) {
+                                throw new NumberFormatException();
+                            }
+                            System.out.println(rankText(key, index_file.rank(key)));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid input. Please enter an unsigned integer.");
+                        }
+                        break;
+                    }
+
+                    case "select": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        try {
+                            System.out.print("Enter position, counting from 0 (unsigned integer): ");
+                            long position = Long.parseLong(scanner.nextLine().trim());
+                            if (position < 0) {
+                                throw new NumberFormatException();
+                            }
+                            System.out.println(selectText(position, index_file.select(position)));
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid input. Please enter an unsigned integer.");
+                        }
+                        break;
+                    }
+
                     case "load": {
                         if (index_file == null) {
                             System.out.println("No index file is open.");
                             continue;
                         }
+                        if (index_file.isReadOnly()) {
+                            System.out.println(READ_ONLY_MESSAGE);
+                            continue;
+                        }
                         System.out.print("Enter filename to load data from: ");
                         String fname = scanner.nextLine().trim();
                         index_file.loadData(fname);
@@ -583,10 +7855,85 @@ public class Main {
                         }
                         System.out.print("Enter filename to extract data to: ");
                         String fname = scanner.nextLine().trim();
+                        if (new File(fname).exists()) {
+                            System.out.print("File " + fname + " exists. Overwrite? (yes/no): ");
+                            String overwrite = scanner.nextLine().trim().toLowerCase();
+                            if (!overwrite.equals("yes")) {
+                                System.out.println("Operation aborted.");
+                                continue;
+                            }
+                        }
                         index_file.extractData(fname);
                         break;
                     }
 
+                    case "compact": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        if (index_file.isReadOnly()) {
+                            System.out.println(READ_ONLY_MESSAGE);
+                            continue;
+                        }
+                        try {
+                            System.out.print("Enter target fill factor (0.5 to 1.0, blank for " + FILL_FACTOR + "): ");
+                            String input = scanner.nextLine().trim();
+                            if (input.isEmpty()) {
+                                requireBetween("btree.fillFactor", FILL_FACTOR, 0.5, 1.0);
+                            }
+                            double fill = input.isEmpty() ? FILL_FACTOR : Double.parseDouble(input);
+                            if (!(fill >= 0.5 && fill <= 1.0)) {
+                                throw new NumberFormatException();
+                            }
+                            index_file.compact(fill);
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid input. Please enter a number from 0.5 to 1.0.");
+                        } catch (IOException e) {
+                            System.out.println(e.getMessage());
+                        }
+                        break;
+                    }
+
+                    case "bloom": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        if (BLOOM_FPP <= 0) {
+                            System.out.println("The Bloom filter is turned off (btree.bloomFpp=0).");
+                            continue;
+                        }
+                        rebuildFilter(index_file);
+                        break;
+                    }
+
+                    case "upgrade": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        if (index_file.upgradeFormat()) {
+                            System.out.println("Upgraded index file to format version 2.");
+                        } else {
+                            System.out.println("Index file is already in format version 2.");
+                        }
+                        break;
+                    }
+
+                    case "stats": {
+                        if (index_file == null) {
+                            System.out.println("No index file is open.");
+                            continue;
+                        }
+                        try {
+                            System.out.print(index_file.report());
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        break;
+                    }
+
                     case "quit": {
                         System.out.println("Exiting program.");
                         if (index_file != null) {
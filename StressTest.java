@@ -0,0 +1,202 @@
+//Shayan Saberi-Nikou, SXS220123
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded stress run against a throwaway index. Threads insert disjoint keys in
+ * shuffled order; afterwards every key must be found with its value and a full scan must
+ * see each exactly once. Search throughput is then measured at 1, 2, 4, ... threads.
+ */
+class StressTest {
+    // java StressTest <threads> <keys per thread>; the exit status is 1 if the tree lost or misordered anything
+    public static void main(String[] args) throws Exception {
+        int threads;
+        int perThread;
+        try {
+            if (args.length != 2) {
+                throw new NumberFormatException();
+            }
+            threads = Integer.parseInt(args[0]);
+            perThread = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            threads = 0;
+            perThread = 0;
+        }
+        if (threads <= 0 || perThread <= 0) {
+            System.out.println("Usage: java StressTest <threads> <keys per thread>, both positive integers.");
+            System.exit(2);
+        }
+        try {
+            run(threads, perThread);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void run(int threads, int keysPerThread) throws Exception {
+        Path dir = Files.createTempDirectory("btree-stress");
+        String filename = dir.resolve("stress.idx").toString();
+        Main.BTree tree = new Main.BTree(filename);
+        tree.createIndexFile();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long total = (long) threads * keysPerThread;
+            long start = System.nanoTime();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                tasks.add(pool.submit(() -> {
+                    long[] keys = new long[keysPerThread];
+                    for (int j = 0; j < keysPerThread; j++) {
+                        keys[j] = (long) j * threads + thread;
+                    }
+                    shuffle(keys, new Random(thread));
+                    for (long k : keys) {
+                        tree.insert(k, k * 2);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : tasks) {
+                f.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Inserted %d keys with %d threads in %.3f s (%.0f inserts/sec).%n",
+                    total, threads, seconds, total / seconds);
+
+            long lost = 0;
+            for (long k = 0; k < total; k++) {
+                Long v = tree.searchKey(k);
+                if (v == null || v != k * 2) {
+                    lost++;
+                }
+            }
+            long scanned = 0;
+            long previous = Long.MIN_VALUE;
+            boolean ordered = true;
+            try (Main.PairStream c = tree.scan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                while (c.next()) {
+                    ordered &= c.key() > previous;
+                    previous = c.key();
+                    scanned++;
+                }
+            }
+            System.out.println("Lost inserts: " + lost + ", keys scanned: " + scanned + " of " + total
+                    + (ordered ? ", in order." : ", OUT OF ORDER."));
+            if (lost != 0 || scanned != total || !ordered) {
+                throw new IllegalStateException("Stress test failed: the tree lost or misordered inserted keys.");
+            }
+
+            for (int n = 1; n <= threads; n *= 2) {
+                final int searchThreads = n;
+                long searchesPerThread = Math.max(total / n, 10000);
+                start = System.nanoTime();
+                tasks.clear();
+                for (int t = 0; t < n; t++) {
+                    final long seed = t;
+                    tasks.add(pool.submit(() -> {
+                        Random r = new Random(seed);
+                        for (long j = 0; j < searchesPerThread; j++) {
+                            tree.searchKey((long) (r.nextDouble() * total));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : tasks) {
+                    f.get();
+                }
+                seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Search with %d threads: %.0f searches/sec.%n",
+                        searchThreads, searchesPerThread * searchThreads / seconds);
+            }
+
+            // Update every key while another thread reads snapshots, each twice over: the second
+            // pass must see exactly what the first did even though values change underneath
+            start = System.nanoTime();
+            tasks.clear();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                tasks.add(pool.submit(() -> {
+                    for (long k = thread; k < total; k += threads) {
+                        tree.update(k, k * 3);
+                    }
+                    return null;
+                }));
+            }
+            AtomicLong snapshotReads = new AtomicLong();
+            AtomicLong inconsistent = new AtomicLong();
+            // Not on the pool, whose threads are all busy updating; get() rethrows whatever stopped it
+            FutureTask<Void> snapshotReader = new FutureTask<>(() -> {
+                while (!tasks.stream().allMatch(Future::isDone)) {
+                    try (Main.Snapshot snapshot = tree.snapshot()) {
+                        long[] first = checksum(snapshot);
+                        long[] second = checksum(snapshot);
+                        Long value = snapshot.search(first[2]);
+                        if (!Arrays.equals(first, second) || first[0] != total
+                                || value == null || value != first[2] * 2 && value != first[2] * 3) {
+                            inconsistent.incrementAndGet();
+                        }
+                    }
+                    snapshotReads.incrementAndGet();
+                }
+                return null;
+            });
+            new Thread(snapshotReader).start();
+            for (Future<?> f : tasks) {
+                f.get();
+            }
+            seconds = (System.nanoTime() - start) / 1e9;
+            snapshotReader.get();
+            long stale = 0;
+            for (long k = 0; k < total; k++) {
+                Long v = tree.searchKey(k);
+                if (v == null || v != k * 3) {
+                    stale++;
+                }
+            }
+            System.out.printf("Updated %d keys in %.3f s while reading %d snapshots; %d snapshots changed while open, %d updates lost.%n",
+                    total, seconds, snapshotReads.get(), inconsistent.get(), stale);
+            if (inconsistent.get() != 0 || stale != 0) {
+                throw new IllegalStateException("Stress test failed: snapshots changed while open or updates were lost.");
+            }
+        } finally {
+            pool.shutdown();
+            tree.closeIndexFile();
+            Files.deleteIfExists(tree.walPath());
+            Files.deleteIfExists(tree.filterPath());
+            Files.deleteIfExists(Paths.get(filename));
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // Pairs, a hash of their keys and values, and the largest key of one snapshot scan
+    private static long[] checksum(Main.Snapshot snapshot) throws IOException {
+        long[] result = new long[3];
+        try (Main.PairStream c = snapshot.scan(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            while (c.next()) {
+                result[0]++;
+                result[1] = result[1] * 31 + c.key() + c.value();
+                result[2] = c.key();
+            }
+        }
+        return result;
+    }
+
+    static void shuffle(long[] a, Random r) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            long tmp = a[i];
+            a[i] = a[j];
+            a[j] = tmp;
+        }
+    }
+}